@@ -0,0 +1,93 @@
+/**
+ * Part of ToneScribe
+ * Copyright (c) 2014, William Karnavas
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.tonescribe;
+
+import javax.swing.AbstractListModel;
+
+import com.tonescribe.song.linker.LazyLinkedOutput;
+
+/**
+ * The lines of a linked output, for a list that asks only for the lines it
+ * shows. Tabs are expanded to match the output text area.
+ * 
+ */
+@SuppressWarnings("serial")
+public class LazyOutputListModel extends AbstractListModel<String> {
+	/**
+	 * Columns between tab stops, as in the output text area
+	 */
+	public static final int TAB_SIZE = 3;
+
+	private final LazyLinkedOutput output;
+	private final int lineCount;
+
+	public LazyOutputListModel(LazyLinkedOutput output) {
+		this.output = output;
+		lineCount = output.getLineCount();
+	}
+
+	@Override
+	public int getSize() {
+		return lineCount;
+	}
+
+	@Override
+	public String getElementAt(int index) {
+		String line = output.getLine(index);
+		if (line.indexOf('\t') >= 0) {
+			line = expandTabs(line);
+		}
+		// An empty line would be drawn without height
+		return (line.length() > 0) ? line : " ";
+	}
+
+	/**
+	 * Replaces each tab with spaces up to the next tab stop.
+	 */
+	private static String expandTabs(String line) {
+		StringBuilder builder = new StringBuilder(line.length() + TAB_SIZE);
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c == '\t') {
+				do {
+					builder.append(' ');
+				} while (builder.length() % TAB_SIZE != 0);
+			} else {
+				builder.append(c);
+			}
+		}
+		return builder.toString();
+	}
+
+	public LazyLinkedOutput getOutput() {
+		return output;
+	}
+}
@@ -0,0 +1,189 @@
+/**
+ * Part of ToneScribe
+ * Copyright (c) 2014, William Karnavas
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.tonescribe;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.SwingUtilities;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.JTextComponent;
+
+/**
+ * Keeps a text component showing a list of chunks of text, changing only the
+ * part of its document that differs when a new list is given: the chunks
+ * both lists start with and end with are left alone, and the rest is replaced
+ * with one remove and one insert. Small edits to a long output then cost a
+ * small edit to the document, instead of laying out all of it again.
+ * 
+ */
+public class OutputDocumentPatcher {
+	private final JTextComponent textComponent;
+
+	// What the document holds, as last given
+	private List<String> chunks = new ArrayList<String>();
+	private int length = 0;
+
+	private int lastRemovedChars = 0;
+	private int lastInsertedChars = 0;
+
+	public OutputDocumentPatcher(JTextComponent textComponent) {
+		this.textComponent = textComponent;
+	}
+
+	/**
+	 * Shows a text, split into lines to compare with what is shown now.
+	 */
+	public void setText(String text) {
+		setChunks(splitLines(text));
+	}
+
+	/**
+	 * Shows the chunks, joined, patching the document on the event dispatch
+	 * thread. Waits for the patch unless called on that thread.
+	 */
+	public void setChunks(List<String> newChunks) {
+		int oldCount = chunks.size();
+		int newCount = newChunks.size();
+		int prefix = 0;
+		int prefixChars = 0;
+		while (prefix < oldCount && prefix < newCount
+				&& chunks.get(prefix).equals(newChunks.get(prefix))) {
+			prefixChars += chunks.get(prefix).length();
+			prefix++;
+		}
+		int suffix = 0;
+		while (suffix < oldCount - prefix
+				&& suffix < newCount - prefix
+				&& chunks.get(oldCount - 1 - suffix).equals(
+						newChunks.get(newCount - 1 - suffix))) {
+			suffix++;
+		}
+
+		int removed = 0;
+		for (int i = prefix; i < oldCount - suffix; i++) {
+			removed += chunks.get(i).length();
+		}
+		StringBuilder inserted = new StringBuilder();
+		for (int i = prefix; i < newCount - suffix; i++) {
+			inserted.append(newChunks.get(i));
+		}
+
+		final int expectedLength = length;
+		final int offset = prefixChars;
+		final int removeLength = removed;
+		final String insertText = inserted.toString();
+		final List<String> allChunks = new ArrayList<String>(newChunks);
+		chunks = allChunks;
+		length += insertText.length() - removed;
+		lastRemovedChars = removed;
+		lastInsertedChars = insertText.length();
+		if (removed == 0 && insertText.length() == 0) {
+			return;
+		}
+
+		runOnEventThread(new Runnable() {
+
+			@Override
+			public void run() {
+				Document document = textComponent.getDocument();
+				if (document.getLength() != expectedLength) {
+					// Changed by someone else; start again from scratch
+					textComponent.setText(join(allChunks));
+					return;
+				}
+				try {
+					document.remove(offset, removeLength);
+					document.insertString(offset, insertText, null);
+				} catch (BadLocationException e) {
+					textComponent.setText(join(allChunks));
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return characters the last change took out of the document
+	 */
+	public int getLastRemovedChars() {
+		return lastRemovedChars;
+	}
+
+	/**
+	 * @return characters the last change put into the document
+	 */
+	public int getLastInsertedChars() {
+		return lastInsertedChars;
+	}
+
+	/**
+	 * Splits a text after each newline, keeping the newlines.
+	 */
+	public static List<String> splitLines(String text) {
+		ArrayList<String> lines = new ArrayList<String>();
+		int start = 0;
+		for (int i = 0; i < text.length(); i++) {
+			if (text.charAt(i) == '\n') {
+				lines.add(text.substring(start, i + 1));
+				start = i + 1;
+			}
+		}
+		if (start < text.length()) {
+			lines.add(text.substring(start));
+		}
+		return lines;
+	}
+
+	private static String join(List<String> chunks) {
+		StringBuilder builder = new StringBuilder();
+		for (String chunk : chunks) {
+			builder.append(chunk);
+		}
+		return builder.toString();
+	}
+
+	private static void runOnEventThread(Runnable runnable) {
+		if (SwingUtilities.isEventDispatchThread()) {
+			runnable.run();
+			return;
+		}
+		try {
+			SwingUtilities.invokeAndWait(runnable);
+		} catch (InterruptedException e) {
+			// Let the caller see it was interrupted
+			Thread.currentThread().interrupt();
+		} catch (InvocationTargetException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+}
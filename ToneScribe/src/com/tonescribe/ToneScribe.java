@@ -33,9 +33,11 @@ package com.tonescribe;
 
 import java.awt.BorderLayout;
 import java.awt.Desktop;
+import java.awt.Dimension;
 import java.awt.EventQueue;
 import java.awt.FileDialog;
 import java.awt.Font;
+import java.awt.GraphicsEnvironment;
 import java.awt.Toolkit;
 import java.awt.datatransfer.Clipboard;
 import java.awt.datatransfer.ClipboardOwner;
@@ -50,14 +52,20 @@ import java.awt.event.WindowEvent;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
 
+import javax.sound.sampled.AudioFormat;
 import javax.swing.BorderFactory;
 import javax.swing.ButtonGroup;
+import javax.swing.DefaultListModel;
 import javax.swing.GroupLayout;
 import javax.swing.GroupLayout.Alignment;
 import javax.swing.ImageIcon;
@@ -66,6 +74,7 @@ import javax.swing.JCheckBoxMenuItem;
 import javax.swing.JDialog;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
+import javax.swing.JList;
 import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
@@ -80,16 +89,42 @@ import javax.swing.KeyStroke;
 import javax.swing.SwingConstants;
 import javax.swing.border.EmptyBorder;
 
+import com.tonescribe.song.MidiFileExporter;
+import com.tonescribe.song.MidiSongPlayer;
+import com.tonescribe.song.PreviewPlayer;
 import com.tonescribe.song.Song;
 import com.tonescribe.song.SongPlayer;
+import com.tonescribe.song.compiler.MidiSongCompiler;
 import com.tonescribe.song.compiler.RTTTLSongCompiler;
 import com.tonescribe.song.compiler.SongCompiler;
+import com.tonescribe.song.compiler.TabTableSongCompiler;
 import com.tonescribe.song.compiler.musicstring.MusicStringSongCompiler;
+import com.tonescribe.song.linker.AdpcmSongLinker;
 import com.tonescribe.song.linker.BeepSongLinker;
+import com.tonescribe.song.linker.BinarySongLinker;
+import com.tonescribe.song.linker.BitstreamSongLinker;
+import com.tonescribe.song.linker.BlockSongLinker;
+import com.tonescribe.song.linker.BytecodeSongLinker;
+import com.tonescribe.song.linker.ChannelAppendable;
+import com.tonescribe.song.linker.ChunkedSongLinker;
+import com.tonescribe.song.linker.ClockedSongLinker;
+import com.tonescribe.song.linker.CompensatingSongLinker;
+import com.tonescribe.song.linker.CycleBudgetAnalyzer;
+import com.tonescribe.song.linker.CycleCostModel;
 import com.tonescribe.song.linker.GenericSongLinker;
+import com.tonescribe.song.linker.LazyLinkedOutput;
+import com.tonescribe.song.linker.NoteTableSongLinker;
+import com.tonescribe.song.linker.ParallelLinker;
+import com.tonescribe.song.linker.PhraseSongLinker;
+import com.tonescribe.song.linker.PitchErrorReport;
 import com.tonescribe.song.linker.PreciseSongLinker;
 import com.tonescribe.song.linker.SongLinker;
 import com.tonescribe.song.linker.TabTableLinker;
+import com.tonescribe.song.linker.TargetProgram;
+import com.tonescribe.song.linker.TargetEmulator;
+import com.tonescribe.song.linker.TargetProgramLinker;
+import com.tonescribe.song.linker.TemplateSongLinker;
+import com.tonescribe.song.linker.TimerPwmSongLinker;
 import com.tonescribe.update.CompareVersion;
 import com.tonescribe.update.FileUpdater;
 
@@ -101,17 +136,36 @@ public class ToneScribe extends JFrame implements ClipboardOwner {
 	public static String WEBSITE_URL = "http://tonescribe.weebly.com/";
 	public static String OUTPUT_WEBSITE_URL = "http://tonescribe.weebly.com/output.html";
 
+	/**
+	 * Outputs longer than this are shown in a list of lines written as they
+	 * scroll into view, instead of in the output text area
+	 */
+	public static final int VIRTUAL_VIEW_CHARS = 1 << 20;
+
 	private JPanel contentPane;
 	private Thread updateOutputThread;
 	private JTextArea editorTextArea;
 	private JTextArea outputTextArea;
+	private OutputDocumentPatcher outputPatcher;
+	private JScrollPane outputScrollPane;
+	private JList<String> outputList;
+	// Shown in outputList instead of outputTextArea when not null
+	private volatile LazyLinkedOutput virtualOutput = null;
 	protected SongCompiler songCompiler = new MusicStringSongCompiler();
 	protected SongLinker songLinker = new GenericSongLinker();
+	protected volatile long targetClockHz = 1000000;
+	protected volatile long bitClockHz = 128000;
+	protected volatile int adpcmSampleRate = 8000;
+	protected volatile boolean appendTimingReport = false;
+	protected volatile boolean compensateTiming = false;
 	protected SongPlayer songPlayer = new SongPlayer();
+	protected MidiSongPlayer midiSongPlayer = new MidiSongPlayer();
+	protected PreviewPlayer previewPlayer = songPlayer;
 	protected File openFile;
 	public static ToneScribe frame;
 	private JMenu mnInsert;
 	private JRadioButtonMenuItem rdbtnmntmRtttl;
+	private JRadioButtonMenuItem rdbtnmntmTabTable;
 	private JRadioButtonMenuItem rdbtnmntmTonescribe;
 	protected static boolean openFileChanged = false;
 	private static FileUpdater updater = new FileUpdater(UPDATE_INFO_URL,
@@ -218,6 +272,46 @@ public class ToneScribe extends JFrame implements ClipboardOwner {
 			}
 		});
 
+		JMenuItem mntmExportOutput = new JMenuItem("Export Output...");
+		mnFile.add(mntmExportOutput);
+		mntmExportOutput.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				exportOutput();
+			}
+		});
+
+		JMenuItem mntmExportAllOutputs = new JMenuItem("Export All Outputs...");
+		mnFile.add(mntmExportAllOutputs);
+		mntmExportAllOutputs.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				exportAllOutputs();
+			}
+		});
+
+		JMenuItem mntmExportMidi = new JMenuItem("Export MIDI...");
+		mnFile.add(mntmExportMidi);
+		mntmExportMidi.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				exportMidi();
+			}
+		});
+
+		JMenuItem mntmImportMidi = new JMenuItem("Import MIDI...");
+		mnFile.add(mntmImportMidi);
+		mntmImportMidi.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				importMidi();
+			}
+		});
+
 		JMenuItem mntmExit = new JMenuItem("Exit");
 		mnFile.add(mntmExit);
 		mntmExit.addActionListener(new ActionListener() {
@@ -266,7 +360,7 @@ public class ToneScribe extends JFrame implements ClipboardOwner {
 				Song song = compileSong();
 				if (song != null) {
 					// Play!
-					songPlayer.playSong(song);
+					playPreview(song);
 				}
 			}
 		});
@@ -277,6 +371,7 @@ public class ToneScribe extends JFrame implements ClipboardOwner {
 		mntmStopPreview.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent arg0) {
 				songPlayer.stopSongs();
+				midiSongPlayer.stopSongs();
 			}
 		});
 
@@ -291,16 +386,57 @@ public class ToneScribe extends JFrame implements ClipboardOwner {
 				Song song = compileSongFromCursor();
 				if (song != null) {
 					// Play!
-					songPlayer.playSong(song);
+					playPreview(song);
 				}
 			}
 		});
 		mnPlay.add(mntmPlayFromCursor);
+
+		JMenuItem mntmLoopSelection = new JMenuItem("Loop Selection");
+		mntmLoopSelection.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_L,
+				InputEvent.CTRL_MASK));
+		mntmLoopSelection.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				loopSelection();
+			}
+		});
+		mnPlay.add(mntmLoopSelection);
+
+		JMenuItem mntmPlayOnTarget = new JMenuItem("Play As Target Would");
+		mntmPlayOnTarget.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				Song song = compileSong();
+				if (song != null) {
+					playOnTarget(song);
+				}
+			}
+		});
+		mnPlay.add(mntmPlayOnTarget);
 		mnPlay.add(mntmStopPreview);
 
 		JSeparator separator_2 = new JSeparator();
 		mnPlay.add(separator_2);
 
+		final JCheckBoxMenuItem chckbxmntmMidiPreview = new JCheckBoxMenuItem(
+				"Preview With MIDI Synthesizer");
+		mnPlay.add(chckbxmntmMidiPreview);
+		chckbxmntmMidiPreview.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				previewPlayer.stopSongs();
+				if (chckbxmntmMidiPreview.isSelected()) {
+					previewPlayer = midiSongPlayer;
+				} else {
+					previewPlayer = songPlayer;
+				}
+			}
+		});
+
 		JMenuItem mntmSavePreviewAs = new JMenuItem("Save Selection As WAV...");
 		mnPlay.add(mntmSavePreviewAs);
 		mntmSavePreviewAs.addActionListener(new ActionListener() {
@@ -356,15 +492,30 @@ public class ToneScribe extends JFrame implements ClipboardOwner {
 				}
 			}
 		});
+		rdbtnmntmTabTable = new JRadioButtonMenuItem("Tab Table");
+		mnSongFormat.add(rdbtnmntmTabTable);
+		rdbtnmntmTabTable.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				if (rdbtnmntmTabTable.isSelected()) {
+					changeCompiler(new TabTableSongCompiler());
+				}
+			}
+		});
 		if (songCompiler instanceof RTTTLSongCompiler) {
 			rdbtnmntmRtttl.setSelected(true);
 		}
+		if (songCompiler instanceof TabTableSongCompiler) {
+			rdbtnmntmTabTable.setSelected(true);
+		}
 		if (songCompiler instanceof MusicStringSongCompiler) {
 			rdbtnmntmTonescribe.setSelected(true);
 		}
 
 		ButtonGroup songFormatGroup = new ButtonGroup();
 		songFormatGroup.add(rdbtnmntmRtttl);
+		songFormatGroup.add(rdbtnmntmTabTable);
 		songFormatGroup.add(rdbtnmntmTonescribe);
 
 		JMenu mnOutput = new JMenu("Output");
@@ -415,6 +566,94 @@ public class ToneScribe extends JFrame implements ClipboardOwner {
 			}
 		});
 
+		JRadioButtonMenuItem rdbtnmntmJumpTable = new JRadioButtonMenuItem(
+				"TI Complete Code (Jump Table)");
+		mnOutput.add(rdbtnmntmJumpTable);
+		rdbtnmntmJumpTable.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				changeLinker(new PreciseSongLinker(true));
+			}
+		});
+
+		JRadioButtonMenuItem rdbtnmntmTimerPwm = new JRadioButtonMenuItem(
+				"TI Timer_A Low Power Code");
+		mnOutput.add(rdbtnmntmTimerPwm);
+		rdbtnmntmTimerPwm.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				changeLinker(new TimerPwmSongLinker());
+			}
+		});
+
+		JRadioButtonMenuItem rdbtnmntmNoteTable = new JRadioButtonMenuItem(
+				"Compressed Note Table");
+		mnOutput.add(rdbtnmntmNoteTable);
+		rdbtnmntmNoteTable.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				changeLinker(new NoteTableSongLinker());
+			}
+		});
+
+		JRadioButtonMenuItem rdbtnmntmPhrases = new JRadioButtonMenuItem(
+				"Phrases & Loops");
+		mnOutput.add(rdbtnmntmPhrases);
+		rdbtnmntmPhrases.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				changeLinker(new PhraseSongLinker());
+			}
+		});
+
+		JRadioButtonMenuItem rdbtnmntmBytecode = new JRadioButtonMenuItem(
+				"Bytecode & Interpreter");
+		mnOutput.add(rdbtnmntmBytecode);
+		rdbtnmntmBytecode.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				changeLinker(new BytecodeSongLinker());
+			}
+		});
+
+		JRadioButtonMenuItem rdbtnmntmPdm = new JRadioButtonMenuItem(
+				"1-Bit PDM Bitstream");
+		mnOutput.add(rdbtnmntmPdm);
+		rdbtnmntmPdm.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				changeLinker(new BitstreamSongLinker(false));
+			}
+		});
+
+		JRadioButtonMenuItem rdbtnmntmPwm = new JRadioButtonMenuItem(
+				"1-Bit PWM Bitstream");
+		mnOutput.add(rdbtnmntmPwm);
+		rdbtnmntmPwm.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				changeLinker(new BitstreamSongLinker(true));
+			}
+		});
+
+		JRadioButtonMenuItem rdbtnmntmAdpcm = new JRadioButtonMenuItem(
+				"IMA ADPCM Samples");
+		mnOutput.add(rdbtnmntmAdpcm);
+		rdbtnmntmAdpcm.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				changeLinker(new AdpcmSongLinker());
+			}
+		});
+
 		if (songLinker instanceof GenericSongLinker) {
 			rdbtnmntmGeneric.setSelected(true);
 		}
@@ -425,15 +664,102 @@ public class ToneScribe extends JFrame implements ClipboardOwner {
 			rdbtnmntmPreciseTones.setSelected(true);
 		}
 
-		ButtonGroup songLinkerGroup = new ButtonGroup();
+		final ButtonGroup songLinkerGroup = new ButtonGroup();
 		songLinkerGroup.add(rdbtnmntmGeneric);
 		songLinkerGroup.add(rdbtnmntmStandardBeepStatements);
 		songLinkerGroup.add(rdbtnmntmPreciseTones);
+		songLinkerGroup.add(rdbtnmntmJumpTable);
+		songLinkerGroup.add(rdbtnmntmTimerPwm);
 		songLinkerGroup.add(rdbtnmntmTabs);
+		songLinkerGroup.add(rdbtnmntmNoteTable);
+		songLinkerGroup.add(rdbtnmntmPhrases);
+		songLinkerGroup.add(rdbtnmntmBytecode);
+		songLinkerGroup.add(rdbtnmntmPdm);
+		songLinkerGroup.add(rdbtnmntmPwm);
+		songLinkerGroup.add(rdbtnmntmAdpcm);
+
+		JMenuItem mntmCustomTemplate = new JMenuItem("Custom Template...");
+		mnOutput.add(mntmCustomTemplate);
+		mntmCustomTemplate.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				SongLinker linker = loadTemplateLinker();
+				if (linker != null) {
+					songLinkerGroup.clearSelection();
+					changeLinker(linker);
+				}
+			}
+		});
 
 		JSeparator separator_3 = new JSeparator();
 		mnOutput.add(separator_3);
 
+		JMenuItem mntmTargetClock = new JMenuItem("Target Clock...");
+		mnOutput.add(mntmTargetClock);
+		mntmTargetClock.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				askForTargetClock();
+			}
+		});
+
+		JMenuItem mntmBitClock = new JMenuItem("Bit Clock...");
+		mnOutput.add(mntmBitClock);
+		mntmBitClock.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				askForBitClock();
+			}
+		});
+
+		JMenuItem mntmSampleRate = new JMenuItem("Sample Rate...");
+		mnOutput.add(mntmSampleRate);
+		mntmSampleRate.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				askForSampleRate();
+			}
+		});
+
+		JMenuItem mntmPitchError = new JMenuItem("Pitch Error Report...");
+		mnOutput.add(mntmPitchError);
+		mntmPitchError.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				showPitchErrorReport();
+			}
+		});
+
+		final JCheckBoxMenuItem chckbxmntmTimingReport = new JCheckBoxMenuItem(
+				"Append Timing Report");
+		mnOutput.add(chckbxmntmTimingReport);
+		chckbxmntmTimingReport.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				appendTimingReport = chckbxmntmTimingReport.isSelected();
+			}
+		});
+
+		final JCheckBoxMenuItem chckbxmntmCompensateTiming = new JCheckBoxMenuItem(
+				"Compensate Timing");
+		mnOutput.add(chckbxmntmCompensateTiming);
+		chckbxmntmCompensateTiming.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				setCompensateTiming(chckbxmntmCompensateTiming.isSelected());
+			}
+		});
+
+		JSeparator separator_4 = new JSeparator();
+		mnOutput.add(separator_4);
+
 		JMenuItem mntmMoreInfo = new JMenuItem("More Info...");
 		mntmMoreInfo.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent arg0) {
@@ -579,14 +905,24 @@ public class ToneScribe extends JFrame implements ClipboardOwner {
 		splitPane.setRightComponent(outputPanel);
 		outputPanel.setLayout(new BorderLayout(0, 0));
 
-		JScrollPane outputScrollPane = new JScrollPane();
+		outputScrollPane = new JScrollPane();
 
 		outputTextArea = new JTextArea();
-		outputTextArea.setTabSize(3);
+		outputTextArea.setTabSize(LazyOutputListModel.TAB_SIZE);
 		outputTextArea.setWrapStyleWord(true);
 		outputTextArea.setFont(new Font("Monospaced", Font.PLAIN, 13));
 		outputTextArea.setEditable(false);
+		outputPatcher = new OutputDocumentPatcher(outputTextArea);
 		outputScrollPane.setViewportView(outputTextArea);
+
+		// Shows outputs too long for the text area; only the lines on screen
+		// are ever written
+		outputList = new JList<String>();
+		outputList.setFont(outputTextArea.getFont());
+		// Fixed row sizes, so the list never measures every line
+		outputList.setPrototypeCellValue("0x00000000, 0x00000000, "
+				+ "0x00000000, 0x00000000, 0x00000000, 0x00000000, "
+				+ "0x00000000, 0x00000000,");
 		outputPanel.add(outputScrollPane);
 
 		JPanel panel = new JPanel();
@@ -606,7 +942,15 @@ public class ToneScribe extends JFrame implements ClipboardOwner {
 
 			@Override
 			public void actionPerformed(ActionEvent arg0) {
-				putTextInClipboard(outputTextArea.getText());
+				LazyLinkedOutput output = virtualOutput;
+				if (output != null) {
+					// Written out only when pasted
+					Toolkit.getDefaultToolkit().getSystemClipboard()
+							.setContents(new LazyTextSelection(output),
+									ToneScribe.this);
+				} else {
+					putTextInClipboard(outputTextArea.getText());
+				}
 			}
 		});
 		mainPanel.setLayout(gl_mainPanel);
@@ -614,8 +958,14 @@ public class ToneScribe extends JFrame implements ClipboardOwner {
 		updateOutputThread = new Thread(new Runnable() {
 
 			String lastSong = "";
+			Song lastCompiledSong = null;
 			SongCompiler lastCompiler = null;
 			SongLinker lastSongLinker = null;
+			long lastTargetClockHz = 0;
+			long lastBitClockHz = 0;
+			int lastAdpcmSampleRate = 0;
+			boolean lastAppendTimingReport = false;
+			boolean lastCompensateTiming = false;
 
 			@Override
 			public void run() {
@@ -638,30 +988,53 @@ public class ToneScribe extends JFrame implements ClipboardOwner {
 					}
 					if (!currentEditorText.equals(lastSong)
 							|| songCompiler != lastCompiler
-							|| songLinker != lastSongLinker) {
-
-						Song compiledSong = compileSong();
+							|| songLinker != lastSongLinker
+							|| targetClockHz != lastTargetClockHz
+							|| bitClockHz != lastBitClockHz
+							|| adpcmSampleRate != lastAdpcmSampleRate
+							|| appendTimingReport != lastAppendTimingReport
+							|| compensateTiming != lastCompensateTiming) {
+
+						Song compiledSong;
+						if (currentEditorText.equals(lastSong)
+								&& songCompiler == lastCompiler) {
+							// Only the output changed; relink the song, and
+							// its link plan, as already compiled
+							compiledSong = lastCompiledSong;
+						} else {
+							compiledSong = compileSong();
+						}
+						// Only the part of the output that changed is
+						// replaced
 						if (compiledSong != null
 								&& compiledSong.getErrors().size() <= 0) {
-							outputTextArea.setSelectionStart(0);
-							outputTextArea.setSelectionEnd(0);
-							outputTextArea.setText(songLinker
-									.link(compiledSong));
+							try {
+								showOutput(songLinker, compiledSong);
+							} catch (IllegalArgumentException e) {
+								// The song is fine, but this output cannot
+								// hold it
+								showTextOutput(OutputDocumentPatcher
+										.splitLines(e.getMessage()));
+							}
 						} else if (compiledSong != null) {
-							outputTextArea.setSelectionStart(0);
-							outputTextArea.setSelectionEnd(0);
-							outputTextArea.setText(compiledSong.getErrors()
-									.getFirst());
+							showTextOutput(OutputDocumentPatcher
+									.splitLines(compiledSong.getErrors()
+											.getFirst()));
 						} else {
-							outputTextArea.setSelectionStart(0);
-							outputTextArea.setSelectionEnd(0);
-							outputTextArea.setText("(Could not read tune)");
+							showTextOutput(OutputDocumentPatcher
+									.splitLines("(Could not read tune)"));
 							// TODO: Show errors
 						}
 
 						lastSong = currentEditorText;
+						lastCompiledSong = compiledSong;
 						lastCompiler = songCompiler;
 						lastSongLinker = songLinker;
+						lastTargetClockHz = targetClockHz;
+						lastBitClockHz = bitClockHz;
+						lastAdpcmSampleRate = adpcmSampleRate;
+						lastAppendTimingReport = appendTimingReport;
+						lastCompensateTiming = compensateTiming;
 
 						openFileChanged = true;
 						updateWindowTitle();
@@ -692,6 +1065,19 @@ public class ToneScribe extends JFrame implements ClipboardOwner {
 		checkForUpdatesThread.start();
 	}
 
+	/**
+	 * Shows an error to the user, or prints it if there is no window to show
+	 * it in (such as when running headless).
+	 */
+	public static void showErrorMessage(String message) {
+		if (frame == null || GraphicsEnvironment.isHeadless()) {
+			System.err.println(message);
+			return;
+		}
+		JOptionPane.showMessageDialog(frame, message, frame.getTitle(),
+				JOptionPane.ERROR_MESSAGE);
+	}
+
 	public void putTextInClipboard(String text) {
 		StringSelection stringSelection = new StringSelection(text);
 		Clipboard clipboard = Toolkit.getDefaultToolkit().getSystemClipboard();
@@ -714,10 +1100,305 @@ public class ToneScribe extends JFrame implements ClipboardOwner {
 		songCompiler = comp;
 	}
 
+	/**
+	 * Asks for a template file and compiles it into a linker.
+	 * 
+	 * @return null if no template was chosen or it could not be read
+	 */
+	protected SongLinker loadTemplateLinker() {
+		FileDialog fd = new FileDialog(frame, "Open Template", FileDialog.LOAD);
+		fd.show();
+		String fileSelected = fd.getFile();
+		if (fileSelected == null) {
+			return null;
+		}
+		File selectedFile = new File(fd.getDirectory() + fileSelected);
+
+		try {
+			return new TemplateSongLinker(getTextFromFile(selectedFile));
+		} catch (IOException e) {
+			e.printStackTrace();
+			showErrorMessage("Cannot open " + selectedFile.getName());
+		} catch (IllegalArgumentException e) {
+			showErrorMessage(e.getMessage());
+		}
+		return null;
+	}
+
 	protected void changeLinker(SongLinker linker) {
+		configureLinker(linker);
 		songLinker = linker;
 	}
 
+	/**
+	 * Gives a linker the settings chosen in the Output menu.
+	 */
+	protected void configureLinker(SongLinker linker) {
+		if (linker instanceof ClockedSongLinker) {
+			ClockedSongLinker clocked = (ClockedSongLinker) linker;
+			clocked.setTargetClock(clocked.getTargetClock().withClockHz(
+					targetClockHz));
+		}
+		if (linker instanceof CompensatingSongLinker) {
+			((CompensatingSongLinker) linker)
+					.setCompensateTiming(compensateTiming);
+		}
+		if (linker instanceof BitstreamSongLinker) {
+			((BitstreamSongLinker) linker).setBitClockHz(bitClockHz);
+		}
+		if (linker instanceof AdpcmSongLinker) {
+			((AdpcmSongLinker) linker).setSampleRate(adpcmSampleRate);
+		}
+	}
+
+	protected void setCompensateTiming(boolean compensate) {
+		// Set on the current linker first, so the output thread sees both
+		// changes together
+		if (songLinker instanceof CompensatingSongLinker) {
+			((CompensatingSongLinker) songLinker)
+					.setCompensateTiming(compensate);
+		}
+		compensateTiming = compensate;
+	}
+
+	/**
+	 * Links a song, adding the reports chosen in the Output menu as comments
+	 * after it.
+	 * 
+	 * @return the output in chunks, for the output patcher to compare
+	 */
+	protected List<String> linkWithReports(SongLinker linker, Song song) {
+		List<String> chunks;
+		String reports;
+		// Block linkers go back to an older song when its blocks are read, so
+		// hold the linker until the reports on this one are made
+		synchronized (linker) {
+			if (linker instanceof ChunkedSongLinker) {
+				chunks = new ArrayList<String>();
+				((ChunkedSongLinker) linker).linkChunks(song, chunks);
+			} else {
+				chunks = OutputDocumentPatcher.splitLines(linker.link(song));
+			}
+			reports = getReports(linker);
+		}
+		if (reports.length() > 0) {
+			chunks.add(reports);
+		}
+		return chunks;
+	}
+
+	/**
+	 * @return the reports chosen in the Output menu on the song the linker
+	 *         last linked, as comments; empty if there are none
+	 */
+	protected String getReports(SongLinker linker) {
+		if (!appendTimingReport || !(linker instanceof TargetProgramLinker)) {
+			return "";
+		}
+
+		TargetProgram program = ((TargetProgramLinker) linker)
+				.getLastProgram();
+		CycleCostModel costModel = ((TargetProgramLinker) linker)
+				.getCostModel();
+		StringBuilder builder = new StringBuilder();
+		String newline = System.getProperty("line.separator");
+		builder.append(newline);
+		try {
+			new CycleBudgetAnalyzer(costModel).analyze(program)
+					.append(builder, "// ", newline);
+		} catch (IOException e) {
+			// StringBuilder never throws this
+			throw new IllegalStateException(e);
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Shows a linked song with its reports. Outputs longer than
+	 * VIRTUAL_VIEW_CHARS go in a list that writes only the lines it shows,
+	 * rather than in the text area's document.
+	 */
+	protected void showOutput(SongLinker linker, Song song) {
+		if (!(linker instanceof BlockSongLinker)) {
+			showTextOutput(linkWithReports(linker, song));
+			return;
+		}
+
+		BlockSongLinker.Blocks blocks;
+		String reports;
+		List<String> written = new ArrayList<String>();
+		long length = 0;
+		synchronized (linker) {
+			blocks = ((BlockSongLinker) linker).openBlocks(song);
+			reports = getReports(linker);
+			// Write blocks only until the output is known to be too long for
+			// the text area; the list counts the rest
+			StringBuilder block = new StringBuilder();
+			try {
+				for (int i = 0; i < blocks.getCount()
+						&& length <= VIRTUAL_VIEW_CHARS; i++) {
+					blocks.append(i, block);
+					written.add(block.toString());
+					length += block.length();
+					block.setLength(0);
+				}
+			} catch (IOException e) {
+				// StringBuilder never throws this
+				throw new IllegalStateException(e);
+			}
+		}
+
+		if (length + reports.length() > VIRTUAL_VIEW_CHARS) {
+			showVirtualOutput(new LazyLinkedOutput(blocks, written, reports));
+			return;
+		}
+		StringBuilder text = new StringBuilder((int) length);
+		for (String block : written) {
+			text.append(block);
+		}
+		List<String> chunks = OutputDocumentPatcher.splitLines(text
+				.toString());
+		if (reports.length() > 0) {
+			chunks.add(reports);
+		}
+		showTextOutput(chunks);
+	}
+
+	protected void showTextOutput(List<String> chunks) {
+		if (virtualOutput != null) {
+			virtualOutput = null;
+			EventQueue.invokeLater(new Runnable() {
+
+				@Override
+				public void run() {
+					outputList.setModel(new DefaultListModel<String>());
+					outputScrollPane.setViewportView(outputTextArea);
+				}
+			});
+		}
+		outputPatcher.setChunks(chunks);
+	}
+
+	protected void showVirtualOutput(LazyLinkedOutput output) {
+		// Let the text area's copy go
+		outputPatcher.setChunks(new ArrayList<String>());
+		virtualOutput = output;
+		final LazyOutputListModel model = new LazyOutputListModel(output);
+		EventQueue.invokeLater(new Runnable() {
+
+			@Override
+			public void run() {
+				outputList.setModel(model);
+				if (outputScrollPane.getViewport().getView() != outputList) {
+					outputScrollPane.setViewportView(outputList);
+				}
+			}
+		});
+	}
+
+	protected void askForTargetClock() {
+		String answer = JOptionPane.showInputDialog(frame,
+				"Clock rate of the target, in MHz:",
+				String.valueOf(targetClockHz / 1000000.0));
+		if (answer == null) {
+			return;
+		}
+
+		long hz;
+		try {
+			hz = Math.round(Double.parseDouble(answer.trim()) * 1000000.0);
+		} catch (NumberFormatException e) {
+			showErrorMessage("\"" + answer + "\" is not a clock rate.");
+			return;
+		}
+		if (hz <= 0) {
+			showErrorMessage("The clock rate must be more than 0 MHz.");
+			return;
+		}
+
+		// Set on the current linker first, so the output thread sees both
+		// changes together
+		if (songLinker instanceof ClockedSongLinker) {
+			ClockedSongLinker clocked = (ClockedSongLinker) songLinker;
+			clocked.setTargetClock(clocked.getTargetClock().withClockHz(hz));
+		}
+		targetClockHz = hz;
+	}
+
+	protected void askForBitClock() {
+		String answer = JOptionPane.showInputDialog(frame,
+				"Bit clock of the bitstream output, in kHz:",
+				String.valueOf(bitClockHz / 1000.0));
+		if (answer == null) {
+			return;
+		}
+
+		long hz;
+		try {
+			hz = Math.round(Double.parseDouble(answer.trim()) * 1000.0);
+		} catch (NumberFormatException e) {
+			showErrorMessage("\"" + answer + "\" is not a bit clock.");
+			return;
+		}
+		if (hz < 8000 || hz > 100000000) {
+			showErrorMessage("The bit clock must be from 8 kHz to 100 MHz.");
+			return;
+		}
+
+		if (songLinker instanceof BitstreamSongLinker) {
+			((BitstreamSongLinker) songLinker).setBitClockHz(hz);
+		}
+		bitClockHz = hz;
+	}
+
+	protected void askForSampleRate() {
+		String answer = JOptionPane.showInputDialog(frame,
+				"Sample rate of the ADPCM output, in Hz:",
+				String.valueOf(adpcmSampleRate));
+		if (answer == null) {
+			return;
+		}
+
+		int rate;
+		try {
+			rate = Integer.parseInt(answer.trim());
+		} catch (NumberFormatException e) {
+			showErrorMessage("\"" + answer + "\" is not a sample rate.");
+			return;
+		}
+		if (rate < 1000 || rate > 48000) {
+			showErrorMessage("The sample rate must be from 1000 to 48000 Hz.");
+			return;
+		}
+
+		if (songLinker instanceof AdpcmSongLinker) {
+			((AdpcmSongLinker) songLinker).setSampleRate(rate);
+		}
+		adpcmSampleRate = rate;
+	}
+
+	protected void showPitchErrorReport() {
+		PitchErrorReport report = null;
+		if (songLinker instanceof ClockedSongLinker) {
+			report = ((ClockedSongLinker) songLinker)
+					.getLastPitchErrorReport();
+		}
+		if (report == null) {
+			JOptionPane.showMessageDialog(frame,
+					"This output does not count tones on a target clock.",
+					frame.getTitle(), JOptionPane.INFORMATION_MESSAGE);
+			return;
+		}
+
+		JTextArea reportArea = new JTextArea(report.toString());
+		reportArea.setFont(new Font("Monospaced", Font.PLAIN, 13));
+		reportArea.setEditable(false);
+		JScrollPane scrollPane = new JScrollPane(reportArea);
+		scrollPane.setPreferredSize(new Dimension(520, 320));
+		JOptionPane.showMessageDialog(frame, scrollPane, "Pitch Error",
+				JOptionPane.PLAIN_MESSAGE);
+	}
+
 	protected void closeProgram() {
 		askForSave();
 
@@ -725,6 +1406,182 @@ public class ToneScribe extends JFrame implements ClipboardOwner {
 		frame.dispose();
 	}
 
+	/**
+	 * Links the song straight into a file, without holding the output in
+	 * memory.
+	 */
+	protected void exportOutput() {
+		Song song = compileSong();
+		if (song == null || song.getErrors().size() > 0) {
+			statusBarLabel.setText("Cannot export; song has errors");
+			return;
+		}
+
+		FileDialog fd = new FileDialog(frame, "Export Output", FileDialog.SAVE);
+		fd.show();
+		String fileSelected = fd.getFile();
+		if (fileSelected == null) {
+			return;
+		}
+		File selectedFile = new File(fd.getDirectory() + fileSelected);
+
+		try {
+			FileChannel channel = new FileOutputStream(selectedFile)
+					.getChannel();
+			if (songLinker instanceof BinarySongLinker
+					&& selectedFile.getName().toLowerCase().endsWith(".bin")) {
+				// Raw bytes rather than source
+				try {
+					((BinarySongLinker) songLinker).linkBinary(song, channel);
+				} finally {
+					channel.close();
+				}
+			} else {
+				ChannelAppendable out = new ChannelAppendable(channel);
+				try {
+					songLinker.link(song, out);
+				} finally {
+					out.close();
+				}
+			}
+			statusBarLabel.setText("Exported " + selectedFile.getName());
+		} catch (IOException e) {
+			e.printStackTrace();
+			statusBarLabel.setText("Could not export "
+					+ selectedFile.getName());
+		} catch (IllegalArgumentException e) {
+			statusBarLabel.setText("Could not export "
+					+ selectedFile.getName() + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Saves the song as a Standard MIDI File.
+	 */
+	protected void exportMidi() {
+		Song song = compileSong();
+		if (song == null || song.getErrors().size() > 0) {
+			statusBarLabel.setText("Cannot export; song has errors");
+			return;
+		}
+
+		FileDialog fd = new FileDialog(frame, "Export MIDI", FileDialog.SAVE);
+		fd.show();
+		String fileSelected = fd.getFile();
+		if (fileSelected == null) {
+			return;
+		}
+		File selectedFile = new File(fd.getDirectory() + fileSelected);
+
+		try {
+			MidiFileExporter exporter = new MidiFileExporter();
+			exporter.export(song, selectedFile);
+			statusBarLabel.setText("Exported " + selectedFile.getName()
+					+ ", " + exporter.getLastEventCount() + " events");
+		} catch (IOException e) {
+			e.printStackTrace();
+			statusBarLabel.setText("Could not export "
+					+ selectedFile.getName());
+		} catch (IllegalArgumentException e) {
+			e.printStackTrace();
+			statusBarLabel.setText("Could not export "
+					+ selectedFile.getName() + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Reads a MIDI file's highest notes into a new tab table song.
+	 */
+	protected void importMidi() {
+		FileDialog fd = new FileDialog(frame, "Import MIDI", FileDialog.LOAD);
+		fd.show();
+		String fileSelected = fd.getFile();
+		if (fileSelected == null) {
+			return;
+		}
+		File selectedFile = new File(fd.getDirectory() + fileSelected);
+
+		Song song;
+		try {
+			song = new MidiSongCompiler().compile(selectedFile);
+		} catch (IOException e) {
+			e.printStackTrace();
+			statusBarLabel.setText("Cannot open " + selectedFile.getName());
+			return;
+		}
+		if (song.getErrors().size() > 0) {
+			statusBarLabel.setText("Cannot import " + selectedFile.getName()
+					+ ": " + song.getErrors().getFirst());
+			return;
+		}
+
+		askForSave();
+		resetOpenFile();
+		rdbtnmntmTabTable.setSelected(true);
+		changeCompiler(new TabTableSongCompiler());
+		editorTextArea.setText(new TabTableLinker().link(song));
+		editorTextArea.setCaretPosition(0);
+		statusBarLabel.setText("Imported " + selectedFile.getName() + ", "
+				+ song.getTones().size() + " notes and rests");
+	}
+
+	/**
+	 * Links the song for every built in output at once, each to its own file
+	 * named after the one chosen.
+	 */
+	protected void exportAllOutputs() {
+		Song song = compileSong();
+		if (song == null || song.getErrors().size() > 0) {
+			statusBarLabel.setText("Cannot export; song has errors");
+			return;
+		}
+
+		FileDialog fd = new FileDialog(frame, "Export All Outputs",
+				FileDialog.SAVE);
+		fd.show();
+		String fileSelected = fd.getFile();
+		if (fileSelected == null) {
+			return;
+		}
+		int dot = fileSelected.lastIndexOf('.');
+		String baseName = (dot > 0) ? fileSelected.substring(0, dot)
+				: fileSelected;
+
+		String[] suffixes = { "-generic.c", "-beep.c", "-ti.c",
+				"-ti-jump-table.c", "-ti-timer.c", "-tabs.txt",
+				"-note-table.c", "-phrases.c", "-bytecode.c", "-pdm.c",
+				"-pwm.c", "-adpcm.c" };
+		SongLinker[] linkers = { new GenericSongLinker(),
+				new BeepSongLinker(), new PreciseSongLinker(),
+				new PreciseSongLinker(true), new TimerPwmSongLinker(),
+				new TabTableLinker(), new NoteTableSongLinker(),
+				new PhraseSongLinker(), new BytecodeSongLinker(),
+				new BitstreamSongLinker(false), new BitstreamSongLinker(true),
+				new AdpcmSongLinker() };
+		ArrayList<SongLinker> linkerList = new ArrayList<SongLinker>();
+		ArrayList<File> files = new ArrayList<File>();
+		for (int i = 0; i < linkers.length; i++) {
+			configureLinker(linkers[i]);
+			linkerList.add(linkers[i]);
+			files.add(new File(fd.getDirectory() + baseName + suffixes[i]));
+		}
+
+		long startTime = System.nanoTime();
+		try {
+			new ParallelLinker().linkAll(song, linkerList, files);
+			statusBarLabel.setText("Exported " + files.size() + " outputs in "
+					+ (System.nanoTime() - startTime) / 1000000 + " ms");
+		} catch (IOException e) {
+			e.printStackTrace();
+			statusBarLabel.setText("Could not export all outputs");
+		} catch (IllegalArgumentException e) {
+			statusBarLabel.setText("Could not export all outputs: "
+					+ e.getMessage());
+		} catch (InterruptedException e) {
+			statusBarLabel.setText("Export interrupted");
+		}
+	}
+
 	protected void saveAs() {
 		openFile = null;
 		updateWindowTitle();
@@ -909,6 +1766,87 @@ public class ToneScribe extends JFrame implements ClipboardOwner {
 		return compileSong(false);
 	}
 
+	/**
+	 * Plays a song with the chosen preview player, and shows what starting it
+	 * cost.
+	 */
+	protected void playPreview(Song song) {
+		songPlayer.stopSongs();
+		midiSongPlayer.stopSongs();
+		previewPlayer.playSong(song);
+		statusBarLabel.setText("Preview started in "
+				+ (previewPlayer.getLastStartLatencyNanos() / 1000000)
+				+ " ms, using "
+				+ (previewPlayer.getLastMemoryBytes() / 1024) + " KB");
+	}
+
+	/**
+	 * Plays a song through the target emulator: as the TI output would sound,
+	 * delays, integer math and loop overhead included. Uses the current
+	 * output's program if it has one, or else the complete TI code's.
+	 */
+	protected void playOnTarget(Song song) {
+		long startTime = System.nanoTime();
+		SongLinker linker = songLinker;
+		if (!(linker instanceof TargetProgramLinker)) {
+			linker = new PreciseSongLinker();
+			configureLinker(linker);
+		}
+		TargetProgram program;
+		CycleCostModel costModel;
+		// The output thread links with the same linker, so hold it until the
+		// program is read
+		synchronized (linker) {
+			linker.link(song);
+			program = ((TargetProgramLinker) linker).getLastProgram();
+			costModel = ((TargetProgramLinker) linker).getCostModel();
+		}
+
+		AudioFormat format = songPlayer.getAudioFormat();
+		byte[] pcm = new TargetEmulator(costModel,
+				(int) format.getSampleRate(), format.getChannels(),
+				songPlayer.getVolume()).render(program);
+		long renderNanos = System.nanoTime() - startTime;
+
+		songPlayer.stopSongs();
+		midiSongPlayer.stopSongs();
+		songPlayer.playPcm(pcm);
+		statusBarLabel.setText("Emulated " + program.getSteps().size()
+				+ " steps in " + (renderNanos / 1000000) + " ms, using "
+				+ (pcm.length / 1024) + " KB");
+	}
+
+	/**
+	 * Loops the selected part of the song, or all of it if nothing is
+	 * selected. The whole song is compiled so that the loop can be moved by
+	 * changing the selection without re-rendering all of it.
+	 */
+	protected void loopSelection() {
+		String text = editorTextArea.getText();
+		Song song = songCompiler.compile(text, 0, text.length());
+		if (song == null || song.getErrors().size() > 0) {
+			return;
+		}
+
+		double startSec = 0;
+		double endSec = 0;
+		if (editorTextArea.getSelectionStart() != editorTextArea
+				.getSelectionEnd()) {
+			// The selection's bounds in time are the lengths of the song up
+			// to each end of it
+			Song beforeStart = songCompiler.compile(text, 0,
+					editorTextArea.getSelectionStart());
+			Song beforeEnd = songCompiler.compile(text, 0,
+					editorTextArea.getSelectionEnd());
+			if (beforeStart != null && beforeEnd != null) {
+				startSec = beforeStart.getCurrLengthSec();
+				endSec = beforeEnd.getCurrLengthSec();
+			}
+		}
+		midiSongPlayer.stopSongs();
+		songPlayer.playLoop(song, startSec, endSec);
+	}
+
 	protected Song compileSongFromCursor() {
 		return compileSong(true);
 	}
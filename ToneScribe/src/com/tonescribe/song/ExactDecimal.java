@@ -0,0 +1,230 @@
+/**
+ * Part of ToneScribe
+ * Copyright (c) 2014, William Karnavas
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.tonescribe.song;
+
+/**
+ * Exact conversions between doubles and decimals written as digits / 10^places,
+ * with digits a long. The text formats ToneScribe reads and writes use these so
+ * that every number comes back as exactly the double it was written from,
+ * without going through Strings or BigDecimal.
+ * 
+ */
+public class ExactDecimal {
+	/**
+	 * Most decimal places the conversions take; every power of ten to here is
+	 * exact as a double
+	 */
+	public static final int MAX_PLACES = 22;
+
+	private static final double[] POWERS = new double[MAX_PLACES + 1];
+	private static final long[] FIVES = new long[MAX_PLACES + 1];
+	static {
+		POWERS[0] = 1;
+		FIVES[0] = 1;
+		for (int i = 1; i <= MAX_PLACES; i++) {
+			POWERS[i] = POWERS[i - 1] * 10;
+			FIVES[i] = FIVES[i - 1] * 5;
+		}
+	}
+
+	// Below this every long is exact as a double
+	private static final long EXACT_LIMIT = 1L << 53;
+
+	/**
+	 * @return 10^places as a double, exactly
+	 */
+	public static double getPower(int places) {
+		return POWERS[places];
+	}
+
+	/**
+	 * @return the double nearest digits / 10^places, ties to even, just as
+	 *         Double.parseDouble() would give for the same decimal
+	 */
+	public static double toDouble(long digits, int places) {
+		if (digits < 0 || places < 0 || places > MAX_PLACES) {
+			throw new IllegalArgumentException("Cannot convert " + digits
+					+ " / 10^" + places);
+		}
+		double value = digits / POWERS[places];
+		if (digits < EXACT_LIMIT) {
+			// Both are exact, so the division rounds only once
+			return value;
+		}
+
+		// The long was rounded before dividing, so the result may be a
+		// double or two out: step until the decimal is nearer than either
+		// neighbour's halfway point
+		while (true) {
+			double up = Math.nextUp(value);
+			int side = compareToHalfway(digits, places, value);
+			if (side > 0 || (side == 0 && isOdd(value))) {
+				value = up;
+				continue;
+			}
+			double down = Math.nextAfter(value, Double.NEGATIVE_INFINITY);
+			side = compareToHalfway(digits, places, down);
+			if (side < 0 || (side == 0 && isOdd(value))) {
+				value = down;
+				continue;
+			}
+			return value;
+		}
+	}
+
+	/**
+	 * @return the long nearest value * 10^places, or -1 if it is negative or
+	 *         too big for a long
+	 */
+	public static long getDigits(double value, int places) {
+		if (!(value >= 0) || places < 0 || places > MAX_PLACES) {
+			return -1;
+		}
+		if (value * POWERS[places] >= 9.2e18) {
+			return -1;
+		}
+
+		// value * 10^places = mantissa * 5^places * 2^(exponent + places)
+		long bits = Double.doubleToRawLongBits(value);
+		long mantissa = getMantissa(bits);
+		long high = multiplyHigh(mantissa, FIVES[places]);
+		long low = mantissa * FIVES[places];
+		int shift = getExponent(bits) + places;
+		if (shift >= 0) {
+			// Fits, since the scaled value did
+			return low << shift;
+		}
+		int right = -shift;
+		if (right >= 128) {
+			return 0;
+		}
+		// Round half up on the last bit shifted out
+		return shiftRight(high, low, right)
+				+ (shiftRight(high, low, right - 1) & 1);
+	}
+
+	/**
+	 * @return the sign of digits / 10^places minus the point halfway between
+	 *         value and the next double up
+	 */
+	private static int compareToHalfway(long digits, int places, double value) {
+		// halfway = (2 * mantissa + 1) * 2^(exponent - 1), so compare digits
+		// with (2 * mantissa + 1) * 5^places * 2^(exponent - 1 + places)
+		long bits = Double.doubleToRawLongBits(value);
+		long odd = 2 * getMantissa(bits) + 1;
+		long halfwayHigh = multiplyHigh(odd, FIVES[places]);
+		long halfwayLow = odd * FIVES[places];
+		int shift = getExponent(bits) - 1 + places;
+
+		if (shift >= 0) {
+			// digits is below 2^63, so a halfway point at or above that is
+			// bigger
+			if (shift >= 63 || halfwayHigh != 0
+					|| Long.numberOfLeadingZeros(halfwayLow) <= shift) {
+				return -1;
+			}
+			return compareUnsigned(digits, halfwayLow << shift);
+		}
+
+		// Shift digits left instead, into 128 bits
+		int left = -shift;
+		if (left > 64 + Long.numberOfLeadingZeros(digits)) {
+			// The halfway point is below 2^106, and digits shifted this far
+			// is above 2^128
+			return 1;
+		}
+		long high;
+		long low;
+		if (left >= 64) {
+			high = digits << (left - 64);
+			low = 0;
+		} else {
+			high = (left == 0) ? 0 : digits >>> (64 - left);
+			low = digits << left;
+		}
+		if (high != halfwayHigh) {
+			return compareUnsigned(high, halfwayHigh);
+		}
+		return compareUnsigned(low, halfwayLow);
+	}
+
+	private static long getMantissa(long bits) {
+		long fraction = bits & ((1L << 52) - 1);
+		if (((bits >>> 52) & 0x7ff) == 0) {
+			return fraction;
+		}
+		return fraction | (1L << 52);
+	}
+
+	private static int getExponent(long bits) {
+		int biased = (int) ((bits >>> 52) & 0x7ff);
+		if (biased == 0) {
+			return -1074;
+		}
+		return biased - 1075;
+	}
+
+	private static boolean isOdd(double value) {
+		return (Double.doubleToRawLongBits(value) & 1) != 0;
+	}
+
+	/**
+	 * @return the top 64 bits of the 128 bit product of two longs below 2^63;
+	 *         the bottom 64 are just a * b
+	 */
+	private static long multiplyHigh(long a, long b) {
+		long aHigh = a >>> 32;
+		long aLow = a & 0xffffffffL;
+		long bHigh = b >>> 32;
+		long bLow = b & 0xffffffffL;
+
+		long middle1 = aHigh * bLow;
+		long middle2 = aLow * bHigh;
+		long carry = (((aLow * bLow) >>> 32) + (middle1 & 0xffffffffL) + (middle2 & 0xffffffffL)) >>> 32;
+		return aHigh * bHigh + (middle1 >>> 32) + (middle2 >>> 32) + carry;
+	}
+
+	private static long shiftRight(long high, long low, int shift) {
+		if (shift >= 64) {
+			return high >>> (shift - 64);
+		}
+		if (shift == 0) {
+			return low;
+		}
+		return (low >>> shift) | (high << (64 - shift));
+	}
+
+	private static int compareUnsigned(long a, long b) {
+		a += Long.MIN_VALUE;
+		b += Long.MIN_VALUE;
+		return (a < b) ? -1 : ((a == b) ? 0 : 1);
+	}
+}
@@ -0,0 +1,152 @@
+/**
+ * Part of ToneScribe
+ * Copyright (c) 2014, William Karnavas
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.tonescribe.song;
+
+import java.util.HashMap;
+
+/**
+ * The values linkers write, worked out once for the notes and rests in a
+ * song's selection: whole hz, ms and us, and cycles at any clock rate. A song
+ * keeps its plan until it is changed, so every linker the same song is given
+ * to shares one.
+ * 
+ */
+public class LinkPlan {
+	private final SongEvent[] events;
+	private final double[] pitches;
+	private final int[] freqs;
+	private final double[] seconds;
+	private final int[] ms;
+	private final long[] us;
+
+	private final HashMap<Long, long[]> cycles = new HashMap<Long, long[]>();
+
+	public LinkPlan(Song song) {
+		int count = 0;
+		for (SongEvent e : song.getTones()) {
+			if (isPlanned(song, e)) {
+				count++;
+			}
+		}
+
+		events = new SongEvent[count];
+		pitches = new double[count];
+		freqs = new int[count];
+		seconds = new double[count];
+		ms = new int[count];
+		us = new long[count];
+		int i = 0;
+		for (SongEvent e : song.getTones()) {
+			if (!isPlanned(song, e)) {
+				continue;
+			}
+			events[i] = e;
+			if (e instanceof ToneEvent) {
+				pitches[i] = ((ToneEvent) e).getPitch();
+				freqs[i] = (int) pitches[i];
+			}
+			seconds[i] = e.getDurationSeconds();
+			ms[i] = (int) (seconds[i] * 1000.0);
+			us[i] = Math.round(seconds[i] * 1000000.0);
+			i++;
+		}
+	}
+
+	/**
+	 * @return notes and rests in the plan
+	 */
+	public int getCount() {
+		return events.length;
+	}
+
+	public SongEvent getEvent(int i) {
+		return events[i];
+	}
+
+	public boolean isTone(int i) {
+		return events[i] instanceof ToneEvent;
+	}
+
+	/**
+	 * @return the exact pitch of a note; 0 for a rest
+	 */
+	public double getPitch(int i) {
+		return pitches[i];
+	}
+
+	/**
+	 * @return the pitch of a note in whole hz, as beep() takes it; 0 for a
+	 *         rest
+	 */
+	public int getFreq(int i) {
+		return freqs[i];
+	}
+
+	public double getSeconds(int i) {
+		return seconds[i];
+	}
+
+	/**
+	 * @return length in whole ms, rounded down
+	 */
+	public int getMs(int i) {
+		return ms[i];
+	}
+
+	/**
+	 * @return length in whole us, rounded
+	 */
+	public long getUs(int i) {
+		return us[i];
+	}
+
+	/**
+	 * @return length of every event in cycles of a clock, rounded; worked out
+	 *         once per clock rate. Do not change the array.
+	 */
+	public synchronized long[] getCycles(long clockHz) {
+		long[] eventCycles = cycles.get(clockHz);
+		if (eventCycles == null) {
+			eventCycles = new long[events.length];
+			for (int i = 0; i < events.length; i++) {
+				eventCycles[i] = Math.round(seconds[i] * clockHz);
+			}
+			cycles.put(clockHz, eventCycles);
+		}
+		return eventCycles;
+	}
+
+	private static boolean isPlanned(Song song, SongEvent e) {
+		return (e instanceof ToneEvent || e instanceof RestEvent)
+				&& e.getTimeSeconds() >= song.getSelectionStartTimeSec()
+				&& e.getTimeSeconds() <= song.getSelectionEndTimeSec();
+	}
+}
@@ -0,0 +1,270 @@
+/**
+ * Part of ToneScribe
+ * Copyright (c) 2014, William Karnavas
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.tonescribe.song;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes songs as format 0 Standard MIDI Files, with the MIDI preview's
+ * instrument and pitch bends. Notes keep the song's own times, without the
+ * gaps the preview leaves between them, so a file read back with
+ * MidiSongCompiler gives the same notes. The tempo is fixed, so every note's
+ * start is simply its time in seconds times TICKS_PER_SECOND.
+ * Events are encoded straight into one buffer that is written out whenever
+ * it fills, so a song of any length is written in the same memory.
+ * 
+ */
+public class MidiFileExporter {
+	/**
+	 * Ticks per quarter note
+	 */
+	public static final int DIVISION = 960;
+	/**
+	 * 120 BPM
+	 */
+	public static final int TEMPO_US_PER_QUARTER = 500000;
+	public static final double TICKS_PER_SECOND = DIVISION * 1000000.0
+			/ TEMPO_US_PER_QUARTER;
+
+	private static final int BUFFER_BYTES = 1 << 16;
+	// Most bytes one event takes: a 4 byte delta and the tempo's 6 bytes
+	private static final int MAX_EVENT_BYTES = 10;
+	// Biggest delta a variable length quantity holds
+	private static final long MAX_DELTA = 0x0FFFFFFF;
+
+	private static final int NOTE_ON = 0x90;
+	private static final int PROGRAM_CHANGE = 0xC0;
+	private static final int PITCH_BEND = 0xE0;
+
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+	// Where the buffer goes when full; null while only counting bytes
+	private WritableByteChannel out;
+	private long bytesWritten;
+	private long lastTick;
+	private int lastStatus;
+
+	private long lastBytes = 0;
+	private int lastEventCount = 0;
+
+	public void export(Song song, File file) throws IOException {
+		FileChannel channel = new FileOutputStream(file).getChannel();
+		try {
+			export(song, channel);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Writes the notes in the song's selection as a MIDI file.
+	 */
+	public void export(Song song, WritableByteChannel channel)
+			throws IOException {
+		LinkPlan plan = song.getLinkPlan();
+
+		// The track's length comes before it, so count it first, without
+		// writing anything
+		out = null;
+		buffer.clear();
+		bytesWritten = 0;
+		long trackBytes = writeTrack(plan);
+
+		out = channel;
+		buffer.clear();
+		bytesWritten = 0;
+		buffer.put((byte) 'M').put((byte) 'T').put((byte) 'h')
+				.put((byte) 'd');
+		buffer.putInt(6);
+		// Format 0, one track
+		buffer.putShort((short) 0);
+		buffer.putShort((short) 1);
+		buffer.putShort((short) DIVISION);
+		buffer.put((byte) 'M').put((byte) 'T').put((byte) 'r')
+				.put((byte) 'k');
+		buffer.putInt((int) trackBytes);
+		long headerBytes = buffer.position();
+		lastEventCount = 0;
+		writeTrack(plan);
+		flush();
+		lastBytes = headerBytes + trackBytes;
+		out = null;
+	}
+
+	/**
+	 * @return size of the last file written, in bytes
+	 */
+	public long getLastBytes() {
+		return lastBytes;
+	}
+
+	/**
+	 * @return MIDI events in the last file written, meta events included
+	 */
+	public int getLastEventCount() {
+		return lastEventCount;
+	}
+
+	/**
+	 * Writes or counts the track's events.
+	 * 
+	 * @return bytes in the track
+	 */
+	private long writeTrack(LinkPlan plan) throws IOException {
+		long start = bytesWritten + buffer.position();
+		lastTick = 0;
+		lastStatus = 0;
+
+		// Tempo, then the preview's instrument
+		writeDelta(0);
+		putByte(0xFF).putByte(0x51).putByte(0x03);
+		putByte(TEMPO_US_PER_QUARTER >> 16)
+				.putByte(TEMPO_US_PER_QUARTER >> 8)
+				.putByte(TEMPO_US_PER_QUARTER);
+		lastEventCount++;
+		writeEvent(0, PROGRAM_CHANGE | MidiSongPlayer.CHANNEL,
+				MidiSongPlayer.PROGRAM, -1);
+
+		// Times start at the first note in the selection
+		double firstSec = (plan.getCount() > 0) ? plan.getEvent(0)
+				.getTimeSeconds() : 0;
+		int lastBend = MidiPitch.BEND_CENTER;
+		for (int i = 0; i < plan.getCount(); i++) {
+			if (!plan.isTone(i)) {
+				continue;
+			}
+			double freq = plan.getPitch(i);
+			int note = MidiPitch.getNote(freq);
+			int bend = MidiPitch.getPitchBend(freq, note);
+			double startSec = plan.getEvent(i).getTimeSeconds() - firstSec;
+			long onTick = Math.round(startSec * TICKS_PER_SECOND);
+			long offTick = Math.round((startSec + plan.getSeconds(i))
+					* TICKS_PER_SECOND);
+
+			if (bend != lastBend) {
+				writeEvent(onTick, PITCH_BEND | MidiSongPlayer.CHANNEL,
+						bend & 0x7F, bend >> 7);
+				lastBend = bend;
+			}
+			writeEvent(onTick, NOTE_ON | MidiSongPlayer.CHANNEL, note,
+					MidiSongPlayer.VELOCITY);
+			// A note on with no velocity is a note off, and shares the
+			// running status
+			writeEvent(offTick, NOTE_ON | MidiSongPlayer.CHANNEL, note, 0);
+		}
+
+		// End of track at the end of the selection, so a rest there is kept
+		long endTick = lastTick;
+		if (plan.getCount() > 0) {
+			int last = plan.getCount() - 1;
+			endTick = Math.round((plan.getEvent(last).getTimeSeconds()
+					+ plan.getSeconds(last) - firstSec)
+					* TICKS_PER_SECOND);
+		}
+		writeDelta(endTick);
+		putByte(0xFF).putByte(0x2F).putByte(0x00);
+		lastEventCount++;
+
+		return bytesWritten + buffer.position() - start;
+	}
+
+	/**
+	 * Writes a channel event, leaving out its status byte when it is the
+	 * same as the last one's.
+	 * 
+	 * @param data2
+	 *            -1 for events with one data byte
+	 */
+	private void writeEvent(long tick, int status, int data1, int data2)
+			throws IOException {
+		writeDelta(tick);
+		if (status != lastStatus) {
+			putByte(status);
+			lastStatus = status;
+		}
+		putByte(data1);
+		if (data2 >= 0) {
+			putByte(data2);
+		}
+		lastEventCount++;
+	}
+
+	/**
+	 * Writes the ticks since the last event as a variable length quantity:
+	 * seven bits a byte, high bits first, every byte but the last with its
+	 * top bit set.
+	 */
+	private void writeDelta(long tick) throws IOException {
+		if (buffer.remaining() < MAX_EVENT_BYTES) {
+			flush();
+		}
+		// Rounding can put an event a tick before the one it follows
+		long delta = Math.max(0, tick - lastTick);
+		if (delta > MAX_DELTA) {
+			throw new IllegalArgumentException(
+					"Gap between notes too long for a MIDI file");
+		}
+		lastTick += delta;
+
+		int shift = 21;
+		while (shift > 0 && (delta >> shift) == 0) {
+			shift -= 7;
+		}
+		for (; shift > 0; shift -= 7) {
+			buffer.put((byte) (0x80 | ((delta >> shift) & 0x7F)));
+		}
+		buffer.put((byte) (delta & 0x7F));
+	}
+
+	private MidiFileExporter putByte(int value) {
+		buffer.put((byte) value);
+		return this;
+	}
+
+	/**
+	 * Writes out what is in the buffer, or only counts it when there is
+	 * nowhere to write it.
+	 */
+	private void flush() throws IOException {
+		bytesWritten += buffer.position();
+		if (out != null) {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				out.write(buffer);
+			}
+		}
+		buffer.clear();
+	}
+}
@@ -0,0 +1,71 @@
+/**
+ * Part of ToneScribe
+ * Copyright (c) 2014, William Karnavas
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.tonescribe.song;
+
+/**
+ * Converts frequencies to MIDI note numbers, with the pitch bend needed to
+ * reach frequencies between notes. Note numbers are the same as the note
+ * values given to Song.addTone().
+ * 
+ */
+public class MidiPitch {
+	/**
+	 * Semitones a full pitch bend moves a note; the General MIDI default
+	 */
+	public static final int BEND_RANGE_SEMITONES = 2;
+	public static final int BEND_CENTER = 8192;
+
+	/**
+	 * @return fractional note number of a frequency
+	 */
+	public static double getNoteValue(double freq) {
+		return 12.0 * Math.log(freq / Song.getNoteFreq(0)) / Math.log(2.0);
+	}
+
+	/**
+	 * @return nearest MIDI note to a frequency, clamped to 0-127
+	 */
+	public static int getNote(double freq) {
+		long note = Math.round(getNoteValue(freq));
+		return (int) Math.max(0, Math.min(127, note));
+	}
+
+	/**
+	 * @return the 14 bit pitch bend that moves the given note to a frequency,
+	 *         clamped to the bend range
+	 */
+	public static int getPitchBend(double freq, int note) {
+		double semitones = getNoteValue(freq) - note;
+		long bend = BEND_CENTER
+				+ Math.round(semitones * BEND_CENTER / BEND_RANGE_SEMITONES);
+		return (int) Math.max(0, Math.min(16383, bend));
+	}
+}
@@ -0,0 +1,184 @@
+/**
+ * Part of ToneScribe
+ * Copyright (c) 2014, William Karnavas
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.tonescribe.song;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.Sequencer;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Synthesizer;
+import javax.sound.midi.Track;
+
+import com.tonescribe.ToneScribe;
+
+/**
+ * Previews songs by converting them to a MIDI sequence and playing it on the
+ * JDK's software synthesizer, instead of rendering them to PCM. Starting a
+ * preview costs a few bytes per note rather than a buffer the length of the
+ * song.
+ * 
+ */
+public class MidiSongPlayer implements PreviewPlayer {
+	/**
+	 * SMPTE 25 fps with 40 ticks a frame is one tick per millisecond
+	 */
+	private static final float DIVISION_TYPE = Sequence.SMPTE_25;
+	private static final int RESOLUTION = 40;
+	private static final double TICKS_PER_SECOND = 1000.0;
+
+	/**
+	 * General MIDI "Lead 1 (square)"
+	 */
+	static final int PROGRAM = 80;
+	static final int CHANNEL = 0;
+	static final int VELOCITY = 100;
+
+	/**
+	 * Rough size of one MidiEvent with its ShortMessage on the heap
+	 */
+	private static final int BYTES_PER_EVENT = 80;
+
+	private Synthesizer synthesizer;
+	private Sequencer sequencer;
+
+	private long lastStartLatencyNanos = 0;
+	private long lastMemoryBytes = 0;
+
+	@Override
+	public void playSong(Song song) {
+		long startTime = System.nanoTime();
+		try {
+			open();
+			sequencer.stop();
+			Sequence sequence = toSequence(song);
+			sequencer.setSequence(sequence);
+			sequencer.setTickPosition(0);
+			sequencer.start();
+
+			lastStartLatencyNanos = System.nanoTime() - startTime;
+			lastMemoryBytes = (long) sequence.getTracks()[0].size()
+					* BYTES_PER_EVENT;
+		} catch (MidiUnavailableException e) {
+			e.printStackTrace();
+			ToneScribe.showErrorMessage("Cannot play preview.");
+		} catch (InvalidMidiDataException e) {
+			e.printStackTrace();
+			ToneScribe.showErrorMessage("Cannot play preview.");
+		}
+	}
+
+	@Override
+	public void stopSongs() {
+		if (sequencer != null && sequencer.isOpen()) {
+			sequencer.stop();
+			synthesizer.getChannels()[CHANNEL].allNotesOff();
+		}
+	}
+
+	/**
+	 * Releases the synthesizer and sequencer; they are opened again by the
+	 * next preview.
+	 */
+	public void close() {
+		if (sequencer != null) {
+			sequencer.close();
+			sequencer = null;
+		}
+		if (synthesizer != null) {
+			synthesizer.close();
+			synthesizer = null;
+		}
+	}
+
+	@Override
+	public long getLastStartLatencyNanos() {
+		return lastStartLatencyNanos;
+	}
+
+	@Override
+	public long getLastMemoryBytes() {
+		return lastMemoryBytes;
+	}
+
+	private void open() throws MidiUnavailableException {
+		if (sequencer != null && sequencer.isOpen()) {
+			return;
+		}
+		synthesizer = MidiSystem.getSynthesizer();
+		synthesizer.open();
+		sequencer = MidiSystem.getSequencer(false);
+		sequencer.open();
+		sequencer.getTransmitter().setReceiver(synthesizer.getReceiver());
+	}
+
+	/**
+	 * Converts a song to a single-track sequence, one tick per millisecond.
+	 * Notes are timed as SongPlayer times them, and bent to pitches between
+	 * MIDI notes.
+	 */
+	public static Sequence toSequence(Song song)
+			throws InvalidMidiDataException {
+		Sequence sequence = new Sequence(DIVISION_TYPE, RESOLUTION);
+		Track track = sequence.createTrack();
+		track.add(new MidiEvent(new ShortMessage(ShortMessage.PROGRAM_CHANGE,
+				CHANNEL, PROGRAM, 0), 0));
+
+		int lastBend = MidiPitch.BEND_CENTER;
+		for (SongEvent e : song.getTones()) {
+			if (!(e instanceof ToneEvent)) {
+				continue;
+			}
+			double freq = ((ToneEvent) e).getPitch();
+			int note = MidiPitch.getNote(freq);
+			int bend = MidiPitch.getPitchBend(freq, note);
+			double startSec = e.getTimeSeconds()
+					* SongRenderer.EVENT_TIME_SCALE;
+			long onTick = Math.round(startSec * TICKS_PER_SECOND);
+			long offTick = Math.round((startSec + e.getDurationSeconds())
+					* TICKS_PER_SECOND);
+
+			if (bend != lastBend) {
+				track.add(new MidiEvent(new ShortMessage(
+						ShortMessage.PITCH_BEND, CHANNEL, bend & 0x7F,
+						bend >> 7), onTick));
+				lastBend = bend;
+			}
+			track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON,
+					CHANNEL, note, VELOCITY), onTick));
+			track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF,
+					CHANNEL, note, 0), offTick));
+		}
+		return sequence;
+	}
+}
@@ -0,0 +1,164 @@
+/**
+ * Part of ToneScribe
+ * Copyright (c) 2014, William Karnavas
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.tonescribe.song;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers rendered audio in fixed-length segments, so that rendering a song
+ * again after a small edit only synthesizes the segments whose tones changed.
+ * A segment is looked up by a description of the tones sounding in it (see
+ * SongRenderer.describe()), so a tone that crosses into a neighbouring segment
+ * invalidates that segment too, and identical passages share cached audio.<br>
+ * <br>
+ * A cache holds audio for one channel count; use one cache per output format.
+ * 
+ */
+public class RenderCache {
+	/**
+	 * Half a second at 44100 Hz
+	 */
+	public static final int DEFAULT_SEGMENT_FRAMES = 22050;
+	public static final int DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+
+	private final int segmentFrames;
+	private final int channels;
+	private final LinkedHashMap<SegmentKey, byte[]> segments;
+
+	private long hits = 0;
+	private long misses = 0;
+
+	public RenderCache(int channels) {
+		this(channels, DEFAULT_SEGMENT_FRAMES, DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 * @param maxBytes
+	 *            the least recently used segments are forgotten past this
+	 */
+	public RenderCache(int channels, int segmentFrames, int maxBytes) {
+		this.channels = channels;
+		this.segmentFrames = segmentFrames;
+		final int maxSegments = Math.max(1, maxBytes
+				/ (segmentFrames * channels));
+		segments = new LinkedHashMap<SegmentKey, byte[]>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<SegmentKey, byte[]> e) {
+				return size() > maxSegments;
+			}
+		};
+	}
+
+	/**
+	 * Renders frames [fromFrame, toFrame) of a song into a buffer, as
+	 * SongRenderer.render() does, synthesizing only segments not already in
+	 * the cache.
+	 */
+	public synchronized void render(SongRenderer renderer, byte[] buffer,
+			int bufferOffsetFrames, int fromFrame, int toFrame) {
+		int segment = fromFrame / segmentFrames;
+		while (segment * segmentFrames < toFrame) {
+			int segmentStart = segment * segmentFrames;
+			int segmentEnd = segmentStart + segmentFrames;
+			int start = Math.max(fromFrame, segmentStart);
+			int end = Math.min(toFrame, segmentEnd);
+			int destination = (bufferOffsetFrames + start - fromFrame)
+					* channels;
+
+			long[] description = renderer.describe(segmentStart, segmentEnd);
+			if (description == null) {
+				// Silence
+				Arrays.fill(buffer, destination, destination + (end - start)
+						* channels, (byte) 0);
+			} else {
+				SegmentKey key = new SegmentKey(description);
+				byte[] audio = segments.get(key);
+				if (audio == null) {
+					misses++;
+					audio = new byte[segmentFrames * channels];
+					renderer.render(audio, 0, channels, segmentStart,
+							segmentEnd);
+					segments.put(key, audio);
+				} else {
+					hits++;
+				}
+				System.arraycopy(audio, (start - segmentStart) * channels,
+						buffer, destination, (end - start) * channels);
+			}
+
+			segment++;
+		}
+	}
+
+	public synchronized void clear() {
+		segments.clear();
+	}
+
+	/**
+	 * @return segments found in the cache since it was created
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return segments that had to be synthesized since the cache was created
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	private static class SegmentKey {
+		private final long[] description;
+		private final int hash;
+
+		public SegmentKey(long[] description) {
+			this.description = description;
+			hash = Arrays.hashCode(description);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof SegmentKey
+					&& Arrays.equals(description,
+							((SegmentKey) o).description);
+		}
+	}
+}
@@ -47,6 +47,9 @@ public class Song {
 	private double selectionStartTimeSec = 0;
 	private double selectionEndTimeSec = Double.MAX_VALUE;
 
+	// Built when first asked for; dropped whenever the song changes
+	private LinkPlan linkPlan = null;
+
 	public Song() {
 
 	}
@@ -57,6 +60,7 @@ public class Song {
 
 	public void setTones(LinkedList<SongEvent> tones) {
 		this.tones = tones;
+		invalidateLinkPlan();
 	}
 
 	public LinkedList<String> getErrors() {
@@ -104,6 +108,7 @@ public class Song {
 
 	private void incrementLength(double noteDurationSec) {
 		currLengthSec += noteDurationSec;
+		invalidateLinkPlan();
 		// System.out.println (currLengthSec);
 	}
 
@@ -125,6 +130,7 @@ public class Song {
 
 	public void setSelectionStartTimeSec(double selectionStartTimeSec) {
 		this.selectionStartTimeSec = selectionStartTimeSec;
+		invalidateLinkPlan();
 	}
 
 	public double getSelectionEndTimeSec() {
@@ -133,5 +139,23 @@ public class Song {
 
 	public void setSelectionEndTimeSec(double selectionEndTimeSec) {
 		this.selectionEndTimeSec = selectionEndTimeSec;
+		invalidateLinkPlan();
+	}
+
+	/**
+	 * @return the values linkers write for this song, worked out the first
+	 *         time they are asked for and shared until the song is changed.
+	 *         Changes made to the list from getTones() directly are not seen;
+	 *         call invalidateLinkPlan() after them.
+	 */
+	public synchronized LinkPlan getLinkPlan() {
+		if (linkPlan == null) {
+			linkPlan = new LinkPlan(this);
+		}
+		return linkPlan;
+	}
+
+	public synchronized void invalidateLinkPlan() {
+		linkPlan = null;
 	}
 }
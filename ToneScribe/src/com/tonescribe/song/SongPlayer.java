@@ -33,73 +33,203 @@ package com.tonescribe.song;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
-import java.util.LinkedList;
 
 import javax.sound.sampled.AudioFileFormat;
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
-import javax.sound.sampled.Clip;
-import javax.sound.sampled.LineEvent;
-import javax.sound.sampled.LineEvent.Type;
-import javax.sound.sampled.LineListener;
-import javax.sound.sampled.LineUnavailableException;
-import javax.swing.JOptionPane;
 
 import com.tonescribe.ToneScribe;
+import com.tonescribe.song.playback.AudioSink;
+import com.tonescribe.song.playback.JavaSoundAudioSink;
+import com.tonescribe.song.playback.PlaybackEngine;
 
 /**
  * Takes a song and converts it to sound over the speakers and savable sound
  * files.
  * 
  */
-public class SongPlayer {
+public class SongPlayer implements PreviewPlayer {
 	private static final int SAMPLE_RATE = 44100;
 
 	private static final AudioFormat AUDIO_FORMAT = new AudioFormat(
 			AudioFormat.Encoding.PCM_SIGNED, SAMPLE_RATE, 8, 2, 2, SAMPLE_RATE,
 			true);
 
-	private boolean lowWave = false;
-
 	private int volume = 127 / 2;
 
-	protected LinkedList<Clip> clips = new LinkedList<Clip>();
+	protected PlaybackEngine engine;
+
+	protected RenderCache renderCache = new RenderCache(
+			AUDIO_FORMAT.getChannels());
+
+	// The loop region being played, kept so that moving its bounds only
+	// renders the frames that were not already in it
+	private boolean looping = false;
+	private long loopFingerprint;
+	private byte[] loopBuffer;
+	private int loopStartFrame, loopEndFrame;
+
+	private long lastStartLatencyNanos = 0;
+	private long lastMemoryBytes = 0;
+
+	/**
+	 * Creates a player that plays over the speakers.
+	 */
+	public SongPlayer() {
+		this(new JavaSoundAudioSink());
+	}
+
+	/**
+	 * Creates a player that plays into the given sink.
+	 */
+	public SongPlayer(AudioSink sink) {
+		engine = new PlaybackEngine(AUDIO_FORMAT, sink);
+	}
 
+	@Override
 	public void playSong(Song song) {
+		long startTime = System.nanoTime();
 		try {
-			stopSongs();
-			final Clip clip = AudioSystem.getClip();
+			looping = false;
+			loopBuffer = null;
+			engine.start();
 			byte[] songData = generateSong(song);
-			clip.open(AUDIO_FORMAT, songData, 0, songData.length);
-			clip.start();
-			clips.add(clip);
-			clip.addLineListener(new LineListener() {
-
-				@Override
-				public void update(LineEvent arg0) {
-					if (arg0.getType() == Type.STOP) {
-						clips.remove(clip);
-						clip.close();
-					}
-				}
-			});
-		} catch (LineUnavailableException e) {
+			if (!engine.play(songData,
+					songData.length / AUDIO_FORMAT.getFrameSize(), 0)) {
+				ToneScribe.showErrorMessage("Cannot play preview.");
+				return;
+			}
+
+			lastStartLatencyNanos = System.nanoTime() - startTime;
+			lastMemoryBytes = songData.length;
+		} catch (IOException e) {
 			e.printStackTrace();
-			JOptionPane.showMessageDialog(ToneScribe.frame,
-					"Cannot play preview.", ToneScribe.frame.getTitle(),
-					JOptionPane.ERROR_MESSAGE);
+			ToneScribe.showErrorMessage("Cannot play preview.");
 		}
 
 	}
 
-	public void stopSongs() {
-		for (int i = 0; i < clips.size(); i++) {
-			Clip c = clips.get(i);
-			c.stop();
-			c.close();
+	/**
+	 * Plays audio already rendered in getAudioFormat(), such as a target
+	 * emulator's output.
+	 */
+	public void playPcm(byte[] pcm) {
+		long startTime = System.nanoTime();
+		try {
+			looping = false;
+			loopBuffer = null;
+			engine.start();
+			if (!engine.play(pcm, pcm.length / AUDIO_FORMAT.getFrameSize(),
+					0)) {
+				ToneScribe.showErrorMessage("Cannot play preview.");
+				return;
+			}
+
+			lastStartLatencyNanos = System.nanoTime() - startTime;
+			lastMemoryBytes = pcm.length;
+		} catch (IOException e) {
+			e.printStackTrace();
+			ToneScribe.showErrorMessage("Cannot play preview.");
 		}
-		clips.clear();
+	}
+
+	/**
+	 * Plays part of a song over and over without gaps. The region is rendered
+	 * once; calling this again while the loop plays, with the same song and
+	 * different bounds, reuses the audio the old and new regions share and
+	 * moves the loop without interrupting it.
+	 * 
+	 * @param startSec
+	 *            start of the region in the song
+	 * @param endSec
+	 *            end of the region; if not after startSec, the whole song is
+	 *            looped
+	 */
+	public void playLoop(Song song, double startSec, double endSec) {
+		try {
+			engine.start();
+		} catch (IOException e) {
+			e.printStackTrace();
+			ToneScribe.showErrorMessage("Cannot play preview.");
+			return;
+		}
+
+		SongRenderer renderer = new SongRenderer(song, SAMPLE_RATE, volume);
+		int startFrame = 0;
+		int endFrame = renderer.getLengthFrames();
+		if (endSec > startSec) {
+			startFrame = Math.max(0, renderer.getFrame(startSec));
+			endFrame = Math.min(endFrame, renderer.getFrame(endSec));
+		}
+		if (endFrame <= startFrame) {
+			return;
+		}
+
+		int channels = AUDIO_FORMAT.getChannels();
+		byte[] buffer = new byte[(endFrame - startFrame) * channels];
+		boolean reuse = looping
+				&& renderer.getFingerprint() == loopFingerprint;
+		int keepFrom = Math.max(startFrame, loopStartFrame);
+		int keepTo = Math.min(endFrame, loopEndFrame);
+		if (reuse && keepFrom < keepTo) {
+			// Copy the frames both regions share, render the rest
+			System.arraycopy(loopBuffer, (keepFrom - loopStartFrame)
+					* channels, buffer, (keepFrom - startFrame) * channels,
+					(keepTo - keepFrom) * channels);
+			renderCache.render(renderer, buffer, 0, startFrame, keepFrom);
+			renderCache.render(renderer, buffer, keepTo - startFrame, keepTo,
+					endFrame);
+		} else {
+			renderCache.render(renderer, buffer, 0, startFrame, endFrame);
+		}
+
+		long position = 0;
+		if (looping) {
+			// Carry on from the same point in the song, if it's still in the
+			// loop
+			position = loopStartFrame + engine.getPosition() - startFrame;
+			if (position < 0 || position >= endFrame - startFrame) {
+				position = 0;
+			}
+		} else {
+			engine.flush();
+		}
+		if (!engine.playLoop(buffer, endFrame - startFrame, position)) {
+			ToneScribe.showErrorMessage("Cannot play preview.");
+			return;
+		}
+
+		looping = true;
+		loopFingerprint = renderer.getFingerprint();
+		loopBuffer = buffer;
+		loopStartFrame = startFrame;
+		loopEndFrame = endFrame;
+	}
+
+	@Override
+	public void stopSongs() {
+		looping = false;
+		loopBuffer = null;
+		engine.stop();
+	}
+
+	@Override
+	public long getLastStartLatencyNanos() {
+		return lastStartLatencyNanos;
+	}
+
+	@Override
+	public long getLastMemoryBytes() {
+		return lastMemoryBytes;
+	}
+
+	public RenderCache getRenderCache() {
+		return renderCache;
+	}
+
+	public PlaybackEngine getEngine() {
+		return engine;
 	}
 
 	public void saveSong(Song song, File outFile) {
@@ -111,63 +241,43 @@ public class SongPlayer {
 			AudioSystem.write(songDataIn, AudioFileFormat.Type.WAVE, outFile);
 		} catch (IOException e) {
 			e.printStackTrace();
-			JOptionPane.showMessageDialog(ToneScribe.frame,
-					"Could not save preview.", ToneScribe.frame.getTitle(),
-					JOptionPane.ERROR_MESSAGE);
+			ToneScribe.showErrorMessage("Could not save preview.");
 		}
 	}
 
+	/**
+	 * Renders a song and writes it straight to a sink, without the audio
+	 * thread. Useful for benchmarking rendering or piping a song elsewhere.
+	 * The sink is opened but not closed.
+	 */
+	public void writeSong(Song song, AudioSink sink) throws IOException {
+		byte[] songData = generateSong(song);
+		sink.open(AUDIO_FORMAT, songData.length);
+		sink.write(songData, 0, songData.length);
+	}
+
+	public AudioFormat getAudioFormat() {
+		return AUDIO_FORMAT;
+	}
+
+	/**
+	 * @return amplitude previews are rendered at
+	 */
+	public int getVolume() {
+		return volume;
+	}
+
 	public byte[] generateSong(Song song) {
 		int channels = 2;
 		// Allocate the length of the song + one second for safety and rounding
 		// errors
 		byte[] songBuffer = new byte[(int) ((float) (channels * SAMPLE_RATE)
-				* song.getCurrLengthSec() * 1.05)
+				* song.getCurrLengthSec() * SongRenderer.EVENT_TIME_SCALE)
 				+ SAMPLE_RATE];
 
-		LinkedList<SongEvent> songEvents = song.getTones();
-		for (SongEvent e : songEvents) {
-			if (e instanceof ToneEvent) {
-				generateTone(
-						songBuffer,
-						// TODO: Arbitrary delay
-						(int) ((double) SAMPLE_RATE * (e.getDurationSeconds())),
-						(int) ((double) SAMPLE_RATE * e.getTimeSeconds() * 1.05),
-						channels, 1.0 / ((ToneEvent) e).getPitch()
-								* (double) SAMPLE_RATE);
-			}
-		}
+		renderCache.render(new SongRenderer(song, SAMPLE_RATE, volume),
+				songBuffer, 0, 0, songBuffer.length / channels);
 
 		return songBuffer;
 	}
-
-	/**
-	 * Generates tone; stereo
-	 * 
-	 * @param samples
-	 * @return
-	 */
-	private void generateTone(byte[] buffer, int samples, int offset,
-			int channels, double period) {
-		float periodSamplesRemaining = 0;
-		// Write samples
-		for (int i = 0; i < samples; i++) {
-			byte sampleValue = (byte) ((lowWave) ? -volume - 1 : volume);
-
-			periodSamplesRemaining -= 1f;
-			if (periodSamplesRemaining < -1) {
-				periodSamplesRemaining = -1;
-			}
-
-			if (periodSamplesRemaining <= 0) {
-				periodSamplesRemaining += period;
-				lowWave = !lowWave;
-			}
-
-			// Write sample into buffer
-			for (int channel = 0; channel < channels; channel++) {
-				buffer[offset * channels + i * channels + channel] = sampleValue;
-			}
-		}
-	}
 }
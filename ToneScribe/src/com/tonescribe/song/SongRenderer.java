@@ -0,0 +1,248 @@
+/**
+ * Part of ToneScribe
+ * Copyright (c) 2014, William Karnavas
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.tonescribe.song;
+
+import java.util.Arrays;
+
+/**
+ * Synthesizes the square-wave tones of a song into signed 8 bit PCM. The song
+ * is laid out in frames once, when the renderer is created; after that any
+ * range of frames can be rendered on its own, and comes out exactly as it
+ * would as part of the whole song.
+ * 
+ */
+public class SongRenderer {
+	/**
+	 * Event start times are stretched by this much, leaving a short gap after
+	 * each tone.
+	 */
+	// TODO: Arbitrary delay
+	public static final double EVENT_TIME_SCALE = 1.05;
+
+	private final int sampleRate;
+	private final int volume;
+
+	// One entry per tone, in song order
+	private final int tones;
+	private final int[] offsets;
+	private final int[] lengths;
+	private final double[] periods;
+
+	private final int lengthFrames;
+	private final long fingerprint;
+
+	/**
+	 * @param volume
+	 *            amplitude of the square wave, up to 127
+	 */
+	public SongRenderer(Song song, int sampleRate, int volume) {
+		this.sampleRate = sampleRate;
+		this.volume = volume;
+
+		int count = 0;
+		for (SongEvent e : song.getTones()) {
+			if (e instanceof ToneEvent) {
+				count++;
+			}
+		}
+		tones = count;
+		offsets = new int[count];
+		lengths = new int[count];
+		periods = new double[count];
+
+		long hash = 1;
+		int i = 0;
+		for (SongEvent e : song.getTones()) {
+			if (e instanceof ToneEvent) {
+				offsets[i] = getFrame(e.getTimeSeconds());
+				lengths[i] = (int) ((double) sampleRate * (e
+						.getDurationSeconds()));
+				periods[i] = 1.0 / ((ToneEvent) e).getPitch()
+						* (double) sampleRate;
+
+				hash = hash * 31 + offsets[i];
+				hash = hash * 31 + lengths[i];
+				hash = hash * 31 + Double.doubleToLongBits(periods[i]);
+				i++;
+			}
+		}
+		fingerprint = hash;
+		lengthFrames = getFrame(song.getCurrLengthSec());
+	}
+
+	/**
+	 * @return the frame a point in the song starts on
+	 */
+	public int getFrame(double timeSeconds) {
+		return (int) ((double) sampleRate * timeSeconds * EVENT_TIME_SCALE);
+	}
+
+	/**
+	 * @return the frame the song ends on
+	 */
+	public int getLengthFrames() {
+		return lengthFrames;
+	}
+
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	/**
+	 * @return a hash of everything that affects the rendered audio; equal
+	 *         songs render identically
+	 */
+	public long getFingerprint() {
+		return fingerprint;
+	}
+
+	/**
+	 * Renders frames [fromFrame, toFrame) of the song into a buffer, silencing
+	 * anything already there.
+	 * 
+	 * @param bufferOffsetFrames
+	 *            frame of buffer that fromFrame is written to
+	 * @param channels
+	 *            every channel gets the same samples
+	 */
+	public void render(byte[] buffer, int bufferOffsetFrames, int channels,
+			int fromFrame, int toFrame) {
+		if (toFrame <= fromFrame) {
+			return;
+		}
+		Arrays.fill(buffer, bufferOffsetFrames * channels,
+				(bufferOffsetFrames + toFrame - fromFrame) * channels,
+				(byte) 0);
+
+		for (int i = findFirstTone(fromFrame); i < tones
+				&& offsets[i] < toFrame; i++) {
+			int start = Math.max(fromFrame, offsets[i]);
+			int end = Math.min(toFrame, offsets[i] + lengths[i]);
+			if (start < end) {
+				generateTone(buffer, bufferOffsetFrames + start - fromFrame,
+						channels, periods[i], start - offsets[i], end - start);
+			}
+		}
+	}
+
+	/**
+	 * Describes everything that sounds in a range of frames: the renderer's
+	 * volume, then the position relative to fromFrame, length, and period of
+	 * each tone overlapping the range. Two ranges with equal descriptions
+	 * render to identical audio, wherever they are in whichever song.
+	 * 
+	 * @return null if no tone sounds in the range
+	 */
+	public long[] describe(int fromFrame, int toFrame) {
+		int first = findFirstTone(fromFrame);
+		int last = first;
+		while (last < tones && offsets[last] < toFrame) {
+			last++;
+		}
+		if (last == first) {
+			return null;
+		}
+
+		long[] description = new long[1 + (last - first) * 3];
+		description[0] = volume;
+		for (int i = first, j = 1; i < last; i++) {
+			description[j++] = offsets[i] - fromFrame;
+			description[j++] = lengths[i];
+			description[j++] = Double.doubleToLongBits(periods[i]);
+		}
+		return description;
+	}
+
+	/**
+	 * @return index of the first tone that might sound on or after the given
+	 *         frame
+	 */
+	private int findFirstTone(int frame) {
+		int i = Arrays.binarySearch(offsets, 0, tones, frame);
+		if (i < 0) {
+			i = -i - 1;
+		}
+		// Step back to tones that start earlier but are still sounding
+		while (i > 0 && offsets[i - 1] + lengths[i - 1] > frame) {
+			i--;
+		}
+		return i;
+	}
+
+	/**
+	 * Generates part of a tone; each tone starts on the high half of its wave,
+	 * so that it does not depend on the tones before it.
+	 * 
+	 * @param offset
+	 *            frame of buffer to write the first sample to
+	 * @param skip
+	 *            samples from the start of the tone to begin at
+	 * @param samples
+	 *            samples to write
+	 */
+	private void generateTone(byte[] buffer, int offset, int channels,
+			double period, int skip, int samples) {
+		boolean lowWave = false;
+		float periodSamplesRemaining = 0;
+		// Run the wave forward over the skipped samples
+		for (int i = 0; i < skip; i++) {
+			periodSamplesRemaining -= 1f;
+			if (periodSamplesRemaining < -1) {
+				periodSamplesRemaining = -1;
+			}
+
+			if (periodSamplesRemaining <= 0) {
+				periodSamplesRemaining += period;
+				lowWave = !lowWave;
+			}
+		}
+
+		// Write samples
+		for (int i = 0; i < samples; i++) {
+			byte sampleValue = (byte) ((lowWave) ? -volume - 1 : volume);
+
+			periodSamplesRemaining -= 1f;
+			if (periodSamplesRemaining < -1) {
+				periodSamplesRemaining = -1;
+			}
+
+			if (periodSamplesRemaining <= 0) {
+				periodSamplesRemaining += period;
+				lowWave = !lowWave;
+			}
+
+			// Write sample into buffer
+			for (int channel = 0; channel < channels; channel++) {
+				buffer[offset * channels + i * channels + channel] = sampleValue;
+			}
+		}
+	}
+}
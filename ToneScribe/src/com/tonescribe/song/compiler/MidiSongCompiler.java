@@ -0,0 +1,693 @@
+/**
+ * Part of ToneScribe
+ * Copyright (c) 2014, William Karnavas
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.tonescribe.song.compiler;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.tonescribe.song.MidiPitch;
+import com.tonescribe.song.Song;
+import com.tonescribe.song.linker.BinarySongLinker;
+import com.tonescribe.song.linker.ChannelAppendable;
+import com.tonescribe.song.linker.SongLinker;
+
+/**
+ * Reads Standard MIDI Files into songs. The tracks are merged in time order
+ * as they are read, straight from the file's bytes, and whichever of the
+ * notes sounding at once the voice policy picks becomes the song's one
+ * voice. Tempo changes and pitch bends are followed; a new note starts
+ * wherever the picked note or its pitch changes, or the picked note is
+ * struck again.
+ * <p>
+ * MIDI files are not text, so compile(String, int, int) only reports that;
+ * use compile(File). A compiler reads one file at a time.
+ * 
+ */
+public class MidiSongCompiler implements SongCompiler {
+	/**
+	 * Channel 10, which General MIDI keeps for drums
+	 */
+	public static final int DRUM_CHANNEL = 9;
+
+	private static final int HEADER_ID = chunkId("MThd");
+	private static final int TRACK_ID = chunkId("MTrk");
+
+	private static final int DEFAULT_US_PER_QUARTER = 500000;
+	private static final int KEYS = 128;
+	private static final int CHANNELS = 16;
+	// Controllers that silence a channel
+	private static final int ALL_SOUND_OFF = 120;
+	private static final int ALL_NOTES_OFF = 123;
+
+	private final MidiVoicePolicy policy;
+	private final int channel;
+
+	private ByteBuffer bytes;
+
+	// Each track's next byte, end, running status and next event's tick
+	private int[] trackPos;
+	private int[] trackEnd;
+	private int[] trackStatus;
+	private long[] trackTick;
+	// Tracks with events left, soonest first
+	private int[] heap;
+	private int heapSize;
+
+	// Time: either ticks per quarter note and the tempo map so far, or
+	// fixed seconds per tick for SMPTE files
+	private int ticksPerQuarter;
+	private double smpteSecondsPerTick;
+	private long tempoTick;
+	private double tempoSeconds;
+	private int usPerQuarter;
+
+	// Notes sounding on the voiced channels: counts per channel and key,
+	// counts per key, and a bit per key with any count
+	private final int[] noteCounts = new int[CHANNELS * KEYS];
+	private final int[] keyCounts = new int[KEYS];
+	private long lowKeys;
+	private long highKeys;
+	// Channel that last struck each key, and each channel's bend
+	private final int[] keyChannels = new int[KEYS];
+	private final int[] bends = new int[CHANNELS];
+	// Keys struck since the voice was last settled
+	private long struckLowKeys;
+	private long struckHighKeys;
+
+	// The note being played, 0 while resting, and when it started
+	private double voiceFreq;
+	private double voiceStartSeconds;
+
+	public MidiSongCompiler() {
+		this(MidiVoicePolicy.HIGHEST, 0);
+	}
+
+	/**
+	 * @param channel
+	 *            0-15, the channel played with MidiVoicePolicy.CHANNEL
+	 */
+	public MidiSongCompiler(MidiVoicePolicy policy, int channel) {
+		if (channel < 0 || channel >= CHANNELS) {
+			throw new IllegalArgumentException("Bad MIDI channel: " + channel);
+		}
+		this.policy = policy;
+		this.channel = channel;
+	}
+
+	public MidiVoicePolicy getPolicy() {
+		return policy;
+	}
+
+	public int getChannel() {
+		return channel;
+	}
+
+	@Override
+	public Song compile(String text, int selectionStart, int selectionEnd) {
+		Song song = new Song();
+		song.getErrors().add(
+				"MIDI files cannot be edited as text; use File > Import MIDI.");
+		return song;
+	}
+
+	/**
+	 * Compiles a MIDI file, read through a memory map.
+	 */
+	public Song compile(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel fileChannel = in.getChannel();
+			if (fileChannel.size() > Integer.MAX_VALUE) {
+				throw new IOException("Too big to read: " + file.getName());
+			}
+			return compile(fileChannel.map(FileChannel.MapMode.READ_ONLY, 0,
+					fileChannel.size()));
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Compiles a whole MIDI file, from the start of the buffer to its limit.
+	 */
+	public Song compile(ByteBuffer file) {
+		Song song = new Song();
+		bytes = file;
+		try {
+			if (readHeader()) {
+				mergeTracks(song);
+			} else {
+				song.getErrors().add("No tracks in the MIDI file.");
+			}
+		} catch (IllegalArgumentException e) {
+			song.getErrors().add(e.getMessage());
+		} catch (IndexOutOfBoundsException e) {
+			song.getErrors().add(
+					"The MIDI file ends in the middle of a track.");
+		}
+		bytes = null;
+		return song;
+	}
+
+	/**
+	 * Converts every .mid file in a folder, several at once, each into a file
+	 * of the same name plus a suffix. Files ending .bin are written as raw
+	 * bytes by linkers that can.
+	 * 
+	 * @param linkers
+	 *            one per thread; linkers keep state from their last song, so
+	 *            each must be its own instance
+	 * @return a line for each file that could not be converted
+	 */
+	public List<String> convertDirectory(File directory,
+			final File outDirectory, final String suffix,
+			List<SongLinker> linkers) throws InterruptedException {
+		if (linkers.isEmpty()) {
+			throw new IllegalArgumentException("No linkers to convert with");
+		}
+		File[] found = directory.listFiles(new FilenameFilter() {
+
+			@Override
+			public boolean accept(File dir, String name) {
+				String lower = name.toLowerCase();
+				return lower.endsWith(".mid") || lower.endsWith(".midi");
+			}
+		});
+		if (found == null) {
+			throw new IllegalArgumentException("Not a folder: " + directory);
+		}
+		final File[] files = found;
+		Arrays.sort(files);
+
+		// Threads take the next file until none are left, keeping their
+		// problems in the files' order
+		final String[] problems = new String[files.length];
+		final AtomicInteger next = new AtomicInteger();
+		ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (final SongLinker linker : linkers) {
+			tasks.add(new Callable<Void>() {
+
+				@Override
+				public Void call() {
+					MidiSongCompiler compiler = new MidiSongCompiler(policy,
+							channel);
+					for (int i = next.getAndIncrement(); i < files.length; i = next
+							.getAndIncrement()) {
+						problems[i] = compiler.convert(files[i], new File(
+								outDirectory, getBaseName(files[i]) + suffix),
+								linker);
+					}
+					return null;
+				}
+			});
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+				linkers.size(), Math.max(1, files.length)));
+		try {
+			for (Future<Void> future : executor.invokeAll(tasks)) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof RuntimeException) {
+						throw (RuntimeException) cause;
+					} else if (cause instanceof Error) {
+						throw (Error) cause;
+					}
+					throw new IllegalStateException(cause);
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		ArrayList<String> result = new ArrayList<String>();
+		for (String problem : problems) {
+			if (problem != null) {
+				result.add(problem);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return why the file could not be converted, or null if it was
+	 */
+	private String convert(File in, File out, SongLinker linker) {
+		try {
+			Song song = compile(in);
+			if (song.getErrors().size() > 0) {
+				return in.getName() + ": " + song.getErrors().getFirst();
+			}
+			FileChannel outChannel = new FileOutputStream(out).getChannel();
+			if (linker instanceof BinarySongLinker
+					&& out.getName().toLowerCase().endsWith(".bin")) {
+				try {
+					((BinarySongLinker) linker).linkBinary(song, outChannel);
+				} finally {
+					outChannel.close();
+				}
+			} else {
+				ChannelAppendable appendable = new ChannelAppendable(
+						outChannel);
+				try {
+					linker.link(song, appendable);
+				} finally {
+					appendable.close();
+				}
+			}
+			return null;
+		} catch (IOException e) {
+			return in.getName() + ": " + e.getMessage();
+		}
+	}
+
+	private static String getBaseName(File file) {
+		String name = file.getName();
+		int dot = name.lastIndexOf('.');
+		return (dot > 0) ? name.substring(0, dot) : name;
+	}
+
+	/**
+	 * Reads the header chunk and finds the track chunks.
+	 * 
+	 * @return false if there are no tracks
+	 */
+	private boolean readHeader() {
+		int limit = bytes.limit();
+		if (limit < 14 || bytes.getInt(0) != HEADER_ID) {
+			throw new IllegalArgumentException("Not a MIDI file.");
+		}
+		int headerLength = bytes.getInt(4);
+		int format = bytes.getShort(8) & 0xffff;
+		int tracks = bytes.getShort(10) & 0xffff;
+		int division = bytes.getShort(12) & 0xffff;
+		if (format > 1) {
+			throw new IllegalArgumentException(
+					"Only MIDI files of format 0 or 1 can be read.");
+		}
+
+		if ((division & 0x8000) != 0) {
+			// Frames a second, as a negative byte, and ticks a frame
+			int framesPerSecond = -(byte) (division >> 8);
+			double exactFramesPerSecond = (framesPerSecond == 29) ? 29.97
+					: framesPerSecond;
+			int ticksPerFrame = division & 0xff;
+			if (framesPerSecond <= 0 || ticksPerFrame == 0) {
+				throw new IllegalArgumentException(
+						"The MIDI file's timing is not readable.");
+			}
+			smpteSecondsPerTick = 1.0 / (exactFramesPerSecond * ticksPerFrame);
+			ticksPerQuarter = 0;
+		} else {
+			if (division == 0) {
+				throw new IllegalArgumentException(
+						"The MIDI file's timing is not readable.");
+			}
+			ticksPerQuarter = division;
+			smpteSecondsPerTick = 0;
+		}
+
+		trackPos = new int[tracks];
+		trackEnd = new int[tracks];
+		trackStatus = new int[tracks];
+		trackTick = new long[tracks];
+		heap = new int[tracks];
+		int found = 0;
+		long pos = 8L + (headerLength & 0xffffffffL);
+		while (found < tracks && pos + 8 <= limit) {
+			int id = bytes.getInt((int) pos);
+			long length = bytes.getInt((int) pos + 4) & 0xffffffffL;
+			long start = pos + 8;
+			// Other chunks are skipped
+			if (id == TRACK_ID) {
+				trackPos[found] = (int) start;
+				trackEnd[found] = (int) Math.min(limit, start + length);
+				found++;
+			}
+			pos = start + length;
+		}
+		heapSize = 0;
+		for (int t = 0; t < found; t++) {
+			trackStatus[t] = 0;
+			if (trackPos[t] < trackEnd[t]) {
+				trackTick[t] = readDelta(t);
+				heap[heapSize++] = t;
+				siftUp(heapSize - 1);
+			}
+		}
+		return found > 0;
+	}
+
+	/**
+	 * Plays the tracks' events in time order, the soonest track's next
+	 * event each time, until every track has ended.
+	 */
+	private void mergeTracks(Song song) {
+		Arrays.fill(noteCounts, 0);
+		Arrays.fill(keyCounts, 0);
+		Arrays.fill(keyChannels, 0);
+		Arrays.fill(bends, MidiPitch.BEND_CENTER);
+		lowKeys = 0;
+		highKeys = 0;
+		struckLowKeys = 0;
+		struckHighKeys = 0;
+		voiceFreq = 0;
+		voiceStartSeconds = 0;
+		tempoTick = 0;
+		tempoSeconds = 0;
+		usPerQuarter = DEFAULT_US_PER_QUARTER;
+
+		long currentTick = 0;
+		while (heapSize > 0) {
+			int t = heap[0];
+			long tick = trackTick[t];
+			if (tick != currentTick) {
+				// Everything at the last tick has happened
+				settleVoice(song, getSeconds(currentTick));
+				currentTick = tick;
+			}
+
+			if (readEvent(t, tick) && trackPos[t] < trackEnd[t]) {
+				trackTick[t] = tick + readDelta(t);
+			} else {
+				heap[0] = heap[--heapSize];
+			}
+			siftDown(0);
+		}
+
+		// The last event is the last End of Track; a note never let go of
+		// ends there, and a rest before it is kept as part of the song
+		double endSeconds = getSeconds(currentTick);
+		settleVoice(song, endSeconds);
+		endVoice(song, endSeconds);
+	}
+
+	/**
+	 * Reads the next event from a track.
+	 * 
+	 * @return false at the end of the track
+	 */
+	private boolean readEvent(int t, long tick) {
+		int status = bytes.get(trackPos[t]) & 0xff;
+		if (status < 0x80) {
+			// Running status: the same kind of event as the last one
+			status = trackStatus[t];
+			if (status == 0) {
+				throw new IllegalArgumentException(
+						"The MIDI file has an event with no status.");
+			}
+		} else {
+			trackPos[t]++;
+		}
+
+		if (status < 0xF0) {
+			trackStatus[t] = status;
+			int kind = status & 0xF0;
+			int data1 = nextByte(t) & 0x7f;
+			int data2 = 0;
+			if (kind != 0xC0 && kind != 0xD0) {
+				data2 = nextByte(t) & 0x7f;
+			}
+			readChannelEvent(kind, status & 0x0F, data1, data2);
+			return true;
+		}
+
+		// System exclusive and meta events cancel running status
+		trackStatus[t] = 0;
+		if (status == 0xF0 || status == 0xF7) {
+			trackPos[t] += (int) readDelta(t);
+			return true;
+		} else if (status == 0xFF) {
+			int type = nextByte(t);
+			int length = (int) readDelta(t);
+			int data = trackPos[t];
+			trackPos[t] += length;
+			if (type == 0x2F) {
+				return false;
+			} else if (type == 0x51 && length >= 3 && data + 3 <= trackEnd[t]) {
+				// Set tempo, in us per quarter note
+				tempoSeconds = getSeconds(tick);
+				tempoTick = tick;
+				usPerQuarter = ((bytes.get(data) & 0xff) << 16)
+						| ((bytes.get(data + 1) & 0xff) << 8)
+						| (bytes.get(data + 2) & 0xff);
+			}
+			return true;
+		}
+		throw new IllegalArgumentException("The MIDI file has an unknown event.");
+	}
+
+	private void readChannelEvent(int kind, int eventChannel, int data1,
+			int data2) {
+		boolean voiced = (policy == MidiVoicePolicy.CHANNEL) ? eventChannel == channel
+				: eventChannel != DRUM_CHANNEL;
+		switch (kind) {
+		case 0x80:
+		case 0x90:
+			if (!voiced) {
+				break;
+			}
+			// A note on with no velocity is a note off
+			if (kind == 0x80 || data2 == 0) {
+				noteOff(eventChannel, data1);
+			} else {
+				noteOn(eventChannel, data1);
+			}
+			break;
+		case 0xB0:
+			if (voiced && (data1 == ALL_SOUND_OFF || data1 == ALL_NOTES_OFF)) {
+				for (int key = 0; key < KEYS; key++) {
+					while (noteCounts[eventChannel * KEYS + key] > 0) {
+						noteOff(eventChannel, key);
+					}
+				}
+			}
+			break;
+		case 0xE0:
+			bends[eventChannel] = data1 | (data2 << 7);
+			break;
+		}
+	}
+
+	private void noteOn(int noteChannel, int key) {
+		noteCounts[noteChannel * KEYS + key]++;
+		keyCounts[key]++;
+		keyChannels[key] = noteChannel;
+		if (key < 64) {
+			lowKeys |= 1L << key;
+			struckLowKeys |= 1L << key;
+		} else {
+			highKeys |= 1L << (key - 64);
+			struckHighKeys |= 1L << (key - 64);
+		}
+	}
+
+	private void noteOff(int noteChannel, int key) {
+		if (noteCounts[noteChannel * KEYS + key] == 0) {
+			return;
+		}
+		noteCounts[noteChannel * KEYS + key]--;
+		keyCounts[key]--;
+		if (keyCounts[key] == 0) {
+			if (key < 64) {
+				lowKeys &= ~(1L << key);
+			} else {
+				highKeys &= ~(1L << (key - 64));
+			}
+		}
+	}
+
+	/**
+	 * Works out which note the voice plays now, ending the note or rest
+	 * before it if that has changed.
+	 */
+	private void settleVoice(Song song, double seconds) {
+		int key = getVoicedKey();
+		double freq = 0;
+		boolean struck = false;
+		if (key >= 0) {
+			freq = Song.getNoteFreq(key);
+			int bend = bends[keyChannels[key]];
+			if (bend != MidiPitch.BEND_CENTER) {
+				double semitones = (bend - MidiPitch.BEND_CENTER)
+						* (double) MidiPitch.BEND_RANGE_SEMITONES
+						/ MidiPitch.BEND_CENTER;
+				freq *= Math.pow(2.0, semitones / 12.0);
+			}
+			struck = (key < 64) ? (struckLowKeys & (1L << key)) != 0
+					: (struckHighKeys & (1L << (key - 64))) != 0;
+		}
+		struckLowKeys = 0;
+		struckHighKeys = 0;
+
+		if (freq == voiceFreq && !struck) {
+			return;
+		}
+		endVoice(song, seconds);
+		voiceFreq = freq;
+		voiceStartSeconds = seconds;
+	}
+
+	/**
+	 * Adds the note or rest the voice has played since it last changed.
+	 */
+	private void endVoice(Song song, double seconds) {
+		double length = seconds - voiceStartSeconds;
+		if (length > 0) {
+			if (voiceFreq > 0) {
+				song.addTone(voiceFreq, length);
+			} else {
+				song.addRest(length);
+			}
+		}
+	}
+
+	/**
+	 * @return the sounding key the policy picks, or -1 if none are sounding
+	 */
+	private int getVoicedKey() {
+		if (policy == MidiVoicePolicy.LOWEST) {
+			if (lowKeys != 0) {
+				return Long.numberOfTrailingZeros(lowKeys);
+			} else if (highKeys != 0) {
+				return 64 + Long.numberOfTrailingZeros(highKeys);
+			}
+		} else {
+			if (highKeys != 0) {
+				return 127 - Long.numberOfLeadingZeros(highKeys);
+			} else if (lowKeys != 0) {
+				return 63 - Long.numberOfLeadingZeros(lowKeys);
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return seconds from the start of the file to a tick, following the
+	 *         tempo changes so far
+	 */
+	private double getSeconds(long tick) {
+		if (smpteSecondsPerTick > 0) {
+			return tick * smpteSecondsPerTick;
+		}
+		return tempoSeconds + (tick - tempoTick) * (double) usPerQuarter
+				/ (1000000.0 * ticksPerQuarter);
+	}
+
+	/**
+	 * Reads a variable length quantity: seven bits a byte, high bits first,
+	 * every byte but the last with its top bit set.
+	 */
+	private long readDelta(int t) {
+		long value = 0;
+		for (int i = 0; i < 4; i++) {
+			int b = nextByte(t);
+			value = (value << 7) | (b & 0x7f);
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IllegalArgumentException(
+				"The MIDI file has a number too long to read.");
+	}
+
+	private int nextByte(int t) {
+		if (trackPos[t] >= trackEnd[t]) {
+			throw new IndexOutOfBoundsException();
+		}
+		return bytes.get(trackPos[t]++) & 0xff;
+	}
+
+	/**
+	 * @return whether track a's next event comes before track b's
+	 */
+	private boolean isSooner(int a, int b) {
+		return trackTick[a] < trackTick[b]
+				|| (trackTick[a] == trackTick[b] && a < b);
+	}
+
+	private void siftUp(int i) {
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (!isSooner(heap[i], heap[parent])) {
+				return;
+			}
+			swap(i, parent);
+			i = parent;
+		}
+	}
+
+	private void siftDown(int i) {
+		while (true) {
+			int soonest = i;
+			int left = 2 * i + 1;
+			int right = left + 1;
+			if (left < heapSize && isSooner(heap[left], heap[soonest])) {
+				soonest = left;
+			}
+			if (right < heapSize && isSooner(heap[right], heap[soonest])) {
+				soonest = right;
+			}
+			if (soonest == i) {
+				return;
+			}
+			swap(i, soonest);
+			i = soonest;
+		}
+	}
+
+	private void swap(int i, int j) {
+		int swapped = heap[i];
+		heap[i] = heap[j];
+		heap[j] = swapped;
+	}
+
+	private static int chunkId(String id) {
+		return (id.charAt(0) << 24) | (id.charAt(1) << 16)
+				| (id.charAt(2) << 8) | id.charAt(3);
+	}
+}
@@ -0,0 +1,264 @@
+/**
+ * Part of ToneScribe
+ * Copyright (c) 2014, William Karnavas
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.tonescribe.song.compiler;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.tonescribe.song.ExactDecimal;
+import com.tonescribe.song.Song;
+
+/**
+ * Reads songs back from the tab table output: one note per line, its pitch in
+ * hz and its length in seconds separated by tabs or spaces. A pitch of 0 is a
+ * rest. Numbers are parsed in place, without a String per line, and come
+ * back as exactly the doubles they were written from, so a table read back
+ * gives the same song that was linked.
+ * 
+ */
+public class TabTableSongCompiler implements SongCompiler {
+	// More significant digits than this may not fit in a long
+	private static final int MAX_DIGITS = 18;
+
+	// The last number read, and where reading it stopped
+	private double number;
+	private int numberEnd;
+
+	@Override
+	public Song compile(String text, int selectionStart, int selectionEnd) {
+		Song song = new Song();
+		compile(text, selectionStart, selectionEnd, song);
+		return song;
+	}
+
+	/**
+	 * Compiles a whole table file, read through a memory map rather than
+	 * into a String.
+	 */
+	public Song compile(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("Too big to read: " + file.getName());
+			}
+			ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size());
+			Song song = new Song();
+			compile(new ByteChars(bytes), 0, bytes.limit(), song);
+			return song;
+		} finally {
+			in.close();
+		}
+	}
+
+	private void compile(CharSequence text, int selectionStart,
+			int selectionEnd, Song song) {
+		int end = text.length();
+		int pos = 0;
+		int line = 1;
+		while (pos < end) {
+			int lineStart = pos;
+			pos = skipBlanks(text, pos, end);
+			if (pos < end && !isLineEnd(text.charAt(pos))) {
+				// Pitch, then length
+				if (!readNumber(text, pos, end)) {
+					song.getErrors().add(
+							"Cannot read the pitch on line " + line + ".");
+					return;
+				}
+				double pitch = number;
+				pos = skipBlanks(text, numberEnd, end);
+				if (pos == numberEnd || !readNumber(text, pos, end)) {
+					song.getErrors().add(
+							"Cannot read the length on line " + line + ".");
+					return;
+				}
+				double seconds = number;
+				pos = skipBlanks(text, numberEnd, end);
+				if (pos < end && !isLineEnd(text.charAt(pos))) {
+					song.getErrors().add(
+							"Too much on line " + line
+									+ ": only a pitch and a length allowed.");
+					return;
+				}
+
+				if (lineStart >= selectionStart && pos <= selectionEnd) {
+					if (pitch == 0) {
+						song.addRest(seconds);
+					} else {
+						song.addTone(pitch, seconds);
+					}
+				}
+			}
+
+			// Step over the line ending, \r\n counting as one
+			if (pos < end && text.charAt(pos) == '\r') {
+				pos++;
+			}
+			if (pos < end && text.charAt(pos) == '\n') {
+				pos++;
+			}
+			line++;
+		}
+	}
+
+	/**
+	 * Reads an unsigned decimal, with an optional exponent, into number and
+	 * numberEnd.
+	 * 
+	 * @return false if there is no number at pos
+	 */
+	private boolean readNumber(CharSequence text, int pos, int end) {
+		int start = pos;
+		long digits = 0;
+		int significant = 0;
+		int places = 0;
+		boolean anyDigits = false;
+
+		boolean point = false;
+		for (; pos < end; pos++) {
+			char c = text.charAt(pos);
+			if (c >= '0' && c <= '9') {
+				anyDigits = true;
+				if (digits != 0 || c != '0') {
+					significant++;
+				}
+				if (significant <= MAX_DIGITS) {
+					digits = digits * 10 + (c - '0');
+					if (point) {
+						places++;
+					}
+				} else if (!point) {
+					// A digit too many to keep still scales the number
+					places--;
+				}
+			} else if (c == '.' && !point) {
+				point = true;
+			} else {
+				break;
+			}
+		}
+		if (!anyDigits) {
+			return false;
+		}
+
+		if (pos < end && (text.charAt(pos) == 'e' || text.charAt(pos) == 'E')) {
+			pos++;
+			boolean negative = false;
+			if (pos < end
+					&& (text.charAt(pos) == '-' || text.charAt(pos) == '+')) {
+				negative = text.charAt(pos) == '-';
+				pos++;
+			}
+			int exponent = 0;
+			int exponentStart = pos;
+			for (; pos < end && text.charAt(pos) >= '0'
+					&& text.charAt(pos) <= '9'; pos++) {
+				if (exponent < 10000) {
+					exponent = exponent * 10 + (text.charAt(pos) - '0');
+				}
+			}
+			if (pos == exponentStart) {
+				return false;
+			}
+			places += negative ? exponent : -exponent;
+		}
+		numberEnd = pos;
+
+		// Whole numbers too big to divide are made smaller first
+		while (places < 0 && digits != 0 && digits <= Long.MAX_VALUE / 10) {
+			digits *= 10;
+			places++;
+		}
+		if (significant <= MAX_DIGITS && places >= 0
+				&& places <= ExactDecimal.MAX_PLACES) {
+			number = ExactDecimal.toDouble(digits, places);
+		} else if (digits == 0) {
+			number = 0;
+		} else {
+			// Rare enough to not be worth doing without a String
+			number = Double.parseDouble(text.subSequence(start, pos)
+					.toString());
+		}
+		return true;
+	}
+
+	private static int skipBlanks(CharSequence text, int pos, int end) {
+		while (pos < end && (text.charAt(pos) == '\t' || text.charAt(pos) == ' ')) {
+			pos++;
+		}
+		return pos;
+	}
+
+	private static boolean isLineEnd(char c) {
+		return c == '\n' || c == '\r';
+	}
+
+	/**
+	 * The bytes of a file as characters, one each, without decoding them all
+	 * into a String first. Tables are plain ASCII.
+	 */
+	private static class ByteChars implements CharSequence {
+		private final ByteBuffer bytes;
+
+		public ByteChars(ByteBuffer bytes) {
+			this.bytes = bytes;
+		}
+
+		@Override
+		public int length() {
+			return bytes.limit();
+		}
+
+		@Override
+		public char charAt(int index) {
+			return (char) (bytes.get(index) & 0xff);
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			char[] chars = new char[end - start];
+			for (int i = 0; i < chars.length; i++) {
+				chars[i] = charAt(start + i);
+			}
+			return new String(chars);
+		}
+
+		@Override
+		public String toString() {
+			return subSequence(0, length()).toString();
+		}
+	}
+}
@@ -0,0 +1,149 @@
+/**
+ * Part of ToneScribe
+ * Copyright (c) 2014, William Karnavas
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.tonescribe.song.linker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import com.tonescribe.song.Song;
+import com.tonescribe.song.SongRenderer;
+
+/**
+ * Base for linkers that generate their output by streaming it; link(Song) just
+ * collects the stream into a String.
+ * 
+ */
+public abstract class AbstractSongLinker implements SongLinker {
+	protected static final String NEWLINE = System
+			.getProperty("line.separator");
+
+	/**
+	 * Elements written on each line of a C array initializer
+	 */
+	protected static final int VALUES_PER_LINE = 16;
+
+	@Override
+	public String link(Song song) {
+		StringBuilder builder = new StringBuilder();
+		try {
+			link(song, builder);
+		} catch (IOException e) {
+			// StringBuilder never throws this
+			throw new IllegalStateException(e);
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Appends the decimal digits of a number without creating a String for
+	 * it.
+	 */
+	protected static Appendable appendInt(Appendable out, long value)
+			throws IOException {
+		if (value < 0) {
+			out.append('-');
+			if (value == Long.MIN_VALUE) {
+				return out.append("9223372036854775808");
+			}
+			value = -value;
+		}
+		// Find the highest power of ten in the number, then write digits from
+		// there down
+		long divisor = 1;
+		while (value / divisor >= 10) {
+			divisor *= 10;
+		}
+		while (divisor > 0) {
+			out.append((char) ('0' + value / divisor % 10));
+			divisor /= 10;
+		}
+		return out;
+	}
+
+	/**
+	 * Separates the elements of a C array initializer with commas, starting a
+	 * new line every VALUES_PER_LINE elements.
+	 */
+	protected static void appendSeparator(Appendable out, int index)
+			throws IOException {
+		appendSeparator(out, index, VALUES_PER_LINE);
+	}
+
+	protected static void appendSeparator(Appendable out, int index,
+			int valuesPerLine) throws IOException {
+		if (index > 0) {
+			out.append(',');
+		}
+		if (index % valuesPerLine == 0) {
+			out.append(NEWLINE).append('\t');
+		} else {
+			out.append(' ');
+		}
+	}
+
+	/**
+	 * Appends a byte as 0x and two hex digits.
+	 */
+	protected static void appendHexByte(Appendable out, int value)
+			throws IOException {
+		out.append("0x").append(Character.forDigit((value >> 4) & 0xF, 16))
+				.append(Character.forDigit(value & 0xF, 16));
+	}
+
+	/**
+	 * @return {first frame, frame after the last} of the song's selection, for
+	 *         linkers that render the song
+	 */
+	protected static int[] getSelectionFrames(Song song, SongRenderer renderer) {
+		int startFrame = 0;
+		int endFrame = renderer.getLengthFrames();
+		if (song.getSelectionEndTimeSec() > song.getSelectionStartTimeSec()) {
+			startFrame = Math.max(0,
+					renderer.getFrame(song.getSelectionStartTimeSec()));
+			endFrame = Math.min(endFrame,
+					renderer.getFrame(song.getSelectionEndTimeSec()));
+		}
+		return new int[] { startFrame, Math.max(startFrame, endFrame) };
+	}
+
+	/**
+	 * Writes what has been put in a buffer to a channel, and clears it.
+	 */
+	protected static void drain(ByteBuffer buffer, WritableByteChannel out)
+			throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			out.write(buffer);
+		}
+		buffer.clear();
+	}
+}
@@ -0,0 +1,342 @@
+/**
+ * Part of ToneScribe
+ * Copyright (c) 2014, William Karnavas
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.tonescribe.song.linker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import com.tonescribe.ToneScribe;
+import com.tonescribe.song.Song;
+import com.tonescribe.song.SongRenderer;
+
+/**
+ * Renders a song as SongPlayer would and writes it as 4 bit IMA ADPCM, with a
+ * decoder that gives the next sample each time it is called, for a DAC or PWM
+ * output fed from a timer interrupt. The song is rendered and encoded a block
+ * at a time, so long songs never need all their PCM in memory. Two samples go
+ * in each byte, the first in the low nibble.
+ * 
+ */
+public class AdpcmSongLinker extends AbstractSongLinker implements
+		BinarySongLinker, BlockSongLinker {
+	private static final int VOLUME = 100;
+	private static final int BLOCK_FRAMES = 16384;
+
+	private int sampleRate = 8000;
+
+	private long lastBytes = 0;
+
+	@Override
+	public void link(Song song, final Appendable out) throws IOException {
+		SongRenderer renderer = new SongRenderer(song, sampleRate, VOLUME);
+		int[] frames = getSelectionFrames(song, renderer);
+		appendHeader(out, frames);
+		encode(renderer, frames, new ByteWriter() {
+			private int index = 0;
+
+			@Override
+			public void write(int value) throws IOException {
+				appendSeparator(out, index++);
+				appendHexByte(out, value);
+			}
+		});
+		appendFooter(out);
+	}
+
+	/**
+	 * Blocks are the header, then BLOCK_FRAMES samples of ADPCM each, then the
+	 * decoder. The encoder's state at the start of each block is found by
+	 * encoding the whole song once, without writing anything.
+	 */
+	@Override
+	public Blocks openBlocks(Song song) {
+		final SongRenderer renderer = new SongRenderer(song, sampleRate,
+				VOLUME);
+		final int[] frames = getSelectionFrames(song, renderer);
+		final int dataBlocks = (frames[1] - frames[0] + BLOCK_FRAMES - 1)
+				/ BLOCK_FRAMES;
+		final int[][] states = new int[dataBlocks][];
+		final byte[] samples = new byte[BLOCK_FRAMES];
+		ImaAdpcmEncoder encoder = new ImaAdpcmEncoder();
+		ByteWriter discard = new ByteWriter() {
+
+			@Override
+			public void write(int value) {
+			}
+		};
+		try {
+			for (int i = 0; i < dataBlocks; i++) {
+				states[i] = new int[] { encoder.getPredicted(),
+						encoder.getIndex() };
+				int from = frames[0] + i * BLOCK_FRAMES;
+				encodeBlock(renderer, samples, from,
+						Math.min(frames[1], from + BLOCK_FRAMES), encoder,
+						discard);
+			}
+		} catch (IOException e) {
+			// Discarding never throws this
+			throw new IllegalStateException(e);
+		}
+
+		return new Blocks() {
+
+			@Override
+			public int getCount() {
+				return dataBlocks + 2;
+			}
+
+			@Override
+			public void append(int block, final Appendable out)
+					throws IOException {
+				if (block == 0) {
+					appendHeader(out, frames);
+				} else if (block == getCount() - 1) {
+					appendFooter(out);
+				} else {
+					final int firstByte = (block - 1) * BLOCK_FRAMES / 2;
+					int from = frames[0] + (block - 1) * BLOCK_FRAMES;
+					int[] state = states[block - 1];
+					synchronized (samples) {
+						encodeBlock(renderer, samples, from,
+								Math.min(frames[1], from + BLOCK_FRAMES),
+								new ImaAdpcmEncoder(state[0], state[1]),
+								new ByteWriter() {
+									private int index = firstByte;
+
+									@Override
+									public void write(int value)
+											throws IOException {
+										appendSeparator(out, index++);
+										appendHexByte(out, value);
+									}
+								});
+					}
+				}
+			}
+		};
+	}
+
+	/**
+	 * Writes the ADPCM data alone.
+	 */
+	@Override
+	public void linkBinary(Song song, final WritableByteChannel out)
+			throws IOException {
+		SongRenderer renderer = new SongRenderer(song, sampleRate, VOLUME);
+		int[] frames = getSelectionFrames(song, renderer);
+		lastBytes = (frames[1] - frames[0] + 1) / 2;
+
+		final ByteBuffer buffer = ByteBuffer.allocate(8192);
+		encode(renderer, frames, new ByteWriter() {
+
+			@Override
+			public void write(int value) throws IOException {
+				if (!buffer.hasRemaining()) {
+					drain(buffer, out);
+				}
+				buffer.put((byte) value);
+			}
+		});
+		drain(buffer, out);
+	}
+
+	/**
+	 * @return size of the last song linked
+	 */
+	public long getLastBytes() {
+		return lastBytes;
+	}
+
+	/**
+	 * @return bytes of ADPCM per second of audio
+	 */
+	public long getBytesPerSecond() {
+		return (sampleRate + 1) / 2;
+	}
+
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	public void setSampleRate(int sampleRate) {
+		if (sampleRate <= 0) {
+			throw new IllegalArgumentException("Bad sample rate: "
+					+ sampleRate);
+		}
+		this.sampleRate = sampleRate;
+	}
+
+	private void appendHeader(Appendable out, int[] frames)
+			throws IOException {
+		int samples = frames[1] - frames[0];
+		lastBytes = (samples + 1) / 2;
+
+		out.append("// Code Generated by ToneScribe ")
+				.append(ToneScribe.CURRENT_VERSION)
+				.append(" ( http://tonescribe.weebly.com )").append(NEWLINE);
+		out.append("// 4-bit IMA ADPCM at ");
+		appendInt(out, sampleRate).append(" hz: ");
+		appendInt(out, getBytesPerSecond()).append(
+				" bytes per second of audio").append(NEWLINE);
+		out.append("// ");
+		appendInt(out, (long) samples * 1000 / sampleRate).append(" ms, ");
+		appendInt(out, lastBytes).append(" bytes").append(NEWLINE);
+		out.append(NEWLINE);
+		out.append("#define SONG_SAMPLE_RATE ");
+		appendInt(out, sampleRate).append(NEWLINE);
+		out.append("#define SONG_SAMPLES ");
+		appendInt(out, samples).append("UL").append(NEWLINE).append(NEWLINE);
+
+		out.append("static const unsigned char songAdpcm[");
+		appendInt(out, Math.max(1, lastBytes)).append("] = {");
+		if (lastBytes == 0) {
+			out.append(NEWLINE).append("\t0");
+		}
+	}
+
+	private static void appendFooter(Appendable out) throws IOException {
+		out.append(NEWLINE).append("};").append(NEWLINE).append(NEWLINE);
+		appendDecoder(out);
+	}
+
+	/**
+	 * Renders the song a block at a time and encodes it, handing each byte of
+	 * codes to writer.
+	 */
+	private static void encode(SongRenderer renderer, int[] frames,
+			ByteWriter writer) throws IOException {
+		ImaAdpcmEncoder encoder = new ImaAdpcmEncoder();
+		byte[] samples = new byte[BLOCK_FRAMES];
+		for (int from = frames[0]; from < frames[1]; from += BLOCK_FRAMES) {
+			encodeBlock(renderer, samples, from,
+					Math.min(frames[1], from + BLOCK_FRAMES), encoder, writer);
+		}
+	}
+
+	/**
+	 * Renders and encodes frames [from, to), at most BLOCK_FRAMES of them.
+	 * Every block but the last is a whole number of bytes; an odd last sample
+	 * has a byte of its own.
+	 */
+	private static void encodeBlock(SongRenderer renderer, byte[] samples,
+			int from, int to, ImaAdpcmEncoder encoder, ByteWriter writer)
+			throws IOException {
+		renderer.render(samples, 0, 1, from, to);
+		int low = -1;
+		for (int i = 0; i < to - from; i++) {
+			int code = encoder.encode(samples[i] << 8);
+			if (low < 0) {
+				low = code;
+			} else {
+				writer.write(low | (code << 4));
+				low = -1;
+			}
+		}
+		if (low >= 0) {
+			writer.write(low);
+		}
+	}
+
+	private static void appendDecoder(Appendable out) throws IOException {
+		out.append("static const int adpcmSteps[");
+		appendInt(out, ImaAdpcmEncoder.STEP_TABLE.length).append("] = {");
+		for (int i = 0; i < ImaAdpcmEncoder.STEP_TABLE.length; i++) {
+			appendSeparator(out, i);
+			appendInt(out, ImaAdpcmEncoder.STEP_TABLE[i]);
+		}
+		out.append(NEWLINE).append("};").append(NEWLINE);
+
+		out.append("static const signed char adpcmIndexes[");
+		appendInt(out, ImaAdpcmEncoder.INDEX_TABLE.length).append("] = {");
+		for (int i = 0; i < ImaAdpcmEncoder.INDEX_TABLE.length; i++) {
+			appendSeparator(out, i);
+			appendInt(out, ImaAdpcmEncoder.INDEX_TABLE[i]);
+		}
+		out.append(NEWLINE).append("};").append(NEWLINE).append(NEWLINE);
+
+		String[] lines = {
+				"static long adpcmPredicted = 0;",
+				"static signed char adpcmIndex = 0;",
+				"static unsigned long adpcmPosition = 0;",
+				"",
+				"// Returns the next signed 16 bit sample, or 0 after the song ends;",
+				"// call SONG_SAMPLE_RATE times a second, e.g. from a timer interrupt",
+				"int nextSample(void) {",
+				"\tunsigned char code;",
+				"\t// long, since delta reaches about 61000 at the biggest step",
+				"\tlong step;",
+				"\tlong delta;",
+				"\tif (adpcmPosition >= SONG_SAMPLES) {",
+				"\t\treturn 0;",
+				"\t}",
+				"\tcode = songAdpcm[adpcmPosition >> 1];",
+				"\tif (adpcmPosition & 1) {",
+				"\t\tcode >>= 4;",
+				"\t}",
+				"\tcode &= 0x0F;",
+				"\tadpcmPosition++;",
+				"",
+				"\tstep = adpcmSteps[adpcmIndex];",
+				"\tdelta = step >> 3;",
+				"\tif (code & 4) {",
+				"\t\tdelta += step;",
+				"\t}",
+				"\tif (code & 2) {",
+				"\t\tdelta += step >> 1;",
+				"\t}",
+				"\tif (code & 1) {",
+				"\t\tdelta += step >> 2;",
+				"\t}",
+				"\tadpcmPredicted += (code & 8) ? -delta : delta;",
+				"\tif (adpcmPredicted > 32767) {",
+				"\t\tadpcmPredicted = 32767;",
+				"\t} else if (adpcmPredicted < -32768) {",
+				"\t\tadpcmPredicted = -32768;",
+				"\t}",
+				"",
+				"\tadpcmIndex += adpcmIndexes[code];",
+				"\tif (adpcmIndex < 0) {",
+				"\t\tadpcmIndex = 0;",
+				"\t} else if (adpcmIndex > 88) {",
+				"\t\tadpcmIndex = 88;",
+				"\t}",
+				"\treturn (int) adpcmPredicted;",
+				"}" };
+		for (String line : lines) {
+			out.append(line).append(NEWLINE);
+		}
+	}
+
+	private interface ByteWriter {
+		public void write(int value) throws IOException;
+	}
+}
@@ -30,38 +30,74 @@
  */
 package com.tonescribe.song.linker;
 
-import com.tonescribe.song.RestEvent;
+import java.io.IOException;
+
 import com.tonescribe.song.Song;
-import com.tonescribe.song.SongEvent;
-import com.tonescribe.song.ToneEvent;
 
 /**
  * Converts a compiled song into a snippet of computer code that can be pasted
  * into a program to play the compiled song.
  * 
  */
-public class BeepSongLinker implements SongLinker {
-	public String link(Song song) {
-		StringBuilder builder = new StringBuilder();
-		for (SongEvent e : song.getTones()) {
-			if (e.getTimeSeconds() < song.getSelectionStartTimeSec()
-					|| e.getTimeSeconds() > song.getSelectionEndTimeSec()) {
-				continue;
-			}
+public class BeepSongLinker extends EventSongLinker implements
+		TargetProgramLinker, CompensatingSongLinker {
+	// The beep() these calls are written for is PreciseSongLinker's, at 1 MHz
+	private static final TargetClock TARGET_CLOCK = new TargetClock(1000000,
+			new int[] { 1 }, 32);
+
+	private TargetProgram lastProgram = null;
+	private boolean compensateTiming = false;
+	private CycleCostModel costModel = new CycleCostModel();
+
+	@Override
+	protected int begin(Song song) {
+		// beep()'s delays are not part of this output, so only the lengths can
+		// be compensated
+		lastProgram = TargetProgram.build(song, TARGET_CLOCK, false,
+				compensateTiming ? costModel : null, false);
+		return lastProgram.getSteps().size();
+	}
 
-			if (e instanceof ToneEvent) {
-				builder.append("beep(")
-						.append((int) ((ToneEvent) e).getPitch()).append(", ")
-						.append((int) (e.getDurationSeconds() * 1000.0))
-						.append(");")
-						.append(System.getProperty("line.separator"));
-			} else if (e instanceof RestEvent) {
-				builder.append("__delay_cycles(")
-						.append((int) (e.getDurationSeconds() * 1000000.0))
-						.append(");")
-						.append(System.getProperty("line.separator"));
-			}
+	@Override
+	protected void appendEvent(Song song, int i, Appendable out)
+			throws IOException {
+		TargetProgram.Step step = lastProgram.getSteps().get(i);
+		if (step.isTone()) {
+			out.append("beep(");
+			appendInt(out, lastProgram.getFreq(step.getFreqIndex())).append(
+					", ");
+			appendInt(out, step.getMs()).append(");").append(NEWLINE);
+		} else {
+			out.append("__delay_cycles(");
+			appendInt(out, step.getRestCycles()).append(");").append(NEWLINE);
 		}
-		return builder.toString();
+	}
+
+	@Override
+	public TargetProgram getLastProgram() {
+		return lastProgram;
+	}
+
+	/**
+	 * Sets whether note and rest lengths are shortened by the cycles the cost
+	 * model says beep() and the delay after each note take.
+	 */
+	@Override
+	public void setCompensateTiming(boolean compensateTiming) {
+		this.compensateTiming = compensateTiming;
+	}
+
+	@Override
+	public boolean isCompensateTiming() {
+		return compensateTiming;
+	}
+
+	@Override
+	public CycleCostModel getCostModel() {
+		return costModel;
+	}
+
+	public void setCostModel(CycleCostModel costModel) {
+		this.costModel = costModel;
 	}
 }
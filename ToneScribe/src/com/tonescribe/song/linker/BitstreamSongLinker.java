@@ -0,0 +1,388 @@
+/**
+ * Part of ToneScribe
+ * Copyright (c) 2014, William Karnavas
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.tonescribe.song.linker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+
+import com.tonescribe.ToneScribe;
+import com.tonescribe.song.Song;
+import com.tonescribe.song.SongRenderer;
+
+/**
+ * Renders a song as SongPlayer would and writes it as a stream of 1 bit
+ * samples, for a DMA-driven SPI or timer to shift out to the speaker with no
+ * work from the CPU. PDM runs a first order sigma-delta modulator at the bit
+ * clock; PWM renders at the bit clock over pwmBits and writes each sample as
+ * a pulse that many bits wide. Bits are packed 32 to a word, most significant
+ * first.
+ * 
+ */
+public class BitstreamSongLinker extends AbstractSongLinker implements
+		BinarySongLinker, BlockSongLinker {
+	private static final int VOLUME = 127;
+	private static final int BLOCK_FRAMES = 65536;
+	private static final int WORDS_PER_LINE = 8;
+
+	/**
+	 * Fills the last word after the song ends; half on, half off is silence
+	 * in either format
+	 */
+	private static final int IDLE_BITS = 0x55555555;
+
+	private boolean pwm;
+	private long bitClockHz = 128000;
+	private int pwmBits = 16;
+
+	private long lastBytes = 0;
+
+	public BitstreamSongLinker() {
+		this(false);
+	}
+
+	/**
+	 * @param pwm
+	 *            write PWM rather than PDM
+	 */
+	public BitstreamSongLinker(boolean pwm) {
+		this.pwm = pwm;
+	}
+
+	@Override
+	public void link(Song song, final Appendable out) throws IOException {
+		SongRenderer renderer = new SongRenderer(song, getSampleRate(), VOLUME);
+		int[] frames = getSelectionFrames(song, renderer);
+		appendHeader(out, frames);
+		render(renderer, frames, new WordWriter() {
+			private int index = 0;
+
+			@Override
+			public void write(int word) throws IOException {
+				appendSeparator(out, index++, WORDS_PER_LINE);
+				appendHexWord(out, word);
+			}
+		});
+		out.append(NEWLINE).append("};").append(NEWLINE);
+	}
+
+	/**
+	 * Blocks are the header, then BLOCK_FRAMES frames of bitstream each, then
+	 * the end of the array. The modulator's state at the start of each block
+	 * is found by running it over the whole song once, without writing
+	 * anything.
+	 */
+	@Override
+	public Blocks openBlocks(Song song) {
+		final SongRenderer renderer = new SongRenderer(song, getSampleRate(),
+				VOLUME);
+		final int[] frames = getSelectionFrames(song, renderer);
+		final int dataBlocks = (frames[1] - frames[0] + BLOCK_FRAMES - 1)
+				/ BLOCK_FRAMES;
+		final int[] errors = new int[dataBlocks];
+		final byte[] samples = new byte[BLOCK_FRAMES];
+		WordWriter discard = new WordWriter() {
+
+			@Override
+			public void write(int word) {
+			}
+		};
+		int error = 0;
+		try {
+			for (int i = 0; i < dataBlocks; i++) {
+				errors[i] = error;
+				if (!pwm) {
+					int from = frames[0] + i * BLOCK_FRAMES;
+					error = modulate(renderer, samples, from,
+							Math.min(frames[1], from + BLOCK_FRAMES), error,
+							discard);
+				}
+			}
+		} catch (IOException e) {
+			// Discarding never throws this
+			throw new IllegalStateException(e);
+		}
+
+		return new Blocks() {
+
+			@Override
+			public int getCount() {
+				return dataBlocks + 2;
+			}
+
+			@Override
+			public void append(int block, final Appendable out)
+					throws IOException {
+				if (block == 0) {
+					appendHeader(out, frames);
+				} else if (block == getCount() - 1) {
+					out.append(NEWLINE).append("};").append(NEWLINE);
+				} else {
+					final long firstWord = getWords((block - 1) * BLOCK_FRAMES);
+					int from = frames[0] + (block - 1) * BLOCK_FRAMES;
+					synchronized (samples) {
+						modulate(renderer, samples, from,
+								Math.min(frames[1], from + BLOCK_FRAMES),
+								errors[block - 1], new WordWriter() {
+									private long index = firstWord;
+
+									@Override
+									public void write(int word)
+											throws IOException {
+										appendSeparator(out, (int) index++,
+												WORDS_PER_LINE);
+										appendHexWord(out, word);
+									}
+								});
+					}
+				}
+			}
+		};
+	}
+
+	/**
+	 * Writes the bitstream alone, each word big endian.
+	 */
+	@Override
+	public void linkBinary(Song song, final WritableByteChannel out)
+			throws IOException {
+		SongRenderer renderer = new SongRenderer(song, getSampleRate(), VOLUME);
+		int[] frames = getSelectionFrames(song, renderer);
+		lastBytes = getWords(frames[1] - frames[0]) * 4;
+
+		final ByteBuffer buffer = ByteBuffer.allocate(8192).order(
+				ByteOrder.BIG_ENDIAN);
+		render(renderer, frames, new WordWriter() {
+
+			@Override
+			public void write(int word) throws IOException {
+				if (!buffer.hasRemaining()) {
+					drain(buffer, out);
+				}
+				buffer.putInt(word);
+			}
+		});
+		drain(buffer, out);
+	}
+
+	/**
+	 * @return size of the last song linked
+	 */
+	public long getLastBytes() {
+		return lastBytes;
+	}
+
+	/**
+	 * @return bytes of bitstream per second of audio
+	 */
+	public long getBytesPerSecond() {
+		return getActualBitClockHz() / 8;
+	}
+
+	/**
+	 * @return the bit clock the output really runs at; PWM rounds it down to a
+	 *         whole number of samples per second
+	 */
+	public long getActualBitClockHz() {
+		return pwm ? (long) getSampleRate() * pwmBits : bitClockHz;
+	}
+
+	public boolean isPwm() {
+		return pwm;
+	}
+
+	public void setPwm(boolean pwm) {
+		this.pwm = pwm;
+	}
+
+	public long getBitClockHz() {
+		return bitClockHz;
+	}
+
+	public void setBitClockHz(long bitClockHz) {
+		if (bitClockHz <= 0 || bitClockHz > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Bad bit clock: " + bitClockHz);
+		}
+		this.bitClockHz = bitClockHz;
+	}
+
+	public int getPwmBits() {
+		return pwmBits;
+	}
+
+	/**
+	 * @param pwmBits
+	 *            width of each PWM sample in bits; more gives finer levels
+	 *            but a lower sample rate
+	 */
+	public void setPwmBits(int pwmBits) {
+		if (pwmBits < 2) {
+			throw new IllegalArgumentException("Bad PWM width: " + pwmBits);
+		}
+		this.pwmBits = pwmBits;
+	}
+
+	private int getSampleRate() {
+		return (int) (pwm ? Math.max(1, bitClockHz / pwmBits) : bitClockHz);
+	}
+
+	private long getWords(int samples) {
+		long bits = (long) samples * (pwm ? pwmBits : 1);
+		return (bits + 31) / 32;
+	}
+
+	private void appendHeader(Appendable out, int[] frames)
+			throws IOException {
+		long words = getWords(frames[1] - frames[0]);
+		lastBytes = words * 4;
+
+		out.append("// Code Generated by ToneScribe ")
+				.append(ToneScribe.CURRENT_VERSION)
+				.append(" ( http://tonescribe.weebly.com )").append(NEWLINE);
+		out.append("// 1-bit ").append(pwm ? "PWM" : "PDM").append(" at ");
+		appendInt(out, getActualBitClockHz()).append(" hz");
+		if (pwm) {
+			out.append(", ");
+			appendInt(out, pwmBits).append(" bits per sample");
+		}
+		out.append(": ");
+		appendInt(out, getBytesPerSecond()).append(
+				" bytes per second of audio").append(NEWLINE);
+		out.append("// ");
+		appendInt(out, (long) (frames[1] - frames[0]) * 1000
+				/ getSampleRate()).append(" ms, ");
+		appendInt(out, lastBytes).append(" bytes").append(NEWLINE);
+		out.append("// Shift out most significant bit first, e.g. from SPI MOSI fed by DMA")
+				.append(NEWLINE);
+		out.append(NEWLINE);
+		out.append("#define SONG_BIT_CLOCK_HZ ");
+		appendInt(out, getActualBitClockHz()).append(NEWLINE);
+		out.append("#define SONG_WORDS ");
+		appendInt(out, words).append(NEWLINE).append(NEWLINE);
+
+		if (words > 0) {
+			out.append("static const unsigned long songBits[SONG_WORDS] = {");
+		} else {
+			// C has no empty arrays; SONG_WORDS still says none are sent
+			out.append("static const unsigned long songBits[1] = {");
+			out.append(NEWLINE).append('\t');
+			appendHexWord(out, IDLE_BITS);
+		}
+	}
+
+	/**
+	 * Renders the song a block at a time and modulates it, handing each full
+	 * word to writer.
+	 */
+	private void render(SongRenderer renderer, int[] frames, WordWriter writer)
+			throws IOException {
+		byte[] samples = new byte[BLOCK_FRAMES];
+		int error = 0;
+		for (int from = frames[0]; from < frames[1]; from += BLOCK_FRAMES) {
+			error = modulate(renderer, samples, from,
+					Math.min(frames[1], from + BLOCK_FRAMES), error, writer);
+		}
+	}
+
+	/**
+	 * Renders and modulates frames [from, to), at most BLOCK_FRAMES of them.
+	 * Every block but the last fills a whole number of words; the last word
+	 * of the song is padded with IDLE_BITS.
+	 * 
+	 * @param error
+	 *            the PDM modulator's state at from
+	 * @return the PDM modulator's state at to
+	 */
+	private int modulate(SongRenderer renderer, byte[] samples, int from,
+			int to, int error, WordWriter writer) throws IOException {
+		renderer.render(samples, 0, 1, from, to);
+		int word = 0;
+		int used = 0;
+		if (pwm) {
+			for (int i = 0; i < to - from; i++) {
+				int high = ((samples[i] + 128) * pwmBits + 128) >> 8;
+				// Fill whole runs of the word at once
+				for (int run = 0; run < 2; run++) {
+					int count = (run == 0) ? high : pwmBits - high;
+					while (count > 0) {
+						int take = Math.min(count, 32 - used);
+						if (take == 32) {
+							word = (run == 0) ? -1 : 0;
+						} else {
+							word <<= take;
+							if (run == 0) {
+								word |= (1 << take) - 1;
+							}
+						}
+						used += take;
+						count -= take;
+						if (used == 32) {
+							writer.write(word);
+							word = 0;
+							used = 0;
+						}
+					}
+				}
+			}
+		} else {
+			for (int i = 0; i < to - from; i++) {
+				error += samples[i];
+				int bit = (error >= 0) ? 1 : 0;
+				error -= (bit != 0) ? VOLUME : -VOLUME - 1;
+				word = (word << 1) | bit;
+				if (++used == 32) {
+					writer.write(word);
+					word = 0;
+					used = 0;
+				}
+			}
+		}
+
+		if (used > 0) {
+			writer.write((word << (32 - used))
+					| (IDLE_BITS & (-1 >>> used)));
+		}
+		return error;
+	}
+
+	private static void appendHexWord(Appendable out, int word)
+			throws IOException {
+		out.append("0x");
+		for (int shift = 28; shift >= 0; shift -= 4) {
+			out.append(Character.forDigit((word >>> shift) & 0xF, 16));
+		}
+	}
+
+	private interface WordWriter {
+		public void write(int word) throws IOException;
+	}
+}
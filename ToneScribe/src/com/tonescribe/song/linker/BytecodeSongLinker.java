@@ -0,0 +1,532 @@
+/**
+ * Part of ToneScribe
+ * Copyright (c) 2014, William Karnavas
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.tonescribe.song.linker;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import com.tonescribe.ToneScribe;
+import com.tonescribe.song.LinkPlan;
+import com.tonescribe.song.Song;
+
+/**
+ * Compiles a song into bytecode for a tiny interpreter, and writes the
+ * interpreter with it. Repeated passages become phrases called with CALL,
+ * runs of the same note or phrase become LOOPs, and lengths are counted in
+ * ticks set by TEMPO, so most notes take two bytes and long songs with repeats
+ * fit in a few hundred bytes of flash.<br>
+ * <br>
+ * Opcodes:<br>
+ * 0x80 | f, t: TONE, frequency f from the table, t ticks<br>
+ * 0x01 t: REST t ticks<br>
+ * 0x02 n: LOOP, play up to ENDLOOP n times<br>
+ * 0x03: ENDLOOP<br>
+ * 0x04 p: CALL phrase p<br>
+ * 0x05: RET<br>
+ * 0x06 a b c: TEMPO, a + 256b + 65536c us per tick<br>
+ * 0x00: END<br>
+ * <br>
+ * Operands are single bytes, so a song may use at most MAX_FREQS frequencies
+ * and MAX_PHRASES phrases; linking a song that needs more throws an
+ * IllegalArgumentException saying so.
+ * 
+ */
+public class BytecodeSongLinker extends AbstractSongLinker {
+	private static final int OP_END = 0x00;
+	private static final int OP_REST = 0x01;
+	private static final int OP_LOOP = 0x02;
+	private static final int OP_ENDLOOP = 0x03;
+	private static final int OP_CALL = 0x04;
+	private static final int OP_RET = 0x05;
+	private static final int OP_TEMPO = 0x06;
+	private static final int OP_TONE = 0x80;
+
+	public static final int MAX_FREQS = 0x80;
+	public static final int MAX_PHRASES = 0x100;
+	private static final int MAX_TICKS = 0xFF;
+	private static final int MAX_LOOPS = 0xFF;
+	private static final long MAX_TICK_US = 0xFFFFFF;
+
+	/**
+	 * Shortest tick TEMPO sections are allowed to pick; shorter ticks mean
+	 * more TEMPO changes
+	 */
+	private static final long MIN_TICK_US = 1000;
+
+	/**
+	 * Estimated MSP430 cycles for the interpreter to fetch and dispatch one
+	 * op, and to work out a note's ms from its ticks (a 32 bit multiply and
+	 * divide in software)
+	 */
+	public static final int CYCLES_PER_OP = 20;
+	public static final int CYCLES_PER_LENGTH = 700;
+
+	private RepeatCostModel costModel = new RepeatCostModel(2, 2, 3, 3);
+
+	private int lastSongBytes = 0;
+	private int lastEventCount = 0;
+	private int lastMaxOpsPerEvent = 0;
+
+	@Override
+	public void link(Song song, Appendable out) throws IOException {
+		// Gather notes and their lengths in us; rests are frequency 0
+		ArrayList<Integer> freqs = new ArrayList<Integer>();
+		ArrayList<Long> lengths = new ArrayList<Long>();
+		HashSet<Integer> freqsUsed = new HashSet<Integer>();
+		LinkPlan plan = song.getLinkPlan();
+		for (int i = 0; i < plan.getCount(); i++) {
+			if (plan.isTone(i)) {
+				int freq = Math.max(1, plan.getFreq(i));
+				freqs.add(freq);
+				freqsUsed.add(freq);
+			} else {
+				freqs.add(0);
+			}
+			lengths.add(plan.getUs(i));
+		}
+		int count = freqs.size();
+		if (freqsUsed.size() > MAX_FREQS) {
+			throw new IllegalArgumentException("This song uses "
+					+ freqsUsed.size() + " frequencies; bytecode holds at most "
+					+ MAX_FREQS + ".");
+		}
+		if (costModel.getMaxPhrases() > MAX_PHRASES) {
+			throw new IllegalArgumentException("Bytecode can call at most "
+					+ MAX_PHRASES + " phrases, not "
+					+ costModel.getMaxPhrases() + ".");
+		}
+
+		out.append("// Code Generated by ToneScribe ")
+				.append(ToneScribe.CURRENT_VERSION)
+				.append(" ( http://tonescribe.weebly.com )").append(NEWLINE);
+
+		ArrayList<Integer> freqTable = new ArrayList<Integer>(freqsUsed);
+		Collections.sort(freqTable, Collections.reverseOrder());
+		HashMap<Integer, Integer> freqIndexes = new HashMap<Integer, Integer>();
+		for (int i = 0; i < freqTable.size(); i++) {
+			freqIndexes.put(freqTable.get(i), i);
+		}
+
+		// Turn events into instructions, each a symbol for the repetition
+		// finder, with TEMPO wherever the tick has to change
+		ArrayList<int[]> instructions = new ArrayList<int[]>();
+		HashMap<Long, Integer> symbols = new HashMap<Long, Integer>();
+		int[] sequence = new int[count * 2];
+		int length = 0;
+		long tick = 0;
+		int sectionEnd = 0;
+		for (int i = 0; i < count; i++) {
+			if (i == sectionEnd) {
+				long[] section = getTempoSection(lengths, i);
+				sectionEnd = (int) section[1];
+				if (section[0] != tick) {
+					tick = section[0];
+					sequence[length++] = getSymbol(instructions, symbols,
+							new int[] { OP_TEMPO, (int) tick });
+				}
+			}
+			int ticks = (int) Math.min(MAX_TICKS,
+					Math.round(lengths.get(i) / (double) tick));
+			int freq = freqs.get(i);
+			int[] instruction = (freq > 0) ? new int[] {
+					OP_TONE | freqIndexes.get(freq), ticks } : new int[] {
+					OP_REST, ticks };
+			sequence[length++] = getSymbol(instructions, symbols, instruction);
+		}
+		int[] events = new int[length];
+		System.arraycopy(sequence, 0, events, 0, length);
+
+		RepetitionFinder.Result result = new RepetitionFinder(costModel).find(
+				events, instructions.size());
+
+		// Assemble: the main sequence, then each phrase
+		ArrayList<Integer> code = new ArrayList<Integer>();
+		int[] phraseOffsets = new int[result.getPhrases().size()];
+		assemble(code, result, result.getMain(), instructions);
+		code.add(OP_END);
+		for (int i = 0; i < phraseOffsets.length; i++) {
+			phraseOffsets[i] = code.size();
+			assemble(code, result, result.getPhrases().get(i), instructions);
+			code.add(OP_RET);
+		}
+
+		// Run it, to check it and to find the interpreter's worst case
+		int[] run = run(code, phraseOffsets);
+		int stackDepth = Math.max(1, run[0]);
+		lastMaxOpsPerEvent = run[1];
+		lastEventCount = count;
+		lastSongBytes = code.size() + freqTable.size() * 2
+				+ phraseOffsets.length * 2;
+
+		out.append("// Bytecode: ");
+		appendInt(out, code.size()).append(" bytes of code, ");
+		appendInt(out, freqTable.size()).append(" frequencies, ");
+		appendInt(out, phraseOffsets.length).append(" phrases; ");
+		appendInt(out, lastSongBytes).append(" bytes in all (about ");
+		appendInt(out, count * NoteTableSongLinker.BYTES_PER_CALL).append(
+				" bytes as beep() calls)").append(NEWLINE);
+		out.append("// Interpreter overhead: at most ");
+		appendInt(out, lastMaxOpsPerEvent).append(
+				" ops between events, about ");
+		appendInt(out, getMaxOverheadCycles()).append(
+				" cycles per event on an MSP430").append(NEWLINE);
+		out.append(NEWLINE);
+
+		out.append("#define OP_END 0x00").append(NEWLINE);
+		out.append("#define OP_REST 0x01").append(NEWLINE);
+		out.append("#define OP_LOOP 0x02").append(NEWLINE);
+		out.append("#define OP_ENDLOOP 0x03").append(NEWLINE);
+		out.append("#define OP_CALL 0x04").append(NEWLINE);
+		out.append("#define OP_RET 0x05").append(NEWLINE);
+		out.append("#define OP_TEMPO 0x06").append(NEWLINE);
+		out.append("#define OP_TONE 0x80").append(NEWLINE);
+		out.append("// Return addresses and loop counters").append(NEWLINE);
+		out.append("#define STACK_DEPTH ");
+		appendInt(out, stackDepth * 2).append(NEWLINE).append(NEWLINE);
+
+		out.append("// Frequencies in hz").append(NEWLINE);
+		out.append("static const unsigned int songFreqs[");
+		appendInt(out, Math.max(1, freqTable.size())).append("] = {");
+		if (freqTable.isEmpty()) {
+			out.append(NEWLINE).append("\t0");
+		}
+		for (int i = 0; i < freqTable.size(); i++) {
+			appendSeparator(out, i);
+			appendInt(out, freqTable.get(i));
+		}
+		out.append(NEWLINE).append("};").append(NEWLINE);
+
+		out.append("// Where each phrase starts in songCode").append(NEWLINE);
+		out.append("static const unsigned int songPhrases[");
+		appendInt(out, Math.max(1, phraseOffsets.length)).append("] = {");
+		if (phraseOffsets.length == 0) {
+			out.append(NEWLINE).append("\t0");
+		}
+		for (int i = 0; i < phraseOffsets.length; i++) {
+			appendSeparator(out, i);
+			appendInt(out, phraseOffsets[i]);
+		}
+		out.append(NEWLINE).append("};").append(NEWLINE);
+
+		out.append("static const unsigned char songCode[");
+		appendInt(out, code.size()).append("] = {");
+		for (int i = 0; i < code.size(); i++) {
+			appendSeparator(out, i);
+			appendHexByte(out, code.get(i));
+		}
+		out.append(NEWLINE).append("};").append(NEWLINE).append(NEWLINE);
+
+		appendInterpreter(out);
+	}
+
+	/**
+	 * @return bytes of flash the bytecode and its tables take, not counting
+	 *         the interpreter
+	 */
+	public int getLastSongBytes() {
+		return lastSongBytes;
+	}
+
+	/**
+	 * @return notes and rests in the last song linked
+	 */
+	public int getLastEventCount() {
+		return lastEventCount;
+	}
+
+	/**
+	 * @return the most ops the interpreter runs between starting one note or
+	 *         rest and the next, the note's own op included
+	 */
+	public int getLastMaxOpsPerEvent() {
+		return lastMaxOpsPerEvent;
+	}
+
+	/**
+	 * @return estimated worst case cycles the interpreter spends between
+	 *         events, besides beep() and delayMS() themselves
+	 */
+	public int getMaxOverheadCycles() {
+		return lastMaxOpsPerEvent * CYCLES_PER_OP + CYCLES_PER_LENGTH;
+	}
+
+	public RepeatCostModel getCostModel() {
+		return costModel;
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if the model allows more than MAX_PHRASES phrases
+	 */
+	public void setCostModel(RepeatCostModel costModel) {
+		if (costModel.getMaxPhrases() > MAX_PHRASES) {
+			throw new IllegalArgumentException("Bytecode can call at most "
+					+ MAX_PHRASES + " phrases, not "
+					+ costModel.getMaxPhrases() + ".");
+		}
+		this.costModel = costModel;
+	}
+
+	/**
+	 * Finds how many events from start can share one tick: the greatest
+	 * common divisor of their lengths, as long as it stays at least
+	 * MIN_TICK_US and every length fits in MAX_TICKS ticks of it.
+	 * 
+	 * @return {tick in us, index after the last event in the section}
+	 */
+	private static long[] getTempoSection(ArrayList<Long> lengths, int start) {
+		long first = Math.max(1, lengths.get(start));
+		long tick = first;
+		long longest = first;
+		if (first > MAX_TICK_US) {
+			// Too long to count in one tick; count it in the most ticks
+			tick = (first + MAX_TICKS - 1) / MAX_TICKS;
+			return new long[] { tick, start + 1 };
+		}
+
+		int end = start + 1;
+		while (end < lengths.size()) {
+			long length = lengths.get(end);
+			long newTick = (length > 0) ? gcd(tick, length) : tick;
+			long newLongest = Math.max(longest, length);
+			if (newTick < MIN_TICK_US && newTick < tick
+					|| newLongest / newTick > MAX_TICKS) {
+				break;
+			}
+			tick = newTick;
+			longest = newLongest;
+			end++;
+		}
+		return new long[] { tick, end };
+	}
+
+	private static long gcd(long a, long b) {
+		while (b != 0) {
+			long t = a % b;
+			a = b;
+			b = t;
+		}
+		return a;
+	}
+
+	private static int getSymbol(ArrayList<int[]> instructions,
+			HashMap<Long, Integer> symbols, int[] instruction) {
+		Long key = ((long) instruction[0] << 32) | instruction[1];
+		Integer symbol = symbols.get(key);
+		if (symbol == null) {
+			symbol = instructions.size();
+			symbols.put(key, symbol);
+			instructions.add(instruction);
+		}
+		return symbol;
+	}
+
+	/**
+	 * Appends the bytes for a sequence of symbols, looping runs where that
+	 * saves space.
+	 */
+	private void assemble(ArrayList<Integer> code,
+			RepetitionFinder.Result result, int[] sequence,
+			ArrayList<int[]> instructions) {
+		int i = 0;
+		while (i < sequence.length) {
+			int symbol = sequence[i];
+			int run = 1;
+			while (i + run < sequence.length && sequence[i + run] == symbol
+					&& run < MAX_LOOPS) {
+				run++;
+			}
+			int bytes = getBytes(result, symbol, instructions);
+			if (costModel.isLoopWorthIt(bytes, run)) {
+				code.add(OP_LOOP);
+				code.add(run);
+				appendSymbol(code, result, symbol, instructions);
+				code.add(OP_ENDLOOP);
+			} else {
+				for (int j = 0; j < run; j++) {
+					appendSymbol(code, result, symbol, instructions);
+				}
+			}
+			i += run;
+		}
+	}
+
+	private static int getBytes(RepetitionFinder.Result result, int symbol,
+			ArrayList<int[]> instructions) {
+		if (result.isPhrase(symbol)) {
+			return 2;
+		}
+		return (instructions.get(symbol)[0] == OP_TEMPO) ? 4 : 2;
+	}
+
+	private static void appendSymbol(ArrayList<Integer> code,
+			RepetitionFinder.Result result, int symbol,
+			ArrayList<int[]> instructions) {
+		if (result.isPhrase(symbol)) {
+			code.add(OP_CALL);
+			code.add(result.getPhraseIndex(symbol));
+			return;
+		}
+		int[] instruction = instructions.get(symbol);
+		code.add(instruction[0]);
+		if (instruction[0] == OP_TEMPO) {
+			code.add(instruction[1] & 0xFF);
+			code.add((instruction[1] >> 8) & 0xFF);
+			code.add((instruction[1] >> 16) & 0xFF);
+		} else {
+			code.add(instruction[1]);
+		}
+	}
+
+	/**
+	 * Runs the bytecode as the interpreter would.
+	 * 
+	 * @return {deepest the stack gets in entries of two, most ops run for one
+	 *         event}
+	 */
+	private static int[] run(ArrayList<Integer> code, int[] phraseOffsets) {
+		int[] stack = new int[64];
+		int sp = 0;
+		int maxSp = 0;
+		int ops = 0;
+		int maxOps = 0;
+		int pc = 0;
+		while (true) {
+			int op = code.get(pc++);
+			ops++;
+			if ((op & OP_TONE) != 0 || op == OP_REST) {
+				pc++;
+				maxOps = Math.max(maxOps, ops);
+				ops = 0;
+				continue;
+			}
+			switch (op) {
+			case OP_LOOP:
+				stack = ensureCapacity(stack, sp + 2);
+				stack[sp++] = code.get(pc++);
+				stack[sp++] = pc;
+				break;
+			case OP_ENDLOOP:
+				if (--stack[sp - 2] != 0) {
+					pc = stack[sp - 1];
+				} else {
+					sp -= 2;
+				}
+				break;
+			case OP_CALL:
+				stack = ensureCapacity(stack, sp + 2);
+				stack[sp++] = 0;
+				stack[sp++] = pc + 1;
+				pc = phraseOffsets[code.get(pc)];
+				break;
+			case OP_RET:
+				sp -= 2;
+				pc = stack[sp + 1];
+				break;
+			case OP_TEMPO:
+				pc += 3;
+				break;
+			case OP_END:
+				maxOps = Math.max(maxOps, ops);
+				return new int[] { maxSp / 2, maxOps };
+			default:
+				throw new IllegalStateException("Bad opcode " + op + " at "
+						+ (pc - 1));
+			}
+			maxSp = Math.max(maxSp, sp);
+		}
+	}
+
+	private static int[] ensureCapacity(int[] stack, int size) {
+		if (size <= stack.length) {
+			return stack;
+		}
+		int[] bigger = new int[Math.max(size, stack.length * 2)];
+		System.arraycopy(stack, 0, bigger, 0, stack.length);
+		return bigger;
+	}
+
+	private static void appendInterpreter(Appendable out) throws IOException {
+		String[] lines = {
+				"void tune() {",
+				"\tunsigned int stack[STACK_DEPTH];",
+				"\tunsigned char sp = 0;",
+				"\tunsigned int pc = 0;",
+				"\tunsigned long tickUs = 1000;",
+				"\tfor (;;) {",
+				"\t\tunsigned char op = songCode[pc++];",
+				"\t\tif (op & OP_TONE) {",
+				"\t\t\tbeep(songFreqs[op & 0x7F],",
+				"\t\t\t\t\t(unsigned int) ((songCode[pc++] * tickUs) / 1000));",
+				"\t\t\tcontinue;",
+				"\t\t}",
+				"\t\tswitch (op) {",
+				"\t\tcase OP_REST:",
+				"\t\t\tdelayMS((unsigned int) ((songCode[pc++] * tickUs) / 1000));",
+				"\t\t\tbreak;",
+				"\t\tcase OP_LOOP:",
+				"\t\t\tstack[sp++] = songCode[pc++];",
+				"\t\t\tstack[sp++] = pc;",
+				"\t\t\tbreak;",
+				"\t\tcase OP_ENDLOOP:",
+				"\t\t\tif (--stack[sp - 2] != 0) {",
+				"\t\t\t\tpc = stack[sp - 1];",
+				"\t\t\t} else {",
+				"\t\t\t\tsp -= 2;",
+				"\t\t\t}",
+				"\t\t\tbreak;",
+				"\t\tcase OP_CALL:",
+				"\t\t\tstack[sp++] = 0;",
+				"\t\t\tstack[sp++] = pc + 1;",
+				"\t\t\tpc = songPhrases[songCode[pc]];",
+				"\t\t\tbreak;",
+				"\t\tcase OP_RET:",
+				"\t\t\tsp -= 2;",
+				"\t\t\tpc = stack[sp + 1];",
+				"\t\t\tbreak;",
+				"\t\tcase OP_TEMPO:",
+				"\t\t\ttickUs = songCode[pc] | ((unsigned int) songCode[pc + 1] << 8)",
+				"\t\t\t\t\t| ((unsigned long) songCode[pc + 2] << 16);",
+				"\t\t\tpc += 3;",
+				"\t\t\tbreak;",
+				"\t\tdefault:",
+				"\t\t\treturn;",
+				"\t\t}",
+				"\t}",
+				"}" };
+		for (String line : lines) {
+			out.append(line).append(NEWLINE);
+		}
+	}
+}
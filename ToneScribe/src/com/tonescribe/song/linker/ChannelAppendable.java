@@ -0,0 +1,156 @@
+/**
+ * Part of ToneScribe
+ * Copyright (c) 2014, William Karnavas
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.tonescribe.song.linker;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Encodes text appended to it into a byte channel (a file, socket, etc.)
+ * through fixed-size buffers, so that linker output of any length can be
+ * written with bounded memory.
+ * 
+ */
+public class ChannelAppendable implements Appendable, Flushable, Closeable {
+	private static final int BUFFER_SIZE = 8192;
+
+	private final WritableByteChannel channel;
+	private final CharsetEncoder encoder;
+	private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+	private final ByteBuffer bytes;
+
+	/**
+	 * Writes UTF-8 to the channel.
+	 */
+	public ChannelAppendable(WritableByteChannel channel) {
+		this(channel, Charset.forName("UTF-8"));
+	}
+
+	public ChannelAppendable(WritableByteChannel channel, Charset charset) {
+		this.channel = channel;
+		encoder = charset.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		bytes = ByteBuffer.allocateDirect((int) Math.ceil(BUFFER_SIZE
+				* encoder.maxBytesPerChar()));
+	}
+
+	@Override
+	public Appendable append(CharSequence csq) throws IOException {
+		if (csq == null) {
+			csq = "null";
+		}
+		return append(csq, 0, csq.length());
+	}
+
+	@Override
+	public Appendable append(CharSequence csq, int start, int end)
+			throws IOException {
+		if (csq == null) {
+			csq = "null";
+		}
+		while (start < end) {
+			if (!chars.hasRemaining()) {
+				encode(false);
+			}
+			int n = Math.min(end - start, chars.remaining());
+			if (csq instanceof String) {
+				chars.put((String) csq, start, start + n);
+			} else {
+				for (int i = start; i < start + n; i++) {
+					chars.put(csq.charAt(i));
+				}
+			}
+			start += n;
+		}
+		return this;
+	}
+
+	@Override
+	public Appendable append(char c) throws IOException {
+		if (!chars.hasRemaining()) {
+			encode(false);
+		}
+		chars.put(c);
+		return this;
+	}
+
+	/**
+	 * Writes everything appended so far to the channel.
+	 */
+	@Override
+	public void flush() throws IOException {
+		encode(false);
+		writeBytes();
+	}
+
+	/**
+	 * Flushes and closes the channel.
+	 */
+	@Override
+	public void close() throws IOException {
+		encode(true);
+		while (encoder.flush(bytes) == CoderResult.OVERFLOW) {
+			writeBytes();
+		}
+		writeBytes();
+		channel.close();
+	}
+
+	/**
+	 * Moves buffered chars into the byte buffer, writing to the channel
+	 * whenever it fills.
+	 */
+	private void encode(boolean endOfInput) throws IOException {
+		chars.flip();
+		while (encoder.encode(chars, bytes, endOfInput) == CoderResult.OVERFLOW) {
+			writeBytes();
+		}
+		// Keep any half of a surrogate pair for next time
+		chars.compact();
+	}
+
+	private void writeBytes() throws IOException {
+		bytes.flip();
+		while (bytes.hasRemaining()) {
+			channel.write(bytes);
+		}
+		bytes.clear();
+	}
+}
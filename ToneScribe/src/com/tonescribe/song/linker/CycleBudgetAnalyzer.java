@@ -0,0 +1,227 @@
+/**
+ * Part of ToneScribe
+ * Copyright (c) 2014, William Karnavas
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.tonescribe.song.linker;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Estimates how long each note of a linked TargetProgram really lasts on the
+ * device, once the cycles spent around its delays are counted, and how far
+ * that drifts from the song.
+ * 
+ */
+public class CycleBudgetAnalyzer {
+	private final CycleCostModel costModel;
+
+	public CycleBudgetAnalyzer(CycleCostModel costModel) {
+		this.costModel = costModel;
+	}
+
+	/**
+	 * Timing of every step in a program.
+	 */
+	public static class Result {
+		private final TargetProgram program;
+		private final long[] cycles;
+		private final int[] semiperiodCycles;
+		private long totalCycles = 0;
+		private double totalExpectedSeconds = 0;
+		private int worstStep = -1;
+		private double worstErrorSeconds = 0;
+
+		private Result(TargetProgram program) {
+			this.program = program;
+			this.cycles = new long[program.getSteps().size()];
+			this.semiperiodCycles = new int[program.getFreqCount()];
+		}
+
+		public TargetProgram getProgram() {
+			return program;
+		}
+
+		/**
+		 * @return cycles the device spends on a step, including the delay
+		 *         after a note
+		 */
+		public long getCycles(int step) {
+			return cycles[step];
+		}
+
+		public double getActualSeconds(int step) {
+			return cycles[step] / (double) program.getClockHz();
+		}
+
+		public double getExpectedSeconds(int step) {
+			return program.getSteps().get(step).getEvent()
+					.getDurationSeconds();
+		}
+
+		/**
+		 * @return how much longer the step lasts than the song says; negative
+		 *         if shorter
+		 */
+		public double getErrorSeconds(int step) {
+			return getActualSeconds(step) - getExpectedSeconds(step);
+		}
+
+		/**
+		 * @return cycles in each semiperiod of a frequency, delay included
+		 */
+		public int getSemiperiodCycles(int freqIndex) {
+			return semiperiodCycles[freqIndex];
+		}
+
+		public double getTotalActualSeconds() {
+			return totalCycles / (double) program.getClockHz();
+		}
+
+		public double getTotalExpectedSeconds() {
+			return totalExpectedSeconds;
+		}
+
+		/**
+		 * @return index of the step furthest off, or -1 if there are none
+		 */
+		public int getWorstStep() {
+			return worstStep;
+		}
+
+		/**
+		 * Writes the report, each line started with linePrefix (such as "// "
+		 * to make it a comment).
+		 */
+		public void append(Appendable out, String linePrefix, String newline)
+				throws IOException {
+			double total = getTotalActualSeconds();
+			out.append(linePrefix).append(
+					String.format("Timing on a %d hz clock: %.3f s on the device"
+							+ " for %.3f s of song (%+.3f s, %+.1f%%)",
+							program.getClockHz(), total,
+							totalExpectedSeconds, total
+									- totalExpectedSeconds,
+							getPercent(total, totalExpectedSeconds))).append(
+					newline);
+			if (worstStep >= 0) {
+				out.append(linePrefix).append(
+						String.format("Worst: step %d, %+.2f ms", worstStep,
+								worstErrorSeconds * 1000.0)).append(newline);
+			}
+
+			out.append(linePrefix).append(
+					String.format("%6s %9s %9s %9s %9s", "Hz", "Delay",
+							"Overhead", "Plays", "Cents")).append(newline);
+			for (int i = 0; i < semiperiodCycles.length; i++) {
+				TargetClock.Divisor divisor = program.getDivisor(i);
+				double plays = program.getClockHz()
+						/ (2.0 * semiperiodCycles[i]);
+				out.append(linePrefix).append(
+						String.format("%6d %9d %9d %9.2f %+9.2f",
+								program.getFreq(i), program.getDelayCycles(i),
+								semiperiodCycles[i]
+										- program.getDelayCycles(i), plays,
+								1200.0 * Math.log(plays
+										/ divisor.getRequestedFreq())
+										/ Math.log(2))).append(newline);
+			}
+
+			out.append(linePrefix).append(
+					String.format("%6s %6s %9s %9s %9s %9s", "Step", "Hz",
+							"Song ms", "Device ms", "Error ms", "Drift ms"))
+					.append(newline);
+			ArrayList<TargetProgram.Step> steps = program.getSteps();
+			double drift = 0;
+			for (int i = 0; i < steps.size(); i++) {
+				TargetProgram.Step step = steps.get(i);
+				drift += getErrorSeconds(i);
+				String hz = step.isTone() ? String.valueOf(program
+						.getFreq(step.getFreqIndex())) : "rest";
+				out.append(linePrefix).append(
+						String.format("%6d %6s %9.2f %9.2f %+9.2f %+9.2f", i,
+								hz, getExpectedSeconds(i) * 1000.0,
+								getActualSeconds(i) * 1000.0,
+								getErrorSeconds(i) * 1000.0, drift * 1000.0))
+						.append(newline);
+			}
+		}
+
+		private static double getPercent(double actual, double expected) {
+			return (expected > 0) ? (actual - expected) / expected * 100.0
+					: 0;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder();
+			try {
+				append(builder, "", "\n");
+			} catch (IOException e) {
+				// StringBuilder never throws this
+				throw new IllegalStateException(e);
+			}
+			return builder.toString();
+		}
+	}
+
+	public Result analyze(TargetProgram program) {
+		Result result = new Result(program);
+		boolean jumpTable = program.isJumpTable();
+		for (int i = 0; i < program.getFreqCount(); i++) {
+			result.semiperiodCycles[i] = (int) program.getDelayCycles(i)
+					+ costModel.getSemiperiodOverhead(jumpTable, i);
+		}
+
+		ArrayList<TargetProgram.Step> steps = program.getSteps();
+		for (int i = 0; i < steps.size(); i++) {
+			TargetProgram.Step step = steps.get(i);
+			long cycles;
+			if (step.isTone()) {
+				cycles = costModel.getNoteOverhead(jumpTable, step.getCalls())
+						+ step.getSemiperiods()
+						* result.semiperiodCycles[step.getFreqIndex()]
+						+ program.getNoteGapCycles();
+			} else {
+				cycles = step.getRestCycles() + costModel.getRestCycles();
+			}
+			result.cycles[i] = cycles;
+			result.totalCycles += cycles;
+			result.totalExpectedSeconds += result.getExpectedSeconds(i);
+
+			double error = Math.abs(result.getErrorSeconds(i));
+			if (result.worstStep < 0
+					|| error > Math.abs(result.worstErrorSeconds)) {
+				result.worstStep = i;
+				result.worstErrorSeconds = result.getErrorSeconds(i);
+			}
+		}
+		return result;
+	}
+}
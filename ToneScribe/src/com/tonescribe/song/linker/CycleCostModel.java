@@ -0,0 +1,183 @@
+/**
+ * Part of ToneScribe
+ * Copyright (c) 2014, William Karnavas
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.tonescribe.song.linker;
+
+/**
+ * Clock cycles spent by the parts of PreciseSongLinker's program besides its
+ * delays. The defaults are estimates for an MSP430 without a hardware
+ * multiplier, built without optimization; measure and set them for other
+ * targets or compilers.
+ * 
+ */
+public class CycleCostModel {
+	private int callCycles = 14;
+	private int setupCycles = 1100;
+	private int toggleCycles = 4;
+	private int loopCycles = 3;
+	private int switchCycles = 4;
+	private int caseCycles = 4;
+	private int jumpSetupCycles = 6;
+	private int indirectCallCycles = 7;
+	private int restCycles = 0;
+
+	/**
+	 * @return cycles beep() spends on each semiperiod besides its delay
+	 * 
+	 * @param jumpTable
+	 *            whether the delay is found through a jump table or a switch
+	 * @param freqIndex
+	 *            position of the note's case in the switch
+	 */
+	public int getSemiperiodOverhead(boolean jumpTable, int freqIndex) {
+		int dispatch = jumpTable ? indirectCallCycles : switchCycles
+				+ (freqIndex + 1) * caseCycles;
+		return toggleCycles + dispatch + loopCycles;
+	}
+
+	/**
+	 * @return cycles spent once per note outside the semiperiod loop, not
+	 *         counting the delay after it
+	 * 
+	 * @param calls
+	 *            number of tone() calls the note is split into, in jump table
+	 *            mode
+	 */
+	public int getNoteOverhead(boolean jumpTable, int calls) {
+		if (jumpTable) {
+			return callCycles + calls * (callCycles + jumpSetupCycles);
+		}
+		return callCycles + setupCycles;
+	}
+
+	/**
+	 * @return cycles to call beep(), including passing its arguments and
+	 *         returning
+	 */
+	public int getCallCycles() {
+		return callCycles;
+	}
+
+	public void setCallCycles(int callCycles) {
+		this.callCycles = callCycles;
+	}
+
+	/**
+	 * @return cycles beep() takes to work out semiperiods from ms and hz:
+	 *         a 32 bit multiply and two 32 bit divisions in software
+	 */
+	public int getSetupCycles() {
+		return setupCycles;
+	}
+
+	public void setSetupCycles(int setupCycles) {
+		this.setupCycles = setupCycles;
+	}
+
+	/**
+	 * @return cycles for P1OUT ^= BIT1
+	 */
+	public int getToggleCycles() {
+		return toggleCycles;
+	}
+
+	public void setToggleCycles(int toggleCycles) {
+		this.toggleCycles = toggleCycles;
+	}
+
+	/**
+	 * @return cycles to count down and branch back in the semiperiod loop
+	 */
+	public int getLoopCycles() {
+		return loopCycles;
+	}
+
+	public void setLoopCycles(int loopCycles) {
+		this.loopCycles = loopCycles;
+	}
+
+	/**
+	 * @return cycles the switch takes besides its compares, such as the
+	 *         break's jump
+	 */
+	public int getSwitchCycles() {
+		return switchCycles;
+	}
+
+	public void setSwitchCycles(int switchCycles) {
+		this.switchCycles = switchCycles;
+	}
+
+	/**
+	 * @return cycles for each case compared before the switch finds its
+	 *         match, if the compiler lowers it to a chain of compares
+	 */
+	public int getCaseCycles() {
+		return caseCycles;
+	}
+
+	public void setCaseCycles(int caseCycles) {
+		this.caseCycles = caseCycles;
+	}
+
+	/**
+	 * @return cycles tone() takes to look up its delay function
+	 */
+	public int getJumpSetupCycles() {
+		return jumpSetupCycles;
+	}
+
+	public void setJumpSetupCycles(int jumpSetupCycles) {
+		this.jumpSetupCycles = jumpSetupCycles;
+	}
+
+	/**
+	 * @return cycles to call a delay function through a pointer and return
+	 */
+	public int getIndirectCallCycles() {
+		return indirectCallCycles;
+	}
+
+	public void setIndirectCallCycles(int indirectCallCycles) {
+		this.indirectCallCycles = indirectCallCycles;
+	}
+
+	/**
+	 * @return cycles a rest takes besides its __delay_cycles(); none, since
+	 *         it is expanded inline
+	 */
+	public int getRestCycles() {
+		return restCycles;
+	}
+
+	public void setRestCycles(int restCycles) {
+		this.restCycles = restCycles;
+	}
+}
@@ -0,0 +1,147 @@
+/**
+ * Part of ToneScribe
+ * Copyright (c) 2014, William Karnavas
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.tonescribe.song.linker;
+
+import java.io.IOException;
+import java.util.List;
+
+import com.tonescribe.song.Song;
+
+/**
+ * Base for linkers that write a header, then a piece of output for each note
+ * or rest, then a footer. Each of those is a chunk of its own, so a change to
+ * one note changes one chunk of the output; as blocks, the events are grouped
+ * EVENTS_PER_BLOCK at a time. Linking and writing blocks hold the linker, since
+ * writing the blocks of an older song begins that song again.
+ * 
+ */
+public abstract class EventSongLinker extends AbstractSongLinker implements
+		ChunkedSongLinker, BlockSongLinker {
+	private static final int EVENTS_PER_BLOCK = 256;
+
+	// The song begin() was last called for
+	private Song begunSong = null;
+
+	@Override
+	public synchronized void link(Song song, Appendable out)
+			throws IOException {
+		int count = beginSong(song);
+		appendHeader(song, out);
+		for (int i = 0; i < count; i++) {
+			appendEvent(song, i, out);
+		}
+		appendFooter(song, out);
+	}
+
+	@Override
+	public synchronized void linkChunks(Song song, List<String> chunks) {
+		StringBuilder chunk = new StringBuilder();
+		try {
+			int count = beginSong(song);
+			appendHeader(song, chunk);
+			addChunk(chunks, chunk);
+			for (int i = 0; i < count; i++) {
+				appendEvent(song, i, chunk);
+				addChunk(chunks, chunk);
+			}
+			appendFooter(song, chunk);
+			addChunk(chunks, chunk);
+		} catch (IOException e) {
+			// StringBuilder never throws this
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public Blocks openBlocks(final Song song) {
+		final int count = beginSong(song);
+		return new Blocks() {
+
+			@Override
+			public int getCount() {
+				return (count + EVENTS_PER_BLOCK - 1) / EVENTS_PER_BLOCK + 2;
+			}
+
+			@Override
+			public void append(int block, Appendable out) throws IOException {
+				synchronized (EventSongLinker.this) {
+					// Another song may have been linked since
+					if (begunSong != song) {
+						beginSong(song);
+					}
+
+					if (block == 0) {
+						appendHeader(song, out);
+					} else if (block == getCount() - 1) {
+						appendFooter(song, out);
+					} else {
+						int first = (block - 1) * EVENTS_PER_BLOCK;
+						int last = Math.min(count, first + EVENTS_PER_BLOCK);
+						for (int i = first; i < last; i++) {
+							appendEvent(song, i, out);
+						}
+					}
+				}
+			}
+		};
+	}
+
+	private synchronized int beginSong(Song song) {
+		int count = begin(song);
+		begunSong = song;
+		return count;
+	}
+
+	/**
+	 * Works out anything the events need before any output is written.
+	 * 
+	 * @return number of events to write
+	 */
+	protected int begin(Song song) {
+		return song.getLinkPlan().getCount();
+	}
+
+	protected void appendHeader(Song song, Appendable out) throws IOException {
+	}
+
+	protected abstract void appendEvent(Song song, int index, Appendable out)
+			throws IOException;
+
+	protected void appendFooter(Song song, Appendable out) throws IOException {
+	}
+
+	private static void addChunk(List<String> chunks, StringBuilder chunk) {
+		if (chunk.length() > 0) {
+			chunks.add(chunk.toString());
+			chunk.setLength(0);
+		}
+	}
+}
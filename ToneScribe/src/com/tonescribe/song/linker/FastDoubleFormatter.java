@@ -0,0 +1,189 @@
+/**
+ * Part of ToneScribe
+ * Copyright (c) 2014, William Karnavas
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.tonescribe.song.linker;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+import com.tonescribe.song.ExactDecimal;
+
+/**
+ * Writes doubles as plain decimals, digit by digit, without creating Strings.
+ * Either a fixed number of decimal places is written, or the fewest that
+ * read back as exactly the same double: 440.0 is written 440, and 0.375 is
+ * written 0.375. Numbers whose digits do not fit in a long fall back to
+ * BigDecimal.
+ * <p>
+ * Like the linkers that use it, a formatter should only be used by one
+ * thread at a time.
+ * 
+ */
+public class FastDoubleFormatter {
+	/**
+	 * Decimal places meaning "as few as read back exactly"
+	 */
+	public static final int SHORTEST = -1;
+
+	private static final int MAX_FRACTION_DIGITS = 17;
+
+	// Below this every long is exact as a double
+	private static final double EXACT_LIMIT = 9007199254740992.0;
+	// Below this the digits fit in a long
+	private static final double LONG_LIMIT = 9.2e18;
+
+	private final int fractionDigits;
+
+	// Room for a long and a decimal point
+	private final char[] buffer = new char[21];
+
+	public FastDoubleFormatter() {
+		this(SHORTEST);
+	}
+
+	/**
+	 * @param fractionDigits
+	 *            decimal places to write, up to 17, or SHORTEST
+	 */
+	public FastDoubleFormatter(int fractionDigits) {
+		if (fractionDigits != SHORTEST
+				&& (fractionDigits < 0 || fractionDigits > MAX_FRACTION_DIGITS)) {
+			throw new IllegalArgumentException("Bad decimal places: "
+					+ fractionDigits);
+		}
+		this.fractionDigits = fractionDigits;
+	}
+
+	public int getFractionDigits() {
+		return fractionDigits;
+	}
+
+	public Appendable append(Appendable out, double value) throws IOException {
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			return out.append(Double.toString(value));
+		}
+		if (value < 0 || (value == 0 && 1 / value < 0)) {
+			out.append('-');
+			value = -value;
+		}
+
+		if (fractionDigits == SHORTEST) {
+			// If some number of places reads back exactly, so does every
+			// larger number, so binary search for the fewest
+			long found = -1;
+			int foundPlaces = 0;
+			int low = 0;
+			int high = MAX_FRACTION_DIGITS;
+			while (low <= high) {
+				int places = (low + high) >>> 1;
+				double scaled = value * ExactDecimal.getPower(places);
+				if (scaled >= LONG_LIMIT) {
+					high = places - 1;
+					continue;
+				}
+				long digits = findDigits(value, scaled, places);
+				if (digits >= 0) {
+					found = digits;
+					foundPlaces = places;
+					high = places - 1;
+				} else {
+					low = places + 1;
+				}
+			}
+			if (found >= 0) {
+				return appendDigits(out, found, foundPlaces);
+			}
+			return out.append(new BigDecimal(Double.toString(value))
+					.stripTrailingZeros().toPlainString());
+		}
+
+		long digits = ExactDecimal.getDigits(value, fractionDigits);
+		if (digits >= 0) {
+			return appendDigits(out, digits, fractionDigits);
+		}
+		return out.append(new BigDecimal(value).setScale(fractionDigits,
+				RoundingMode.HALF_UP).toPlainString());
+	}
+
+	public String format(double value) {
+		StringBuilder builder = new StringBuilder();
+		try {
+			append(builder, value);
+		} catch (IOException e) {
+			// StringBuilder never throws this
+			throw new IllegalStateException(e);
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Returns the digits that, divided by 10^places, read back as value, or -1
+	 * if there are none.
+	 */
+	private static long findDigits(double value, double scaled, int places) {
+		// Small enough products are off by less than one, so rounding them
+		// is as good as the exact digits; try the neighbours too in case the
+		// decimal nearest is not the one that reads back
+		long digits = (scaled < EXACT_LIMIT) ? Math.round(scaled)
+				: ExactDecimal.getDigits(value, places);
+		if (ExactDecimal.toDouble(digits, places) == value) {
+			return digits;
+		} else if (ExactDecimal.toDouble(digits + 1, places) == value) {
+			return digits + 1;
+		} else if (digits > 0
+				&& ExactDecimal.toDouble(digits - 1, places) == value) {
+			return digits - 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Appends digits / 10^places.
+	 */
+	private Appendable appendDigits(Appendable out, long digits, int places)
+			throws IOException {
+		// Fill the buffer from the right, one digit at a time
+		int start = buffer.length;
+		int written = 0;
+		do {
+			if (written == places && places > 0) {
+				buffer[--start] = '.';
+			}
+			buffer[--start] = (char) ('0' + digits % 10);
+			digits /= 10;
+			written++;
+		} while (digits > 0 || written <= places);
+		for (int i = start; i < buffer.length; i++) {
+			out.append(buffer[i]);
+		}
+		return out;
+	}
+}
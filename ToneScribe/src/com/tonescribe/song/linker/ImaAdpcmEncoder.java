@@ -0,0 +1,126 @@
+/**
+ * Part of ToneScribe
+ * Copyright (c) 2014, William Karnavas
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.tonescribe.song.linker;
+
+/**
+ * Encodes 16 bit samples as 4 bit IMA ADPCM, one sample at a time, so a
+ * stream of any length can be encoded as it is produced. The decoder starts
+ * from the same state as a new encoder: predicted sample 0, step index 0.
+ * 
+ */
+public class ImaAdpcmEncoder {
+	public static final int[] STEP_TABLE = { 7, 8, 9, 10, 11, 12, 13, 14, 16,
+			17, 19, 21, 23, 25, 28, 31, 34, 37, 41, 45, 50, 55, 60, 66, 73, 80,
+			88, 97, 107, 118, 130, 143, 157, 173, 190, 209, 230, 253, 279, 307,
+			337, 371, 408, 449, 494, 544, 598, 658, 724, 796, 876, 963, 1060,
+			1166, 1282, 1411, 1552, 1707, 1878, 2066, 2272, 2499, 2749, 3024,
+			3327, 3660, 4026, 4428, 4871, 5358, 5894, 6484, 7132, 7845, 8630,
+			9493, 10442, 11487, 12635, 13899, 15289, 16818, 18500, 20350,
+			22385, 24623, 27086, 29794, 32767 };
+
+	public static final int[] INDEX_TABLE = { -1, -1, -1, -1, 2, 4, 6, 8, -1,
+			-1, -1, -1, 2, 4, 6, 8 };
+
+	private int predicted;
+	private int index;
+
+	public ImaAdpcmEncoder() {
+		this(0, 0);
+	}
+
+	/**
+	 * Starts from a state another encoder was in, to carry on from the same
+	 * point in a stream.
+	 */
+	public ImaAdpcmEncoder(int predicted, int index) {
+		this.predicted = predicted;
+		this.index = index;
+	}
+
+	/**
+	 * @param sample
+	 *            signed 16 bit sample
+	 * @return its 4 bit code
+	 */
+	public int encode(int sample) {
+		int step = STEP_TABLE[index];
+		int diff = sample - predicted;
+		int code = 0;
+		if (diff < 0) {
+			code = 8;
+			diff = -diff;
+		}
+
+		// Quantise the difference against the step, working out the delta
+		// the decoder will reconstruct from the code as we go
+		int delta = step >> 3;
+		if (diff >= step) {
+			code |= 4;
+			diff -= step;
+			delta += step;
+		}
+		step >>= 1;
+		if (diff >= step) {
+			code |= 2;
+			diff -= step;
+			delta += step;
+		}
+		step >>= 1;
+		if (diff >= step) {
+			code |= 1;
+			delta += step;
+		}
+
+		predicted += ((code & 8) != 0) ? -delta : delta;
+		if (predicted > Short.MAX_VALUE) {
+			predicted = Short.MAX_VALUE;
+		} else if (predicted < Short.MIN_VALUE) {
+			predicted = Short.MIN_VALUE;
+		}
+		index = Math.max(0, Math.min(STEP_TABLE.length - 1, index
+				+ INDEX_TABLE[code]));
+		return code;
+	}
+
+	/**
+	 * @return the sample the decoder has after the last code
+	 */
+	public int getPredicted() {
+		return predicted;
+	}
+
+	/**
+	 * @return the decoder's step index after the last code
+	 */
+	public int getIndex() {
+		return index;
+	}
+}
@@ -0,0 +1,309 @@
+/**
+ * Part of ToneScribe
+ * Copyright (c) 2014, William Karnavas
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.tonescribe.song.linker;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A linker's output as a CharSequence that is written only where it is read.
+ * Each block not already written is written once when the output is made,
+ * just to count its characters and lines; after that, blocks are written
+ * again as they are read, and the most recently read few are kept.
+ * 
+ */
+public class LazyLinkedOutput implements CharSequence {
+	public static final int DEFAULT_CACHED_BLOCKS = 16;
+
+	private final BlockSongLinker.Blocks blocks;
+	private final String trailer;
+	private final int blockCount;
+
+	// Where each block starts, in characters and in newlines before it; one
+	// extra entry holds the totals
+	private final int[] blockStarts;
+	private final int[] newlineStarts;
+
+	private final Map<Integer, Block> cache;
+
+	/**
+	 * @param trailer
+	 *            text to follow the blocks, such as reports; may be empty
+	 */
+	public LazyLinkedOutput(BlockSongLinker.Blocks blocks, String trailer) {
+		this(blocks, Collections.<String> emptyList(), trailer,
+				DEFAULT_CACHED_BLOCKS);
+	}
+
+	/**
+	 * @param written
+	 *            the first blocks, already written, so they are counted
+	 *            rather than written again
+	 * @param trailer
+	 *            text to follow the blocks, such as reports; may be empty
+	 */
+	public LazyLinkedOutput(BlockSongLinker.Blocks blocks,
+			List<String> written, String trailer) {
+		this(blocks, written, trailer, DEFAULT_CACHED_BLOCKS);
+	}
+
+	public LazyLinkedOutput(BlockSongLinker.Blocks blocks,
+			List<String> written, String trailer, final int cachedBlocks) {
+		this.blocks = blocks;
+		this.trailer = trailer;
+		blockCount = blocks.getCount() + 1;
+		cache = new LinkedHashMap<Integer, Block>(cachedBlocks * 2, 0.75f,
+				true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, Block> eldest) {
+				return size() > cachedBlocks;
+			}
+		};
+
+		blockStarts = new int[blockCount + 1];
+		newlineStarts = new int[blockCount + 1];
+		Counter counter = new Counter();
+		for (int i = 0; i < blockCount; i++) {
+			blockStarts[i] = (int) counter.chars;
+			newlineStarts[i] = (int) counter.newlines;
+			if (i < written.size()) {
+				String text = written.get(i);
+				counter.append(text);
+				if (i < cachedBlocks) {
+					// The first lines are the ones shown first
+					cache.put(i, new Block(text, (int) (counter.newlines
+							- newlineStarts[i])));
+				}
+			} else {
+				appendBlock(i, counter);
+			}
+			if (counter.chars > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("Output is too long");
+			}
+		}
+		blockStarts[blockCount] = (int) counter.chars;
+		newlineStarts[blockCount] = (int) counter.newlines;
+	}
+
+	@Override
+	public int length() {
+		return blockStarts[blockCount];
+	}
+
+	@Override
+	public char charAt(int index) {
+		if (index < 0 || index >= length()) {
+			throw new IndexOutOfBoundsException("Index: " + index);
+		}
+		int block = findBlock(blockStarts, index);
+		return getBlock(block).text.charAt(index - blockStarts[block]);
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		if (start < 0 || end > length() || start > end) {
+			throw new IndexOutOfBoundsException("Range: " + start + " to "
+					+ end);
+		}
+		StringBuilder builder = new StringBuilder(end - start);
+		int block = findBlock(blockStarts, start);
+		while (start < end) {
+			String text = getBlock(block).text;
+			int offset = start - blockStarts[block];
+			int take = Math.min(end - start, text.length() - offset);
+			builder.append(text, offset, offset + take);
+			start += take;
+			block++;
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Writes the whole output; as a String it has to be held whole, so
+	 * appendTo() is better where it will do.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder(length());
+		try {
+			appendTo(builder);
+		} catch (IOException e) {
+			// StringBuilder never throws this
+			throw new IllegalStateException(e);
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Writes the whole output, a block at a time, without keeping any of it.
+	 */
+	public void appendTo(Appendable out) throws IOException {
+		for (int i = 0; i < blockCount - 1; i++) {
+			blocks.append(i, out);
+		}
+		out.append(trailer);
+	}
+
+	/**
+	 * @return lines in the output; a last line without a newline counts
+	 */
+	public int getLineCount() {
+		int newlines = newlineStarts[blockCount];
+		int length = length();
+		if (length > 0 && charAt(length - 1) != '\n') {
+			return newlines + 1;
+		}
+		return newlines;
+	}
+
+	/**
+	 * @return a line of the output, without its line separator
+	 */
+	public String getLine(int line) {
+		int start = (line == 0) ? 0 : getNewline(line - 1) + 1;
+		int end = (line < newlineStarts[blockCount]) ? getNewline(line)
+				: length();
+		if (end > start && charAt(end - 1) == '\r') {
+			end--;
+		}
+		return subSequence(start, end).toString();
+	}
+
+	/**
+	 * @return the index of a newline, counting from 0
+	 */
+	private int getNewline(int newline) {
+		// Blocks without newlines share a start with the next; the last of
+		// them is the one that has it
+		int block = findBlock(newlineStarts, newline);
+		return blockStarts[block]
+				+ getBlock(block).newlines[newline - newlineStarts[block]];
+	}
+
+	/**
+	 * @return the last block starting at or before a position
+	 */
+	private int findBlock(int[] starts, int position) {
+		int low = 0;
+		int high = blockCount - 1;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (starts[middle] <= position) {
+				low = middle;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return low;
+	}
+
+	private synchronized Block getBlock(int index) {
+		Block block = cache.get(index);
+		if (block == null) {
+			StringBuilder builder = new StringBuilder(blockStarts[index + 1]
+					- blockStarts[index]);
+			appendBlock(index, builder);
+			block = new Block(builder.toString(), newlineStarts[index + 1]
+					- newlineStarts[index]);
+			cache.put(index, block);
+		}
+		return block;
+	}
+
+	private void appendBlock(int index, Appendable out) {
+		try {
+			if (index == blockCount - 1) {
+				out.append(trailer);
+			} else {
+				blocks.append(index, out);
+			}
+		} catch (IOException e) {
+			// Neither StringBuilder nor Counter throws this
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static class Block {
+		private final String text;
+		private final int[] newlines;
+
+		private Block(String text, int newlineCount) {
+			this.text = text;
+			newlines = new int[newlineCount];
+			for (int i = 0, j = 0; i < text.length() && j < newlineCount; i++) {
+				if (text.charAt(i) == '\n') {
+					newlines[j++] = i;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Counts what is appended to it, and keeps none of it.
+	 */
+	private static class Counter implements Appendable {
+		private long chars = 0;
+		private long newlines = 0;
+
+		@Override
+		public Appendable append(CharSequence csq) {
+			if (csq == null) {
+				csq = "null";
+			}
+			return append(csq, 0, csq.length());
+		}
+
+		@Override
+		public Appendable append(CharSequence csq, int start, int end) {
+			if (csq == null) {
+				csq = "null";
+			}
+			for (int i = start; i < end; i++) {
+				append(csq.charAt(i));
+			}
+			return this;
+		}
+
+		@Override
+		public Appendable append(char c) {
+			chars++;
+			if (c == '\n') {
+				newlines++;
+			}
+			return this;
+		}
+	}
+}
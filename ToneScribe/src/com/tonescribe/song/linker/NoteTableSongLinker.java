@@ -0,0 +1,207 @@
+/**
+ * Part of ToneScribe
+ * Copyright (c) 2014, William Karnavas
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.tonescribe.song.linker;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import com.tonescribe.ToneScribe;
+import com.tonescribe.song.LinkPlan;
+import com.tonescribe.song.Song;
+
+/**
+ * Links a song into a compact table of notes for microcontrollers with little
+ * flash. Each distinct frequency and duration is stored once in a dictionary;
+ * each note is then a pair of indexes into them, packed into one byte when
+ * both dictionaries have 16 entries or fewer. A short loop plays the table
+ * with beep() and delayMS().
+ * 
+ */
+public class NoteTableSongLinker extends AbstractSongLinker {
+	/**
+	 * Approximate size of one beep(freq, duration) call on an MSP430: two
+	 * immediate moves and a call
+	 */
+	public static final int BYTES_PER_CALL = 12;
+
+	private int lastSongBytes = 0;
+	private int lastEventCount = 0;
+
+	@Override
+	public void link(Song song, Appendable out) throws IOException {
+		// Gather notes; rests are frequency 0
+		ArrayList<Integer> freqs = new ArrayList<Integer>();
+		ArrayList<Integer> durations = new ArrayList<Integer>();
+		LinkPlan plan = song.getLinkPlan();
+		for (int i = 0; i < plan.getCount(); i++) {
+			freqs.add(plan.getFreq(i));
+			durations.add(plan.getMs(i));
+		}
+		int count = freqs.size();
+
+		// Build dictionaries
+		ArrayList<Integer> freqTable = getDistinct(freqs);
+		ArrayList<Integer> durationTable = getDistinct(durations);
+		HashMap<Integer, Integer> freqIndexes = getIndexes(freqTable);
+		HashMap<Integer, Integer> durationIndexes = getIndexes(durationTable);
+
+		boolean nibbles = freqTable.size() <= 16 && durationTable.size() <= 16;
+		boolean bytes = freqTable.size() <= 256 && durationTable.size() <= 256;
+		int bytesPerNote = nibbles ? 1 : (bytes ? 2 : 4);
+		int tableBytes = (freqTable.size() + durationTable.size()) * 2;
+		lastEventCount = count;
+		lastSongBytes = count * bytesPerNote + tableBytes;
+
+		out.append("// Code Generated by ToneScribe ")
+				.append(ToneScribe.CURRENT_VERSION)
+				.append(" ( http://tonescribe.weebly.com )").append(NEWLINE);
+		out.append("// Note table: ");
+		appendInt(out, count).append(" notes, ");
+		appendInt(out, freqTable.size()).append(" frequencies, ");
+		appendInt(out, durationTable.size()).append(" durations")
+				.append(NEWLINE);
+		out.append("// Song data: ");
+		appendInt(out, lastSongBytes).append(" bytes (about ");
+		appendInt(out, count * BYTES_PER_CALL).append(
+				" bytes as beep() calls)").append(NEWLINE);
+		out.append(NEWLINE);
+
+		out.append("// Frequencies in hz; 0 is a rest").append(NEWLINE);
+		appendTable(out, "unsigned int", "songFreqs", freqTable);
+		out.append("// Durations in ms").append(NEWLINE);
+		appendTable(out, "unsigned int", "songDurations", durationTable);
+
+		// Notes
+		if (nibbles) {
+			out.append("// High nibble: frequency, low nibble: duration")
+					.append(NEWLINE);
+			out.append("static const unsigned char songNotes[");
+		} else if (bytes) {
+			out.append("// Pairs of frequency, duration").append(NEWLINE);
+			out.append("static const unsigned char songNotes[");
+		} else {
+			out.append("// Pairs of frequency, duration").append(NEWLINE);
+			out.append("static const unsigned int songNotes[");
+		}
+		appendInt(out, Math.max(1, nibbles ? count : count * 2)).append(
+				"] = {");
+		if (count == 0) {
+			out.append(NEWLINE).append("\t0");
+		}
+		for (int i = 0; i < count; i++) {
+			int f = freqIndexes.get(freqs.get(i));
+			int d = durationIndexes.get(durations.get(i));
+			appendSeparator(out, i);
+			if (nibbles) {
+				appendHexByte(out, (f << 4) | d);
+			} else {
+				appendInt(out, f).append(", ");
+				appendInt(out, d);
+			}
+		}
+		out.append(NEWLINE).append("};").append(NEWLINE).append(NEWLINE);
+
+		// Player
+		out.append("void tune() {").append(NEWLINE);
+		out.append("\tunsigned int i;").append(NEWLINE);
+		out.append("\tfor (i = 0; i < ");
+		appendInt(out, count).append("; i++) {").append(NEWLINE);
+		if (nibbles) {
+			out.append("\t\tunsigned int freq = songFreqs[songNotes[i] >> 4];")
+					.append(NEWLINE);
+			out.append(
+					"\t\tunsigned int duration = songDurations[songNotes[i] & 0x0F];")
+					.append(NEWLINE);
+		} else {
+			out.append("\t\tunsigned int freq = songFreqs[songNotes[i * 2]];")
+					.append(NEWLINE);
+			out.append(
+					"\t\tunsigned int duration = songDurations[songNotes[i * 2 + 1]];")
+					.append(NEWLINE);
+		}
+		out.append("\t\tif (freq != 0) {").append(NEWLINE);
+		out.append("\t\t\tbeep(freq, duration);").append(NEWLINE);
+		out.append("\t\t} else {").append(NEWLINE);
+		out.append("\t\t\tdelayMS(duration);").append(NEWLINE);
+		out.append("\t\t}").append(NEWLINE);
+		out.append("\t}").append(NEWLINE);
+		out.append("}").append(NEWLINE);
+	}
+
+	/**
+	 * @return bytes of flash the notes and dictionaries of the last song
+	 *         linked take, not counting the player loop
+	 */
+	public int getLastSongBytes() {
+		return lastSongBytes;
+	}
+
+	/**
+	 * @return notes and rests in the last song linked
+	 */
+	public int getLastEventCount() {
+		return lastEventCount;
+	}
+
+	private static ArrayList<Integer> getDistinct(ArrayList<Integer> values) {
+		ArrayList<Integer> distinct = new ArrayList<Integer>(
+				new HashSet<Integer>(values));
+		Collections.sort(distinct);
+		return distinct;
+	}
+
+	private static HashMap<Integer, Integer> getIndexes(
+			ArrayList<Integer> table) {
+		HashMap<Integer, Integer> indexes = new HashMap<Integer, Integer>();
+		for (int i = 0; i < table.size(); i++) {
+			indexes.put(table.get(i), i);
+		}
+		return indexes;
+	}
+
+	private static void appendTable(Appendable out, String type, String name,
+			ArrayList<Integer> values) throws IOException {
+		out.append("static const ").append(type).append(' ').append(name)
+				.append('[');
+		appendInt(out, Math.max(1, values.size())).append("] = {");
+		if (values.isEmpty()) {
+			out.append(NEWLINE).append("\t0");
+		}
+		for (int i = 0; i < values.size(); i++) {
+			appendSeparator(out, i);
+			appendInt(out, values.get(i));
+		}
+		out.append(NEWLINE).append("};").append(NEWLINE);
+	}
+}
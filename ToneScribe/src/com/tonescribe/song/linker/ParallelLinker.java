@@ -0,0 +1,154 @@
+/**
+ * Part of ToneScribe
+ * Copyright (c) 2014, William Karnavas
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.tonescribe.song.linker;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.tonescribe.song.Song;
+
+/**
+ * Links one song for several targets at once, each linker on its own thread.
+ * The song's link plan is built once, before the linkers start, and shared by
+ * all of them. Linkers keep state from their last song, so each one given
+ * must be its own instance.
+ * 
+ */
+public class ParallelLinker {
+	private final int threads;
+
+	public ParallelLinker() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public ParallelLinker(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Bad thread count: " + threads);
+		}
+		this.threads = threads;
+	}
+
+	/**
+	 * @return each linker's output, in the same order as linkers
+	 */
+	public List<String> linkAll(final Song song, List<SongLinker> linkers)
+			throws InterruptedException {
+		ArrayList<Callable<String>> tasks = new ArrayList<Callable<String>>();
+		for (final SongLinker linker : linkers) {
+			tasks.add(new Callable<String>() {
+
+				@Override
+				public String call() {
+					return linker.link(song);
+				}
+			});
+		}
+		try {
+			return run(song, tasks);
+		} catch (IOException e) {
+			// Linking to a String never throws this
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Streams each linker's output into the file at the same index, without
+	 * building any of them in memory.
+	 */
+	public void linkAll(final Song song, List<SongLinker> linkers,
+			List<File> files) throws IOException, InterruptedException {
+		if (linkers.size() != files.size()) {
+			throw new IllegalArgumentException(linkers.size()
+					+ " linkers but " + files.size() + " files");
+		}
+
+		ArrayList<Callable<String>> tasks = new ArrayList<Callable<String>>();
+		for (int i = 0; i < linkers.size(); i++) {
+			final SongLinker linker = linkers.get(i);
+			final File file = files.get(i);
+			tasks.add(new Callable<String>() {
+
+				@Override
+				public String call() throws IOException {
+					ChannelAppendable out = new ChannelAppendable(
+							new FileOutputStream(file).getChannel());
+					try {
+						linker.link(song, out);
+					} finally {
+						out.close();
+					}
+					return file.getName();
+				}
+			});
+		}
+		run(song, tasks);
+	}
+
+	private List<String> run(Song song, List<Callable<String>> tasks)
+			throws IOException, InterruptedException {
+		// Build the plan here, rather than on whichever linker gets there
+		// first while the rest wait
+		song.getLinkPlan();
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+				threads, Math.max(1, tasks.size())));
+		try {
+			List<Future<String>> futures = executor.invokeAll(tasks);
+			ArrayList<String> results = new ArrayList<String>();
+			for (Future<String> future : futures) {
+				try {
+					results.add(future.get());
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof IOException) {
+						throw (IOException) cause;
+					} else if (cause instanceof RuntimeException) {
+						throw (RuntimeException) cause;
+					} else if (cause instanceof Error) {
+						throw (Error) cause;
+					}
+					throw new IllegalStateException(cause);
+				}
+			}
+			return results;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
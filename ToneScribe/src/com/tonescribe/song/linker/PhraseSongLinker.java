@@ -0,0 +1,222 @@
+/**
+ * Part of ToneScribe
+ * Copyright (c) 2014, William Karnavas
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.tonescribe.song.linker;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import com.tonescribe.ToneScribe;
+import com.tonescribe.song.LinkPlan;
+import com.tonescribe.song.Song;
+
+/**
+ * Links a song into beep() and delayMS() calls like GenericSongLinker, but
+ * plays repeated passages from functions and repeated notes or passages in a
+ * row from loops, so that songs with verses and choruses fit in less flash.
+ * 
+ */
+public class PhraseSongLinker extends AbstractSongLinker {
+	private RepeatCostModel costModel = new RepeatCostModel();
+
+	private int lastSongBytes = 0;
+	private int lastUnrolledBytes = 0;
+
+	public PhraseSongLinker() {
+	}
+
+	public PhraseSongLinker(RepeatCostModel costModel) {
+		this.costModel = costModel;
+	}
+
+	@Override
+	public void link(Song song, Appendable out) throws IOException {
+		// Give each distinct note or rest a symbol; rests are frequency -1
+		ArrayList<long[]> eventTable = new ArrayList<long[]>();
+		HashMap<Long, Integer> symbols = new HashMap<Long, Integer>();
+		LinkPlan plan = song.getLinkPlan();
+		int count = plan.getCount();
+		int[] events = new int[count];
+		for (int i = 0; i < count; i++) {
+			int freq = plan.isTone(i) ? plan.getFreq(i) : -1;
+			int duration = plan.getMs(i);
+			Long key = ((long) freq << 32) | (duration & 0xFFFFFFFFL);
+			Integer symbol = symbols.get(key);
+			if (symbol == null) {
+				symbol = eventTable.size();
+				symbols.put(key, symbol);
+				eventTable.add(new long[] { freq, duration });
+			}
+			events[i] = symbol;
+		}
+
+		RepetitionFinder.Result result = new RepetitionFinder(costModel).find(
+				events, eventTable.size());
+
+		lastUnrolledBytes = count * costModel.getBytesPerEvent();
+		lastSongBytes = getBytes(result, result.getMain());
+		for (int[] phrase : result.getPhrases()) {
+			lastSongBytes += getBytes(result, phrase)
+					+ costModel.getBytesPerPhrase();
+		}
+
+		out.append("// Code Generated by ToneScribe ")
+				.append(ToneScribe.CURRENT_VERSION)
+				.append(" ( http://tonescribe.weebly.com )").append(NEWLINE);
+		out.append("// ");
+		appendInt(out, count).append(" notes in ");
+		appendInt(out, result.getPhrases().size()).append(" phrases: about ");
+		appendInt(out, lastSongBytes).append(" bytes (about ");
+		appendInt(out, lastUnrolledBytes).append(" bytes unrolled)").append(
+				NEWLINE);
+		out.append(NEWLINE);
+
+		for (int i = 0; i < result.getPhrases().size(); i++) {
+			out.append("void phrase");
+			appendInt(out, i).append("() {").append(NEWLINE);
+			appendBody(out, result, result.getPhrases().get(i), eventTable);
+			out.append("}").append(NEWLINE).append(NEWLINE);
+		}
+
+		out.append("void tune() {").append(NEWLINE);
+		appendBody(out, result, result.getMain(), eventTable);
+		out.append("}").append(NEWLINE);
+	}
+
+	/**
+	 * @return approximate bytes of flash the last song linked takes
+	 */
+	public int getLastSongBytes() {
+		return lastSongBytes;
+	}
+
+	/**
+	 * @return approximate bytes of flash the last song linked would take
+	 *         without phrases or loops
+	 */
+	public int getLastUnrolledBytes() {
+		return lastUnrolledBytes;
+	}
+
+	public RepeatCostModel getCostModel() {
+		return costModel;
+	}
+
+	public void setCostModel(RepeatCostModel costModel) {
+		this.costModel = costModel;
+	}
+
+	private int getStatementBytes(RepetitionFinder.Result result, int symbol) {
+		return result.isPhrase(symbol) ? costModel.getBytesPerCall()
+				: costModel.getBytesPerEvent();
+	}
+
+	/**
+	 * @return size of a sequence once runs are looped
+	 */
+	private int getBytes(RepetitionFinder.Result result, int[] sequence) {
+		int bytes = 0;
+		int i = 0;
+		while (i < sequence.length) {
+			int run = getRunLength(sequence, i);
+			int statementBytes = getStatementBytes(result, sequence[i]);
+			if (costModel.isLoopWorthIt(statementBytes, run)) {
+				bytes += statementBytes + costModel.getBytesPerLoop();
+			} else {
+				bytes += statementBytes * run;
+			}
+			i += run;
+		}
+		return bytes;
+	}
+
+	private static int getRunLength(int[] sequence, int start) {
+		int end = start + 1;
+		while (end < sequence.length && sequence[end] == sequence[start]) {
+			end++;
+		}
+		return end - start;
+	}
+
+	private void appendBody(Appendable out, RepetitionFinder.Result result,
+			int[] sequence, ArrayList<long[]> eventTable) throws IOException {
+		// Declare the loop counter up front, as C89 compilers require
+		int i = 0;
+		while (i < sequence.length) {
+			int run = getRunLength(sequence, i);
+			if (costModel.isLoopWorthIt(
+					getStatementBytes(result, sequence[i]), run)) {
+				out.append("\tunsigned int i;").append(NEWLINE);
+				break;
+			}
+			i += run;
+		}
+
+		i = 0;
+		while (i < sequence.length) {
+			int symbol = sequence[i];
+			int run = getRunLength(sequence, i);
+			if (costModel.isLoopWorthIt(getStatementBytes(result, symbol), run)) {
+				out.append("\tfor (i = 0; i < ");
+				appendInt(out, run).append("; i++) {").append(NEWLINE);
+				out.append("\t\t");
+				appendStatement(out, result, symbol, eventTable);
+				out.append("\t}").append(NEWLINE);
+			} else {
+				for (int j = 0; j < run; j++) {
+					out.append('\t');
+					appendStatement(out, result, symbol, eventTable);
+				}
+			}
+			i += run;
+		}
+	}
+
+	private static void appendStatement(Appendable out,
+			RepetitionFinder.Result result, int symbol,
+			ArrayList<long[]> eventTable) throws IOException {
+		if (result.isPhrase(symbol)) {
+			out.append("phrase");
+			appendInt(out, result.getPhraseIndex(symbol)).append("();");
+		} else {
+			long[] event = eventTable.get(symbol);
+			if (event[0] >= 0) {
+				out.append("beep(");
+				appendInt(out, event[0]).append(", ");
+				appendInt(out, event[1]).append(");");
+			} else {
+				out.append("delayMS(");
+				appendInt(out, event[1]).append(");");
+			}
+		}
+		out.append(NEWLINE);
+	}
+}
@@ -0,0 +1,139 @@
+/**
+ * Part of ToneScribe
+ * Copyright (c) 2014, William Karnavas
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.tonescribe.song.linker;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.TreeMap;
+
+/**
+ * How far each note a linker wrote is from the pitch the song asked for, once
+ * counted out on the target's clock, and the worst of them.
+ * 
+ */
+public class PitchErrorReport {
+	private final long clockHz;
+	private final TreeMap<Double, TargetClock.Divisor> divisors = new TreeMap<Double, TargetClock.Divisor>(
+			Collections.reverseOrder());
+	private final TreeMap<Double, Integer> uses = new TreeMap<Double, Integer>();
+	private TargetClock.Divisor worst = null;
+
+	public PitchErrorReport(long clockHz) {
+		this.clockHz = clockHz;
+	}
+
+	/**
+	 * Records one note played with a divisor.
+	 */
+	public void add(TargetClock.Divisor divisor) {
+		double freq = divisor.getRequestedFreq();
+		divisors.put(freq, divisor);
+		Integer count = uses.get(freq);
+		uses.put(freq, (count == null) ? 1 : count + 1);
+		if (worst == null
+				|| Math.abs(divisor.getCentsError()) > Math.abs(worst
+						.getCentsError())) {
+			worst = divisor;
+		}
+	}
+
+	/**
+	 * @return the note furthest out of tune, or null if there were no notes
+	 */
+	public TargetClock.Divisor getWorst() {
+		return worst;
+	}
+
+	/**
+	 * @return the worst error in cents, as a magnitude
+	 */
+	public double getWorstCentsError() {
+		return (worst == null) ? 0 : Math.abs(worst.getCentsError());
+	}
+
+	/**
+	 * @return divisors for each frequency, highest first
+	 */
+	public Iterable<TargetClock.Divisor> getDivisors() {
+		return divisors.values();
+	}
+
+	/**
+	 * @return number of notes played at freq
+	 */
+	public int getUses(double freq) {
+		Integer count = uses.get(freq);
+		return (count == null) ? 0 : count;
+	}
+
+	/**
+	 * Writes the report as a table, each line started with linePrefix (such as
+	 * "// " to make it a comment).
+	 */
+	public void append(Appendable out, String linePrefix, String newline)
+			throws IOException {
+		out.append(linePrefix).append("Pitch error on a ")
+				.append(String.valueOf(clockHz)).append(" hz clock")
+				.append(newline);
+		out.append(linePrefix).append(
+				String.format("%10s %10s %9s %8s %7s %5s", "Hz", "Plays",
+						"Prescaler", "Count", "Cents", "Notes")).append(
+				newline);
+		for (TargetClock.Divisor d : divisors.values()) {
+			out.append(linePrefix).append(
+					String.format("%10.2f %10.2f %9d %8d %+7.2f %5d",
+							d.getRequestedFreq(), d.getActualFreq(),
+							d.getPrescaler(), d.getCount(),
+							d.getCentsError(),
+							getUses(d.getRequestedFreq()))).append(newline);
+		}
+		if (worst != null) {
+			out.append(linePrefix).append(
+					String.format("Worst: %+.2f cents at %.2f hz",
+							worst.getCentsError(), worst.getRequestedFreq()))
+					.append(newline);
+		} else {
+			out.append(linePrefix).append("No notes").append(newline);
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		try {
+			append(builder, "", "\n");
+		} catch (IOException e) {
+			// StringBuilder never throws this
+			throw new IllegalStateException(e);
+		}
+		return builder.toString();
+	}
+}
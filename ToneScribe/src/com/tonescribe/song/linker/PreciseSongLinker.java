@@ -33,23 +33,53 @@ package com.tonescribe.song.linker;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashSet;
-import java.util.LinkedList;
 
 import com.tonescribe.ToneScribe;
-import com.tonescribe.song.RestEvent;
 import com.tonescribe.song.Song;
-import com.tonescribe.song.SongEvent;
-import com.tonescribe.song.ToneEvent;
 
-public class PreciseSongLinker implements SongLinker {
-
-	private static String templateStart, templateEnd;
+public class PreciseSongLinker extends AbstractSongLinker implements
+		ClockedSongLinker, TargetProgramLinker, CompensatingSongLinker {
+	// Start of the template is split around where the switch statement goes,
+	// with the version already filled in
+	private static String templateBeforeSwitch, templateAfterSwitch,
+			templateEnd;
+	// Jump table mode's start is split the same way around the delays
+	private static String templateBeforeDelays, templateAfterDelays;
 	static {
-		templateStart = loadFile("templateStart.txt");
+		String templateStart = loadFile("templateStart.txt").replace(
+				"<VERSION>", ToneScribe.CURRENT_VERSION);
+		int switchIndex = templateStart.indexOf("<FREQSWITCH>");
+		templateBeforeSwitch = templateStart.substring(0, switchIndex);
+		templateAfterSwitch = templateStart.substring(switchIndex
+				+ "<FREQSWITCH>".length());
 		templateEnd = loadFile("templateEnd.txt");
+
+		String templateJumpStart = loadFile("templateJumpStart.txt").replace(
+				"<VERSION>", ToneScribe.CURRENT_VERSION);
+		int delaysIndex = templateJumpStart.indexOf("<DELAYS>");
+		templateBeforeDelays = templateJumpStart.substring(0, delaysIndex);
+		templateAfterDelays = templateJumpStart.substring(delaysIndex
+				+ "<DELAYS>".length());
+	}
+
+	// __delay_cycles() counts single cycles, up to 32 bits
+	private TargetClock targetClock = new TargetClock(1000000,
+			new int[] { 1 }, 32);
+	private PitchErrorReport lastPitchErrorReport = null;
+	private TargetProgram lastProgram = null;
+	private boolean jumpTable = false;
+	private boolean compensateTiming = false;
+	private CycleCostModel costModel = new CycleCostModel();
+
+	public PreciseSongLinker() {
+	}
+
+	/**
+	 * @param jumpTable
+	 *            see setJumpTable()
+	 */
+	public PreciseSongLinker(boolean jumpTable) {
+		this.jumpTable = jumpTable;
 	}
 
 	private static String loadFile(String string) {
@@ -71,67 +101,168 @@ public class PreciseSongLinker implements SongLinker {
 	}
 
 	@Override
-	public String link(Song song) {
-		// Prepare beep statements
-		HashSet<Integer> freqsUsed = new HashSet<Integer>();
-		StringBuilder bodyBuilder = new StringBuilder();
-		// Add beep statements
-		for (SongEvent e : song.getTones()) {
-			if (e.getTimeSeconds() < song.getSelectionStartTimeSec()
-					|| e.getTimeSeconds() > song.getSelectionEndTimeSec()) {
-				continue;
+	public void link(Song song, Appendable out) throws IOException {
+		TargetProgram program = TargetProgram.build(song, targetClock,
+				jumpTable, compensateTiming ? costModel : null, true);
+		PitchErrorReport report = new PitchErrorReport(
+				targetClock.getClockHz());
+		for (TargetProgram.Step step : program.getSteps()) {
+			if (step.isTone()) {
+				report.add(program.getDivisor(step.getFreqIndex()));
 			}
+		}
 
-			if (e instanceof ToneEvent) {
-				int freq = (int) ((ToneEvent) e).getPitch();
-				freqsUsed.add(freq);
-				bodyBuilder.append("\tbeep(").append(freq).append(", ")
-						.append((int) (e.getDurationSeconds() * 1000.0))
-						.append(");")
-						.append(System.getProperty("line.separator"));
-			} else if (e instanceof RestEvent) {
-				bodyBuilder.append("\t__delay_cycles(")
-						.append((int) (e.getDurationSeconds() * 1000000.0))
-						.append(");")
-						.append(System.getProperty("line.separator"));
-			}
+		if (jumpTable) {
+			linkJumpTable(program, out);
+		} else {
+			linkSwitch(program, out);
 		}
+		lastProgram = program;
+		lastPitchErrorReport = report;
+	}
 
-		// Create frequency delays switch statement. List with highest
+	private void linkSwitch(TargetProgram program, Appendable out)
+			throws IOException {
+		// Create frequency delays switch statement. The program lists highest
 		// frequencies first; these are most sensitive to extra cycles consumed
 		// by switch statement
-		StringBuilder freqSwitchBuilder = new StringBuilder();
-		freqSwitchBuilder.append("switch (freq) {\n");
-		LinkedList<Integer> freqsUsedSorted = new LinkedList<Integer>(freqsUsed);
-		Collections.sort(freqsUsedSorted, new Comparator<Integer>() {
-
-			@Override
-			public int compare(Integer o1, Integer o2) {
-				return o2 - o1;
+		out.append(templateBeforeSwitch);
+		out.append("switch (freq) {\n");
+		for (int i = 0; i < program.getFreqCount(); i++) {
+			out.append("\t\tcase ");
+			appendInt(out, program.getFreq(i)).append(": \n");
+			out.append("\t\t\t__delay_cycles(");
+			appendInt(out, program.getDelayCycles(i)).append(");\n");
+			out.append("\t\t\tbreak;\n");
+		}
+		out.append("\t\t}\n");
+		out.append(templateAfterSwitch.replace("<NOTEGAP>",
+				String.valueOf(program.getNoteGapCycles())));
+
+		// Add beep statements
+		for (TargetProgram.Step step : program.getSteps()) {
+			if (step.isTone()) {
+				out.append("\tbeep(");
+				appendInt(out, program.getFreq(step.getFreqIndex())).append(
+						", ");
+				appendInt(out, step.getMs()).append(");").append(NEWLINE);
+			} else {
+				out.append("\t__delay_cycles(");
+				appendInt(out, step.getRestCycles()).append(");").append(
+						NEWLINE);
 			}
-		});
-		for (Integer freq : freqsUsedSorted) {
-			// Delay for 1M cycles divided by frequency
-			// Cut in half again to delay a semiperiod
-			int delayCycles = (1000000 / freq) / 2;
-
-			freqSwitchBuilder.append("\t\tcase ").append(freq).append(": \n");
-			freqSwitchBuilder.append("\t\t\t__delay_cycles(")
-					.append(delayCycles).append(");\n");
-			freqSwitchBuilder.append("\t\t\tbreak;\n");
 		}
-		freqSwitchBuilder.append("\t\t}\n");
-
-		// Prepare beginning of script
-		StringBuilder builder = new StringBuilder();
-		builder.append(templateStart.replace("<FREQSWITCH>",
-				freqSwitchBuilder.toString()).replace("<VERSION>",
-				ToneScribe.CURRENT_VERSION));
-		// add beeps into script
-		builder.append(bodyBuilder);
+
 		// Prepare end of script
-		builder.append(templateEnd);
-		return builder.toString();
+		out.append(templateEnd);
+	}
+
+	/**
+	 * Writes beep() to pick each note's delay from an array of functions by
+	 * index, instead of from a switch on its frequency. Every note then takes
+	 * the same time to dispatch, however many frequencies the song uses.
+	 */
+	private void linkJumpTable(TargetProgram program, Appendable out)
+			throws IOException {
+		out.append(templateBeforeDelays);
+		for (int i = 0; i < program.getFreqCount(); i++) {
+			out.append("static void delay");
+			appendInt(out, i).append("(void) { __delay_cycles(");
+			appendInt(out, program.getDelayCycles(i)).append("); } // ");
+			appendInt(out, program.getFreq(i)).append(" hz").append(NEWLINE);
+		}
+		out.append(NEWLINE).append("static void (* const delays[");
+		appendInt(out, Math.max(1, program.getFreqCount())).append(
+				"])(void) = {");
+		if (program.getFreqCount() == 0) {
+			out.append(NEWLINE).append("\t0");
+		}
+		for (int i = 0; i < program.getFreqCount(); i++) {
+			appendSeparator(out, i);
+			out.append("delay");
+			appendInt(out, i);
+		}
+		out.append(NEWLINE).append("};").append(NEWLINE);
+		out.append(templateAfterDelays.replace("<NOTEGAP>",
+				String.valueOf(program.getNoteGapCycles())));
+
+		// Add beep statements. Notes too long for one call are started with
+		// tone().
+		for (TargetProgram.Step step : program.getSteps()) {
+			if (step.isTone()) {
+				long semiperiods = step.getSemiperiods();
+				while (semiperiods > TargetProgram.MAX_SEMIPERIODS) {
+					out.append("\ttone(");
+					appendInt(out, step.getFreqIndex()).append(", ");
+					appendInt(out, TargetProgram.MAX_SEMIPERIODS).append(");")
+							.append(NEWLINE);
+					semiperiods -= TargetProgram.MAX_SEMIPERIODS;
+				}
+				out.append("\tbeep(");
+				appendInt(out, step.getFreqIndex()).append(", ");
+				appendInt(out, semiperiods).append(");").append(NEWLINE);
+			} else {
+				out.append("\t__delay_cycles(");
+				appendInt(out, step.getRestCycles()).append(");").append(
+						NEWLINE);
+			}
+		}
+
+		out.append(templateEnd);
+	}
+
+	/**
+	 * Sets whether beep() finds each note's delay through a jump table of
+	 * dense indexes (true) or a switch on frequency (false, the default).
+	 */
+	public void setJumpTable(boolean jumpTable) {
+		this.jumpTable = jumpTable;
+	}
+
+	public boolean isJumpTable() {
+		return jumpTable;
 	}
 
+	/**
+	 * Sets whether note lengths and semiperiod delays are shortened by the
+	 * cycles the cost model says beep() spends around them.
+	 */
+	@Override
+	public void setCompensateTiming(boolean compensateTiming) {
+		this.compensateTiming = compensateTiming;
+	}
+
+	@Override
+	public boolean isCompensateTiming() {
+		return compensateTiming;
+	}
+
+	@Override
+	public CycleCostModel getCostModel() {
+		return costModel;
+	}
+
+	public void setCostModel(CycleCostModel costModel) {
+		this.costModel = costModel;
+	}
+
+	@Override
+	public TargetClock getTargetClock() {
+		return targetClock;
+	}
+
+	@Override
+	public void setTargetClock(TargetClock targetClock) {
+		this.targetClock = targetClock;
+	}
+
+	@Override
+	public PitchErrorReport getLastPitchErrorReport() {
+		return lastPitchErrorReport;
+	}
+
+	@Override
+	public TargetProgram getLastProgram() {
+		return lastProgram;
+	}
 }
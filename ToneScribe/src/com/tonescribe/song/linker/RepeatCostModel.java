@@ -0,0 +1,149 @@
+/**
+ * Part of ToneScribe
+ * Copyright (c) 2014, William Karnavas
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.tonescribe.song.linker;
+
+/**
+ * Sizes, in bytes, of the pieces of code RepetitionFinder weighs against each
+ * other when deciding whether a repeated passage is worth turning into a
+ * phrase (a function or subroutine) or a loop. The defaults are for an MSP430
+ * calling beep() as a C function; tune them for other targets.
+ * 
+ */
+public class RepeatCostModel {
+	private int bytesPerEvent = 12;
+	private int bytesPerCall = 4;
+	private int bytesPerPhrase = 2;
+	private int bytesPerLoop = 12;
+	private int minPhraseLength = 2;
+	private int maxPhraseLength = 64;
+	private int maxPhrases = 256;
+
+	public RepeatCostModel() {
+	}
+
+	/**
+	 * @param bytesPerEvent
+	 *            size of the code that plays one note or rest
+	 * @param bytesPerCall
+	 *            size of a call to a phrase
+	 * @param bytesPerPhrase
+	 *            size added to every phrase besides its contents, such as a
+	 *            return
+	 * @param bytesPerLoop
+	 *            size added by looping a call or note instead of repeating it
+	 */
+	public RepeatCostModel(int bytesPerEvent, int bytesPerCall,
+			int bytesPerPhrase, int bytesPerLoop) {
+		this.bytesPerEvent = bytesPerEvent;
+		this.bytesPerCall = bytesPerCall;
+		this.bytesPerPhrase = bytesPerPhrase;
+		this.bytesPerLoop = bytesPerLoop;
+	}
+
+	/**
+	 * @return bytes saved by turning a passage of the given size, found count
+	 *         times without overlapping, into a phrase. Negative if not worth
+	 *         it.
+	 */
+	public int getPhraseSaving(int passageBytes, int count) {
+		return count * (passageBytes - bytesPerCall)
+				- (passageBytes + bytesPerPhrase);
+	}
+
+	/**
+	 * @return true if repeating a statement of the given size count times in a
+	 *         row is better done with a loop
+	 */
+	public boolean isLoopWorthIt(int statementBytes, int count) {
+		return count > 1
+				&& statementBytes + bytesPerLoop < statementBytes * count;
+	}
+
+	public int getBytesPerEvent() {
+		return bytesPerEvent;
+	}
+
+	public void setBytesPerEvent(int bytesPerEvent) {
+		this.bytesPerEvent = bytesPerEvent;
+	}
+
+	public int getBytesPerCall() {
+		return bytesPerCall;
+	}
+
+	public void setBytesPerCall(int bytesPerCall) {
+		this.bytesPerCall = bytesPerCall;
+	}
+
+	public int getBytesPerPhrase() {
+		return bytesPerPhrase;
+	}
+
+	public void setBytesPerPhrase(int bytesPerPhrase) {
+		this.bytesPerPhrase = bytesPerPhrase;
+	}
+
+	public int getBytesPerLoop() {
+		return bytesPerLoop;
+	}
+
+	public void setBytesPerLoop(int bytesPerLoop) {
+		this.bytesPerLoop = bytesPerLoop;
+	}
+
+	public int getMinPhraseLength() {
+		return minPhraseLength;
+	}
+
+	public void setMinPhraseLength(int minPhraseLength) {
+		this.minPhraseLength = minPhraseLength;
+	}
+
+	/**
+	 * Longer passages are still found, split into phrases of this length at
+	 * most; the limit keeps the search fast.
+	 */
+	public int getMaxPhraseLength() {
+		return maxPhraseLength;
+	}
+
+	public void setMaxPhraseLength(int maxPhraseLength) {
+		this.maxPhraseLength = maxPhraseLength;
+	}
+
+	public int getMaxPhrases() {
+		return maxPhrases;
+	}
+
+	public void setMaxPhrases(int maxPhrases) {
+		this.maxPhrases = maxPhrases;
+	}
+}
@@ -0,0 +1,309 @@
+/**
+ * Part of ToneScribe
+ * Copyright (c) 2014, William Karnavas
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.tonescribe.song.linker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Finds repeated passages in a sequence of events so that linkers can emit
+ * each passage once, as a phrase, and call it wherever it recurs.<br>
+ * <br>
+ * Events are given as symbols 0 to alphabetSize - 1. The result is a main
+ * sequence and a list of phrases, in which symbol alphabetSize + n stands for
+ * a call to phrase n. Phrases may call earlier phrases, but never later
+ * ones.<br>
+ * <br>
+ * Works greedily: each round builds a suffix array of the main sequence, takes
+ * the repeated passage the cost model says saves the most bytes, and replaces
+ * its occurrences with a call, until nothing more is saved.
+ * 
+ */
+public class RepetitionFinder {
+	private final RepeatCostModel costModel;
+
+	public RepetitionFinder(RepeatCostModel costModel) {
+		this.costModel = costModel;
+	}
+
+	/**
+	 * The main sequence and the phrases it calls.
+	 */
+	public static class Result {
+		private final int alphabetSize;
+		private final int[] main;
+		private final ArrayList<int[]> phrases;
+
+		private Result(int alphabetSize, int[] main, ArrayList<int[]> phrases) {
+			this.alphabetSize = alphabetSize;
+			this.main = main;
+			this.phrases = phrases;
+		}
+
+		public int[] getMain() {
+			return main;
+		}
+
+		public ArrayList<int[]> getPhrases() {
+			return phrases;
+		}
+
+		public boolean isPhrase(int symbol) {
+			return symbol >= alphabetSize;
+		}
+
+		/**
+		 * @return the phrase number a call symbol refers to
+		 */
+		public int getPhraseIndex(int symbol) {
+			return symbol - alphabetSize;
+		}
+	}
+
+	public Result find(int[] events, int alphabetSize) {
+		int[] sequence = events.clone();
+		ArrayList<int[]> phrases = new ArrayList<int[]>();
+
+		while (phrases.size() < costModel.getMaxPhrases()) {
+			int[] costs = getPrefixCosts(sequence, alphabetSize);
+			int[] best = findBestRepeat(sequence, costs);
+			if (best == null) {
+				break;
+			}
+
+			int start = best[0];
+			int length = best[1];
+			int symbol = alphabetSize + phrases.size();
+			phrases.add(Arrays.copyOfRange(sequence, start, start + length));
+			sequence = replace(sequence, phrases.get(phrases.size() - 1),
+					symbol);
+		}
+
+		return new Result(alphabetSize, sequence, phrases);
+	}
+
+	/**
+	 * @return costs[i] is the size of the code for symbols 0 to i - 1
+	 */
+	private int[] getPrefixCosts(int[] sequence, int alphabetSize) {
+		int[] costs = new int[sequence.length + 1];
+		for (int i = 0; i < sequence.length; i++) {
+			costs[i + 1] = costs[i]
+					+ (sequence[i] < alphabetSize ? costModel
+							.getBytesPerEvent() : costModel.getBytesPerCall());
+		}
+		return costs;
+	}
+
+	/**
+	 * @return {start, length} of the passage worth the most as a phrase, or
+	 *         null if none saves anything
+	 */
+	private int[] findBestRepeat(int[] s, int[] costs) {
+		int n = s.length;
+		if (n < 2) {
+			return null;
+		}
+		int[] sa = getSuffixArray(s);
+		int[] lcp = getLcpArray(s, sa);
+		int maxLength = costModel.getMaxPhraseLength();
+		int minLength = Math.max(1, costModel.getMinPhraseLength());
+
+		int bestSaving = 0;
+		int[] best = null;
+
+		// Walk the LCP intervals: runs of suffixes in the suffix array that
+		// share a prefix of at least the interval's LCP
+		int[] stackLcp = new int[n + 1];
+		int[] stackStart = new int[n + 1];
+		int top = 0;
+		stackLcp[0] = 0;
+		stackStart[0] = 0;
+		for (int i = 1; i <= n; i++) {
+			int current = (i < n) ? lcp[i] : 0;
+			int start = i - 1;
+			while (current < stackLcp[top]) {
+				int intervalLcp = stackLcp[top];
+				int intervalStart = stackStart[top];
+				top--;
+				int parentLcp = Math.max(current, stackLcp[top]);
+				start = intervalStart;
+
+				// If the enclosing interval is as long as a phrase can be, it
+				// holds these occurrences and more; let it stand for them
+				if (parentLcp >= maxLength) {
+					continue;
+				}
+				int length = Math.min(intervalLcp, maxLength);
+				if (length < minLength) {
+					continue;
+				}
+
+				int[] positions = Arrays.copyOfRange(sa, intervalStart, i);
+				Arrays.sort(positions);
+				int count = 0;
+				int lastEnd = 0;
+				for (int p : positions) {
+					if (p >= lastEnd) {
+						count++;
+						lastEnd = p + length;
+					}
+				}
+				int passageBytes = costs[positions[0] + length]
+						- costs[positions[0]];
+				int saving = costModel.getPhraseSaving(passageBytes, count);
+				if (saving > bestSaving) {
+					bestSaving = saving;
+					best = new int[] { positions[0], length };
+				}
+			}
+			if (current > stackLcp[top]) {
+				top++;
+				stackLcp[top] = current;
+				stackStart[top] = start;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @return the sequence with every non-overlapping occurrence of the
+	 *         phrase, from left to right, replaced by symbol
+	 */
+	private static int[] replace(int[] s, int[] phrase, int symbol) {
+		int[] result = new int[s.length];
+		int n = 0;
+		int i = 0;
+		while (i < s.length) {
+			if (matches(s, i, phrase)) {
+				result[n++] = symbol;
+				i += phrase.length;
+			} else {
+				result[n++] = s[i++];
+			}
+		}
+		return Arrays.copyOf(result, n);
+	}
+
+	private static boolean matches(int[] s, int start, int[] phrase) {
+		if (start + phrase.length > s.length) {
+			return false;
+		}
+		for (int j = 0; j < phrase.length; j++) {
+			if (s[start + j] != phrase[j]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Sorts the suffixes of s by prefix doubling.
+	 * 
+	 * @return start positions of the suffixes, in sorted order
+	 */
+	private static int[] getSuffixArray(int[] s) {
+		final int n = s.length;
+		Integer[] order = new Integer[n];
+		final int[] rank = new int[n];
+		int[] newRank = new int[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+			rank[i] = s[i];
+		}
+
+		for (int k = 1;; k <<= 1) {
+			final int step = k;
+			Comparator<Integer> bySuffix = new Comparator<Integer>() {
+
+				@Override
+				public int compare(Integer a, Integer b) {
+					if (rank[a] != rank[b]) {
+						return rank[a] < rank[b] ? -1 : 1;
+					}
+					int ra = a + step < n ? rank[a + step] : -1;
+					int rb = b + step < n ? rank[b + step] : -1;
+					return ra < rb ? -1 : (ra == rb ? 0 : 1);
+				}
+			};
+			Arrays.sort(order, bySuffix);
+
+			newRank[order[0]] = 0;
+			for (int i = 1; i < n; i++) {
+				newRank[order[i]] = newRank[order[i - 1]]
+						+ (bySuffix.compare(order[i - 1], order[i]) < 0 ? 1
+								: 0);
+			}
+			System.arraycopy(newRank, 0, rank, 0, n);
+			if (rank[order[n - 1]] == n - 1) {
+				break;
+			}
+		}
+
+		int[] sa = new int[n];
+		for (int i = 0; i < n; i++) {
+			sa[i] = order[i];
+		}
+		return sa;
+	}
+
+	/**
+	 * Kasai's algorithm.
+	 * 
+	 * @return lcp[i] is the length of the prefix shared by suffixes sa[i - 1]
+	 *         and sa[i]
+	 */
+	private static int[] getLcpArray(int[] s, int[] sa) {
+		int n = s.length;
+		int[] rank = new int[n];
+		for (int i = 0; i < n; i++) {
+			rank[sa[i]] = i;
+		}
+		int[] lcp = new int[n];
+		int h = 0;
+		for (int i = 0; i < n; i++) {
+			if (rank[i] > 0) {
+				int j = sa[rank[i] - 1];
+				while (i + h < n && j + h < n && s[i + h] == s[j + h]) {
+					h++;
+				}
+				lcp[rank[i]] = h;
+				if (h > 0) {
+					h--;
+				}
+			} else {
+				h = 0;
+			}
+		}
+		return lcp;
+	}
+}
@@ -30,8 +30,16 @@
  */
 package com.tonescribe.song.linker;
 
+import java.io.IOException;
+
 import com.tonescribe.song.Song;
 
 public interface SongLinker {
 	public String link(Song song);
+
+	/**
+	 * Writes the linked song to out as it is generated, instead of building it
+	 * all in memory first.
+	 */
+	public void link(Song song, Appendable out) throws IOException;
 }
@@ -30,35 +30,47 @@
  */
 package com.tonescribe.song.linker;
 
-import com.tonescribe.song.RestEvent;
+import java.io.IOException;
+
+import com.tonescribe.song.LinkPlan;
 import com.tonescribe.song.Song;
-import com.tonescribe.song.SongEvent;
-import com.tonescribe.song.ToneEvent;
 
 /**
  * Converts a compiled song into a snippet of computer code that can be pasted
  * into a program to play the compiled song.
  * 
  */
-public class TabTableLinker implements SongLinker {
-	public String link(Song song) {
-		StringBuilder builder = new StringBuilder();
-		for (SongEvent e : song.getTones()) {
-			if (e.getTimeSeconds() < song.getSelectionStartTimeSec()
-					|| e.getTimeSeconds() > song.getSelectionEndTimeSec()) {
-				continue;
-			}
+public class TabTableLinker extends EventSongLinker {
+	private final FastDoubleFormatter formatter;
+
+	public TabTableLinker() {
+		this(new FastDoubleFormatter());
+	}
+
+	/**
+	 * @param formatter
+	 *            writes the pitches and lengths; the default writes the
+	 *            fewest digits that read back as the same numbers
+	 */
+	public TabTableLinker(FastDoubleFormatter formatter) {
+		this.formatter = formatter;
+	}
+
+	public FastDoubleFormatter getFormatter() {
+		return formatter;
+	}
 
-			if (e instanceof ToneEvent) {
-				builder.append( ((ToneEvent) e).getPitch()).append("\t")
-						.append((e.getDurationSeconds()))
-						.append(System.getProperty("line.separator"));
-			} else if (e instanceof RestEvent) {
-				builder.append("0\t")
-						.append((e.getDurationSeconds()))
-						.append(System.getProperty("line.separator"));
-			}
+	@Override
+	protected void appendEvent(Song song, int i, Appendable out)
+			throws IOException {
+		LinkPlan plan = song.getLinkPlan();
+		if (plan.isTone(i)) {
+			formatter.append(out, plan.getPitch(i));
+		} else {
+			out.append('0');
 		}
-		return builder.toString();
+		out.append('\t');
+		formatter.append(out, plan.getSeconds(i));
+		out.append(NEWLINE);
 	}
 }
@@ -0,0 +1,206 @@
+/**
+ * Part of ToneScribe
+ * Copyright (c) 2014, William Karnavas
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.tonescribe.song.linker;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The clock a microcontroller counts tones with: its rate, the prescalers that
+ * can divide it, and how many bits the counter has. Finds, for each frequency,
+ * the prescaler and count whose half period comes closest to it, and remembers
+ * the answer, so linkers can build divisor tables for any clock instead of
+ * assuming 1 MHz.
+ * 
+ */
+public class TargetClock {
+	/**
+	 * How one frequency is counted out: the clock divided by the prescaler,
+	 * counted to count, toggles the pin once.
+	 */
+	public static class Divisor {
+		private final double requestedFreq;
+		private final int prescaler;
+		private final long count;
+		private final double actualFreq;
+
+		private Divisor(double requestedFreq, long clockHz, int prescaler,
+				long count) {
+			this.requestedFreq = requestedFreq;
+			this.prescaler = prescaler;
+			this.count = count;
+			this.actualFreq = (double) clockHz / (2.0 * prescaler * count);
+		}
+
+		public double getRequestedFreq() {
+			return requestedFreq;
+		}
+
+		public int getPrescaler() {
+			return prescaler;
+		}
+
+		/**
+		 * @return prescaled clock ticks in each half period
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return clock cycles in each half period
+		 */
+		public long getCycles() {
+			return count * prescaler;
+		}
+
+		/**
+		 * @return frequency the divisor really plays
+		 */
+		public double getActualFreq() {
+			return actualFreq;
+		}
+
+		/**
+		 * @return how far the frequency played is from the one requested, in
+		 *         cents (hundredths of a semitone); positive if sharp
+		 */
+		public double getCentsError() {
+			return 1200.0 * Math.log(actualFreq / requestedFreq) / Math.log(2);
+		}
+	}
+
+	private final long clockHz;
+	private final int[] prescalers;
+	private final int counterBits;
+	private final long maxCount;
+	private final HashMap<Double, Divisor> divisors = new HashMap<Double, Divisor>();
+
+	/**
+	 * An MSP430 running at 1 MHz, counting with Timer_A.
+	 */
+	public TargetClock() {
+		this(1000000, new int[] { 1, 2, 4, 8 }, 16);
+	}
+
+	/**
+	 * @param clockHz
+	 *            clock rate feeding the counter
+	 * @param prescalers
+	 *            ways the clock can be divided before it is counted
+	 * @param counterBits
+	 *            width of the counter; counts longer than it can hold are
+	 *            clipped
+	 */
+	public TargetClock(long clockHz, int[] prescalers, int counterBits) {
+		if (clockHz <= 0 || prescalers.length == 0 || counterBits < 1
+				|| counterBits > 62) {
+			throw new IllegalArgumentException("Bad target clock: " + clockHz
+					+ " hz, " + prescalers.length + " prescalers, "
+					+ counterBits + " bit counter");
+		}
+		this.clockHz = clockHz;
+		this.prescalers = prescalers.clone();
+		Arrays.sort(this.prescalers);
+		this.counterBits = counterBits;
+		this.maxCount = (1L << counterBits) - 1;
+	}
+
+	/**
+	 * @return the same prescalers and counter on a different clock rate
+	 */
+	public TargetClock withClockHz(long clockHz) {
+		return new TargetClock(clockHz, prescalers, counterBits);
+	}
+
+	public long getClockHz() {
+		return clockHz;
+	}
+
+	public int[] getPrescalers() {
+		return prescalers.clone();
+	}
+
+	public int getCounterBits() {
+		return counterBits;
+	}
+
+	/**
+	 * @return clock cycles in a length of time, rounded
+	 */
+	public long getCycles(double seconds) {
+		return Math.round(seconds * clockHz);
+	}
+
+	/**
+	 * @return the prescaler and count that come closest to toggling at twice
+	 *         freq; prefers the smallest prescaler on a tie
+	 */
+	public synchronized Divisor getDivisor(double freq) {
+		Divisor divisor = divisors.get(freq);
+		if (divisor == null) {
+			for (int prescaler : prescalers) {
+				Divisor candidate = getDivisor(freq, prescaler);
+				if (divisor == null
+						|| Math.abs(candidate.getCentsError()) < Math
+								.abs(divisor.getCentsError())) {
+					divisor = candidate;
+				}
+			}
+			divisors.put(freq, divisor);
+		}
+		return divisor;
+	}
+
+	/**
+	 * @return the count closest to toggling at twice freq with the given
+	 *         prescaler, clipped to what the counter holds
+	 */
+	public Divisor getDivisor(double freq, int prescaler) {
+		long count = Math.round(clockHz / (2.0 * prescaler * freq));
+		count = Math.max(1, Math.min(maxCount, count));
+		return new Divisor(freq, clockHz, prescaler, count);
+	}
+
+	/**
+	 * @return the smallest prescaler that can count out the half period of
+	 *         freq, or the largest if none can. For counters shared by every
+	 *         note, pass the lowest frequency in the song.
+	 */
+	public int getPrescalerFor(double freq) {
+		for (int prescaler : prescalers) {
+			if (clockHz / (2.0 * prescaler * freq) <= maxCount + 0.5) {
+				return prescaler;
+			}
+		}
+		return prescalers[prescalers.length - 1];
+	}
+}
@@ -0,0 +1,173 @@
+/**
+ * Part of ToneScribe
+ * Copyright (c) 2014, William Karnavas
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.tonescribe.song.linker;
+
+import java.util.ArrayList;
+
+/**
+ * Plays a linked TargetProgram the way the device would: every semiperiod the
+ * pin toggles after the cycles the cost model says the program spends, with
+ * the delays, semiperiod counts and rests the device's integer math produced.
+ * The pin's level is averaged over each sample (a box filter) and passed
+ * through a DC blocker standing in for the speaker's coupling capacitor, so
+ * the preview sounds like the real output rather than the ideal song.
+ * 
+ */
+public class TargetEmulator {
+	/**
+	 * Pole of the DC blocking filter; closer to 1 passes lower frequencies
+	 */
+	private static final double DC_BLOCK_POLE = 0.995;
+
+	private final CycleCostModel costModel;
+	private final int sampleRate;
+	private final int channels;
+	private final int volume;
+
+	/**
+	 * @param volume
+	 *            amplitude of the pin's swing, up to 127
+	 */
+	public TargetEmulator(CycleCostModel costModel, int sampleRate,
+			int channels, int volume) {
+		this.costModel = costModel;
+		this.sampleRate = sampleRate;
+		this.channels = channels;
+		this.volume = volume;
+	}
+
+	/**
+	 * @return 8 bit signed PCM of the program, with the channels interleaved
+	 */
+	public byte[] render(TargetProgram program) {
+		CycleBudgetAnalyzer.Result timing = new CycleBudgetAnalyzer(costModel)
+				.analyze(program);
+		long totalCycles = 0;
+		ArrayList<TargetProgram.Step> steps = program.getSteps();
+		for (int i = 0; i < steps.size(); i++) {
+			totalCycles += timing.getCycles(i);
+		}
+		int frames = (int) (totalCycles * (double) sampleRate
+				/ program.getClockHz()) + 1;
+		Pin pin = new Pin(new byte[frames * channels], program.getClockHz());
+
+		boolean jumpTable = program.isJumpTable();
+		for (int i = 0; i < steps.size(); i++) {
+			TargetProgram.Step step = steps.get(i);
+			if (step.isTone()) {
+				pin.hold(costModel.getNoteOverhead(jumpTable, step.getCalls()));
+				int semiperiodCycles = timing.getSemiperiodCycles(step
+						.getFreqIndex());
+				for (long s = step.getSemiperiods(); s > 0; s--) {
+					pin.toggle();
+					pin.hold(semiperiodCycles);
+				}
+				pin.hold(program.getNoteGapCycles());
+			} else {
+				pin.hold(timing.getCycles(i));
+			}
+		}
+		pin.finish();
+		return pin.out;
+	}
+
+	/**
+	 * The speaker pin, turned into samples as time passes.
+	 */
+	private class Pin {
+		private final byte[] out;
+		private final double samplesPerCycle;
+		private final int frames;
+		private boolean high = false;
+		private long cycle = 0;
+		// Sample being filled, how far into it time has got, and how much of
+		// it the pin has been high for
+		private int frame = 0;
+		private double position = 0;
+		private double highTime = 0;
+		private double lastLevel = -1;
+		private double filtered = 0;
+
+		public Pin(byte[] out, long clockHz) {
+			this.out = out;
+			this.frames = out.length / channels;
+			this.samplesPerCycle = sampleRate / (double) clockHz;
+		}
+
+		public void toggle() {
+			high = !high;
+		}
+
+		/**
+		 * Holds the pin where it is for some cycles.
+		 */
+		public void hold(long cycles) {
+			cycle += cycles;
+			double end = cycle * samplesPerCycle;
+			while (end >= frame + 1) {
+				if (high) {
+					highTime += frame + 1 - position;
+				}
+				emit();
+				position = frame;
+			}
+			if (high) {
+				highTime += end - position;
+			}
+			position = end;
+		}
+
+		/**
+		 * Writes the partly filled last sample.
+		 */
+		public void finish() {
+			if (frame < frames && position > frame) {
+				emit();
+			}
+		}
+
+		private void emit() {
+			// Pin level from -1 (low all sample) to 1 (high all sample)
+			double level = highTime * 2 - 1;
+			filtered = level - lastLevel + DC_BLOCK_POLE * filtered;
+			lastLevel = level;
+			int value = (int) Math.round(filtered * volume);
+			byte sample = (byte) Math.max(-128, Math.min(127, value));
+			if (frame < frames) {
+				for (int c = 0; c < channels; c++) {
+					out[frame * channels + c] = sample;
+				}
+			}
+			highTime = 0;
+			frame++;
+		}
+	}
+}
@@ -0,0 +1,382 @@
+/**
+ * Part of ToneScribe
+ * Copyright (c) 2014, William Karnavas
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.tonescribe.song.linker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+import com.tonescribe.song.LinkPlan;
+import com.tonescribe.song.Song;
+import com.tonescribe.song.SongEvent;
+
+/**
+ * What PreciseSongLinker's program does on the device, worked out with the
+ * device's own integer math: each frequency's semiperiod delay, and for each
+ * note the semiperiods it plays, or for each rest the cycles it waits. The
+ * linker writes its output from this, and the timing analyzer and emulator
+ * read it, so all three agree on what was linked.
+ * 
+ */
+public class TargetProgram {
+	/**
+	 * Silence after each note, as __delay_cycles() in beep()
+	 */
+	public static final double NOTE_GAP_SECONDS = 0.005;
+
+	/**
+	 * Most semiperiods one tone() call can count in jump table mode
+	 */
+	public static final long MAX_SEMIPERIODS = 0xFFFF;
+
+	/**
+	 * One beep() call or rest.
+	 */
+	public static class Step {
+		private final SongEvent event;
+		private final int freqIndex;
+		private final int ms;
+		private final long semiperiods;
+		private final long restCycles;
+
+		private Step(SongEvent event, int freqIndex, int ms, long semiperiods,
+				long restCycles) {
+			this.event = event;
+			this.freqIndex = freqIndex;
+			this.ms = ms;
+			this.semiperiods = semiperiods;
+			this.restCycles = restCycles;
+		}
+
+		/**
+		 * @return the event in the song this step plays
+		 */
+		public SongEvent getEvent() {
+			return event;
+		}
+
+		public boolean isTone() {
+			return freqIndex >= 0;
+		}
+
+		/**
+		 * @return index of the note's frequency in the program's frequency
+		 *         table (the switch case or jump table entry), or -1 for a
+		 *         rest
+		 */
+		public int getFreqIndex() {
+			return freqIndex;
+		}
+
+		/**
+		 * @return duration in ms passed to beep(); in jump table mode only
+		 *         informational
+		 */
+		public int getMs() {
+			return ms;
+		}
+
+		/**
+		 * @return semiperiods the note plays for
+		 */
+		public long getSemiperiods() {
+			return semiperiods;
+		}
+
+		/**
+		 * @return number of tone() calls the note is split into in jump table
+		 *         mode
+		 */
+		public int getCalls() {
+			return (int) Math.max(1, (semiperiods + MAX_SEMIPERIODS - 1)
+					/ MAX_SEMIPERIODS);
+		}
+
+		/**
+		 * @return cycles a rest waits for
+		 */
+		public long getRestCycles() {
+			return restCycles;
+		}
+	}
+
+	private final long clockHz;
+	private final boolean jumpTable;
+	private final long noteGapCycles;
+	private final int[] freqs;
+	private final TargetClock.Divisor[] divisors;
+	private final long[] delayCycles;
+	private final ArrayList<Step> steps = new ArrayList<Step>();
+
+	private TargetProgram(long clockHz, boolean jumpTable, long noteGapCycles,
+			int[] freqs, TargetClock.Divisor[] divisors, long[] delayCycles) {
+		this.clockHz = clockHz;
+		this.jumpTable = jumpTable;
+		this.noteGapCycles = noteGapCycles;
+		this.freqs = freqs;
+		this.divisors = divisors;
+		this.delayCycles = delayCycles;
+	}
+
+	/**
+	 * Works out the program PreciseSongLinker writes for a song.
+	 * 
+	 * @param jumpTable
+	 *            true if semiperiods are counted at link time and notes are
+	 *            dispatched through a jump table; false if beep() works them
+	 *            out from whole ms and hz and switches on frequency
+	 */
+	public static TargetProgram build(Song song, TargetClock clock,
+			boolean jumpTable) {
+		return build(song, clock, jumpTable, null, false);
+	}
+
+	/**
+	 * Works out the program PreciseSongLinker writes for a song, shortened to
+	 * make up for the cycles the program spends besides its delays.<br>
+	 * <br>
+	 * Each note is given the semiperiods (or in switch mode, the ms) that
+	 * bring it closest to its length in the song once its overhead and the
+	 * delay after it are counted. What rounding leaves over is carried on to
+	 * the next event, so errors do not add up over the song.
+	 * 
+	 * @param costModel
+	 *            cycles to make up for; null to make up for none
+	 * @param compensateDelays
+	 *            true to also shorten each semiperiod delay by the cycles
+	 *            spent around it, so notes keep their pitch; false if the
+	 *            delays are not part of the output
+	 */
+	public static TargetProgram build(Song song, TargetClock clock,
+			boolean jumpTable, CycleCostModel costModel,
+			boolean compensateDelays) {
+		// Find frequencies used. beep() takes whole hz, but each delay is
+		// worked out from the exact pitch of the first note at that hz.
+		LinkPlan plan = song.getLinkPlan();
+		HashMap<Integer, Double> pitches = new HashMap<Integer, Double>();
+		for (int i = 0; i < plan.getCount(); i++) {
+			if (plan.isTone(i) && !pitches.containsKey(plan.getFreq(i))) {
+				pitches.put(plan.getFreq(i), plan.getPitch(i));
+			}
+		}
+
+		// List with highest frequencies first; in a switch, these are most
+		// sensitive to extra cycles consumed by the compares
+		ArrayList<Integer> sorted = new ArrayList<Integer>(pitches.keySet());
+		Collections.sort(sorted, Collections.reverseOrder());
+		int[] freqs = new int[sorted.size()];
+		TargetClock.Divisor[] divisors = new TargetClock.Divisor[freqs.length];
+		long[] delayCycles = new long[freqs.length];
+		HashMap<Integer, Integer> indexes = new HashMap<Integer, Integer>();
+		for (int i = 0; i < freqs.length; i++) {
+			freqs[i] = sorted.get(i);
+			divisors[i] = clock.getDivisor(pitches.get(freqs[i]));
+			delayCycles[i] = divisors[i].getCycles();
+			if (costModel != null && compensateDelays) {
+				delayCycles[i] = Math.max(1, delayCycles[i]
+						- costModel.getSemiperiodOverhead(jumpTable, i));
+			}
+			indexes.put(freqs[i], i);
+		}
+
+		TargetProgram program = new TargetProgram(clock.getClockHz(),
+				jumpTable, clock.getCycles(NOTE_GAP_SECONDS), freqs, divisors,
+				delayCycles);
+
+		// Cycles the events so far have run over the song; negative if short
+		long debt = 0;
+		long[] eventCycles = plan.getCycles(clock.getClockHz());
+		for (int i = 0; i < plan.getCount(); i++) {
+			SongEvent e = plan.getEvent(i);
+			if (plan.isTone(i)) {
+				int freq = plan.getFreq(i);
+				int index = indexes.get(freq);
+				int ms = plan.getMs(i);
+				long semiperiods;
+				if (costModel != null) {
+					long semiperiodCycles = delayCycles[index]
+							+ costModel.getSemiperiodOverhead(jumpTable, index);
+					long target = eventCycles[i] - debt;
+					if (jumpTable) {
+						semiperiods = program.getBestSemiperiods(costModel,
+								target, semiperiodCycles);
+					} else {
+						ms = program.getBestMs(costModel, target,
+								semiperiodCycles, freq, ms);
+						semiperiods = getDeviceSemiperiods(freq, ms);
+					}
+					debt += program.getToneCycles(costModel, semiperiods,
+							semiperiodCycles) - eventCycles[i];
+				} else if (jumpTable) {
+					semiperiods = Math.round(eventCycles[i]
+							/ (double) delayCycles[index]);
+				} else {
+					semiperiods = getDeviceSemiperiods(freq, ms);
+				}
+				program.steps.add(new Step(e, index, ms, semiperiods, 0));
+			} else {
+				long cycles = eventCycles[i];
+				if (costModel != null) {
+					long target = cycles - debt;
+					cycles = Math.max(0, target - costModel.getRestCycles());
+					debt += cycles + costModel.getRestCycles() - eventCycles[i];
+				}
+				program.steps.add(new Step(e, -1, 0, 0, cycles));
+			}
+		}
+		return program;
+	}
+
+	/**
+	 * @return cycles a note takes on the device, the delay after it included
+	 */
+	private long getToneCycles(CycleCostModel costModel, long semiperiods,
+			long semiperiodCycles) {
+		int calls = (int) Math.max(1, (semiperiods + MAX_SEMIPERIODS - 1)
+				/ MAX_SEMIPERIODS);
+		return costModel.getNoteOverhead(jumpTable, calls) + semiperiods
+				* semiperiodCycles + noteGapCycles;
+	}
+
+	/**
+	 * @return the semiperiods that make a note take closest to target cycles
+	 */
+	private long getBestSemiperiods(CycleCostModel costModel, long target,
+			long semiperiodCycles) {
+		long estimate = Math.max(0, Math.round((target
+				- costModel.getNoteOverhead(jumpTable, 1) - noteGapCycles)
+				/ (double) semiperiodCycles));
+		long best = 0;
+		long bestError = Long.MAX_VALUE;
+		// The estimate can be off by one either way once extra tone() calls
+		// are counted
+		long first = Math.max(0, estimate - 1);
+		for (long semiperiods = first; semiperiods <= estimate + 1; semiperiods++) {
+			long error = Math.abs(getToneCycles(costModel, semiperiods,
+					semiperiodCycles) - target);
+			if (error < bestError) {
+				best = semiperiods;
+				bestError = error;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @return the ms to pass beep() that makes a note take closest to target
+	 *         cycles, once beep() works out its semiperiods from them
+	 */
+	private int getBestMs(CycleCostModel costModel, long target,
+			long semiperiodCycles, int freq, int ms) {
+		long halfPeriodUs = (freq > 0) ? (1000000L / freq) / 2 : 0;
+		if (halfPeriodUs == 0) {
+			return ms;
+		}
+		double wanted = (target - costModel.getNoteOverhead(false, 1)
+				- noteGapCycles) / (double) semiperiodCycles;
+		int estimate = (int) Math.round(wanted * halfPeriodUs / 1000.0);
+		int best = 0;
+		long bestError = Long.MAX_VALUE;
+		int first = Math.max(0, estimate - 2);
+		int last = Math.min(0xFFFF, estimate + 2);
+		for (int candidate = first; candidate <= last; candidate++) {
+			long error = Math.abs(getToneCycles(costModel,
+					getDeviceSemiperiods(freq, candidate), semiperiodCycles)
+					- target);
+			if (error < bestError) {
+				best = candidate;
+				bestError = error;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @return what beep() in templateStart.txt works out for semiperiods, in
+	 *         the device's unsigned long math, stored in an unsigned int
+	 */
+	public static long getDeviceSemiperiods(int freq, int ms) {
+		long halfPeriodUs = (freq > 0) ? (1000000L / freq) / 2 : 0;
+		if (halfPeriodUs == 0) {
+			// beep() would divide by zero; count the note as silent
+			return 0;
+		}
+		return ((ms & 0xFFFFL) * 1000 / halfPeriodUs) & 0xFFFF;
+	}
+
+	public long getClockHz() {
+		return clockHz;
+	}
+
+	public boolean isJumpTable() {
+		return jumpTable;
+	}
+
+	/**
+	 * @return cycles of silence after each note
+	 */
+	public long getNoteGapCycles() {
+		return noteGapCycles;
+	}
+
+	/**
+	 * @return number of distinct frequencies; switch cases or jump table
+	 *         entries
+	 */
+	public int getFreqCount() {
+		return freqs.length;
+	}
+
+	/**
+	 * @return the whole hz beep() is called with for a frequency index
+	 */
+	public int getFreq(int index) {
+		return freqs[index];
+	}
+
+	/**
+	 * @return the clock divisor the frequency's delay was worked out from
+	 */
+	public TargetClock.Divisor getDivisor(int index) {
+		return divisors[index];
+	}
+
+	/**
+	 * @return cycles __delay_cycles() waits each semiperiod of a frequency
+	 */
+	public long getDelayCycles(int index) {
+		return delayCycles[index];
+	}
+
+	public ArrayList<Step> getSteps() {
+		return steps;
+	}
+}
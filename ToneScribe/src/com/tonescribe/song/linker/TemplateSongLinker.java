@@ -0,0 +1,315 @@
+/**
+ * Part of ToneScribe
+ * Copyright (c) 2014, William Karnavas
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.tonescribe.song.linker;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import com.tonescribe.ToneScribe;
+import com.tonescribe.song.LinkPlan;
+import com.tonescribe.song.Song;
+
+/**
+ * Links songs into any text format described by a user's template, so that new
+ * targets don't need new linker classes. A template has four sections, each
+ * started by a line holding only its name:<br>
+ * <br>
+ * &#64;header<br>
+ * void tune() {<br>
+ * &#64;tone<br>
+ * &nbsp;&nbsp;beep({hz}, {ms});<br>
+ * &#64;rest<br>
+ * &nbsp;&nbsp;delay({ms});<br>
+ * &#64;footer<br>
+ * }<br>
+ * <br>
+ * Lines before the first section belong to the header. The tone and rest
+ * sections are written once per event; the header and footer once. In them,
+ * these fields are filled in:<br>
+ * {hz} frequency, truncated to a whole number (0 for rests)<br>
+ * {pitch} exact frequency<br>
+ * {ms} duration in milliseconds, truncated<br>
+ * {us} duration in microseconds, rounded<br>
+ * {cycles} duration in clock cycles, rounded (see setTargetClock())<br>
+ * {halfperiod} {prescaler} count and prescaler that best divide the clock
+ * into a half period of the tone (0 for rests)<br>
+ * {kind} "tone" or "rest"<br>
+ * {index} number of the event, from 0<br>
+ * {count} number of events in the song<br>
+ * {version} ToneScribe's version<br>
+ * Other braces are copied as they are; write {{ for a literal brace before a
+ * word that would otherwise be taken as a field.<br>
+ * <br>
+ * The template is compiled once into a plan of literal text and fields, so
+ * linking is a loop of appends.
+ * 
+ */
+public class TemplateSongLinker extends AbstractSongLinker implements
+		ClockedSongLinker {
+	private static final int FIELD_HZ = 0;
+	private static final int FIELD_PITCH = 1;
+	private static final int FIELD_MS = 2;
+	private static final int FIELD_US = 3;
+	private static final int FIELD_CYCLES = 4;
+	private static final int FIELD_KIND = 5;
+	private static final int FIELD_INDEX = 6;
+	private static final int FIELD_COUNT = 7;
+	private static final int FIELD_VERSION = 8;
+	private static final int FIELD_HALFPERIOD = 9;
+	private static final int FIELD_PRESCALER = 10;
+	private static final String[] FIELD_NAMES = { "hz", "pitch", "ms", "us",
+			"cycles", "kind", "index", "count", "version", "halfperiod",
+			"prescaler" };
+
+	private final Plan header, tone, rest, footer;
+	private final boolean usesCycles;
+	private TargetClock targetClock = new TargetClock();
+	private PitchErrorReport lastPitchErrorReport = null;
+
+	/**
+	 * Compiles a template.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if the template uses an unknown field; the message says
+	 *             where
+	 */
+	public TemplateSongLinker(String template) {
+		StringBuilder[] sections = { new StringBuilder(), new StringBuilder(),
+				new StringBuilder(), new StringBuilder() };
+		String[] sectionNames = { "@header", "@tone", "@rest", "@footer" };
+		int section = 0;
+		String[] lines = template.replace("\r", "").split("\n");
+		for (String line : lines) {
+			boolean isMarker = false;
+			for (int i = 0; i < sectionNames.length; i++) {
+				if (line.trim().equalsIgnoreCase(sectionNames[i])) {
+					section = i;
+					isMarker = true;
+				}
+			}
+			if (!isMarker) {
+				sections[section].append(line).append(NEWLINE);
+			}
+		}
+
+		header = new Plan(sections[0].toString(), sectionNames[0]);
+		tone = new Plan(sections[1].toString(), sectionNames[1]);
+		rest = new Plan(sections[2].toString(), sectionNames[2]);
+		footer = new Plan(sections[3].toString(), sectionNames[3]);
+		usesCycles = tone.uses(FIELD_CYCLES) || rest.uses(FIELD_CYCLES);
+	}
+
+	/**
+	 * Sets the clock rate used to fill in {cycles}, {halfperiod} and
+	 * {prescaler}, keeping the prescalers and counter; 1 MHz by default.
+	 */
+	public void setClockHz(long clockHz) {
+		targetClock = targetClock.withClockHz(clockHz);
+	}
+
+	public long getClockHz() {
+		return targetClock.getClockHz();
+	}
+
+	@Override
+	public TargetClock getTargetClock() {
+		return targetClock;
+	}
+
+	@Override
+	public void setTargetClock(TargetClock targetClock) {
+		this.targetClock = targetClock;
+	}
+
+	@Override
+	public PitchErrorReport getLastPitchErrorReport() {
+		return lastPitchErrorReport;
+	}
+
+	@Override
+	public void link(Song song, Appendable out) throws IOException {
+		LinkPlan plan = song.getLinkPlan();
+		int count = plan.getCount();
+		long[] cycles = usesCycles ? plan.getCycles(targetClock.getClockHz())
+				: null;
+
+		PitchErrorReport report = new PitchErrorReport(
+				targetClock.getClockHz());
+		header.emit(out, plan, cycles, -1, 0, count);
+		for (int i = 0; i < count; i++) {
+			if (plan.isTone(i)) {
+				report.add(targetClock.getDivisor(plan.getPitch(i)));
+				tone.emit(out, plan, cycles, i, i, count);
+			} else {
+				rest.emit(out, plan, cycles, i, i, count);
+			}
+		}
+		footer.emit(out, plan, cycles, -1, count, count);
+		lastPitchErrorReport = report;
+	}
+
+	/**
+	 * One section of the template, compiled into alternating literal text and
+	 * fields: literals[0], fields[0], literals[1], ... literals[n].
+	 */
+	private class Plan {
+		private final String[] literals;
+		private final int[] fields;
+
+		public Plan(String text, String sectionName) {
+			ArrayList<String> literalList = new ArrayList<String>();
+			ArrayList<Integer> fieldList = new ArrayList<Integer>();
+			StringBuilder literal = new StringBuilder();
+			int i = 0;
+			while (i < text.length()) {
+				char c = text.charAt(i);
+				if (c == '{' && i + 1 < text.length()
+						&& text.charAt(i + 1) == '{' && isFieldAt(text, i + 1)) {
+					// {{word} is a literal {word}; other double braces, as
+					// in nested initializers, are copied as they are
+					literal.append('{');
+					i += 2;
+				} else if (c == '{' && isFieldAt(text, i)) {
+					int close = text.indexOf('}', i);
+					String name = text.substring(i + 1, close);
+					int field = -1;
+					for (int f = 0; f < FIELD_NAMES.length; f++) {
+						if (FIELD_NAMES[f].equalsIgnoreCase(name)) {
+							field = f;
+						}
+					}
+					if (field < 0) {
+						throw new IllegalArgumentException("Unknown field {"
+								+ name + "} in " + sectionName
+								+ " section of template");
+					}
+					literalList.add(literal.toString());
+					literal.setLength(0);
+					fieldList.add(field);
+					i = close + 1;
+				} else {
+					literal.append(c);
+					i++;
+				}
+			}
+			literalList.add(literal.toString());
+
+			literals = literalList.toArray(new String[literalList.size()]);
+			fields = new int[fieldList.size()];
+			for (int f = 0; f < fields.length; f++) {
+				fields[f] = fieldList.get(f);
+			}
+		}
+
+		/**
+		 * @return true if a field, a word of only letters in braces, starts
+		 *         at the given index. Other braces are left alone, since the
+		 *         code in most templates is full of them.
+		 */
+		private boolean isFieldAt(String text, int index) {
+			int i = index + 1;
+			while (i < text.length() && Character.isLetter(text.charAt(i))) {
+				i++;
+			}
+			return i > index + 1 && i < text.length() && text.charAt(i) == '}';
+		}
+
+		public boolean uses(int field) {
+			for (int f : fields) {
+				if (f == field) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * @param cycles
+		 *            the plan's event lengths in cycles; null if no section
+		 *            uses them
+		 * @param event
+		 *            event in the plan to fill fields in from; -1 in the
+		 *            header and footer
+		 */
+		public void emit(Appendable out, LinkPlan plan, long[] cycles,
+				int event, int index, int count) throws IOException {
+			for (int i = 0; i < fields.length; i++) {
+				out.append(literals[i]);
+				emitField(out, fields[i], plan, cycles, event, index, count);
+			}
+			out.append(literals[fields.length]);
+		}
+
+		private void emitField(Appendable out, int field, LinkPlan plan,
+				long[] cycles, int event, int index, int count)
+				throws IOException {
+			double pitch = (event >= 0) ? plan.getPitch(event) : 0;
+			switch (field) {
+			case FIELD_HZ:
+				appendInt(out, (event >= 0) ? plan.getFreq(event) : 0);
+				break;
+			case FIELD_PITCH:
+				out.append(String.valueOf(pitch));
+				break;
+			case FIELD_MS:
+				appendInt(out, (event >= 0) ? plan.getMs(event) : 0);
+				break;
+			case FIELD_US:
+				appendInt(out, (event >= 0) ? plan.getUs(event) : 0);
+				break;
+			case FIELD_CYCLES:
+				appendInt(out, (event >= 0) ? cycles[event] : 0);
+				break;
+			case FIELD_HALFPERIOD:
+				appendInt(out, (pitch > 0) ? targetClock.getDivisor(pitch)
+						.getCount() : 0);
+				break;
+			case FIELD_PRESCALER:
+				appendInt(out, (pitch > 0) ? targetClock.getDivisor(pitch)
+						.getPrescaler() : 0);
+				break;
+			case FIELD_KIND:
+				out.append((event >= 0 && plan.isTone(event)) ? "tone"
+						: "rest");
+				break;
+			case FIELD_INDEX:
+				appendInt(out, index);
+				break;
+			case FIELD_COUNT:
+				appendInt(out, count);
+				break;
+			case FIELD_VERSION:
+				out.append(ToneScribe.CURRENT_VERSION);
+				break;
+			}
+		}
+	}
+}
@@ -0,0 +1,336 @@
+/**
+ * Part of ToneScribe
+ * Copyright (c) 2014, William Karnavas
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.tonescribe.song.linker;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+import com.tonescribe.ToneScribe;
+import com.tonescribe.song.LinkPlan;
+import com.tonescribe.song.Song;
+
+/**
+ * Links a song into a complete MSP430 program that plays it with Timer_A
+ * instead of busy-wait delays. The timer toggles the speaker pin in hardware
+ * (CCR1 in toggle mode, reloaded from a table of precomputed half periods), and
+ * a 1 ms tick on CCR0 steps through tables of notes and durations. The CPU
+ * sleeps in LPM0 the whole time, and other interrupts cannot throw the pitch
+ * off.<br>
+ * <br>
+ * Written for the MSP430G2xx family: the speaker goes on P1.2 (TA0.1), and
+ * SMCLK runs from the DCO, calibrated to 1 MHz unless another target clock is
+ * set.
+ * 
+ */
+public class TimerPwmSongLinker extends AbstractSongLinker implements
+		ClockedSongLinker, CompensatingSongLinker {
+	/**
+	 * Silence after each note, matching the __delay_cycles(5000) after each
+	 * beep() in PreciseSongLinker's output
+	 */
+	public static final int NOTE_GAP_MS = 5;
+
+	/**
+	 * Clock rates the G2xx has DCO calibration constants for
+	 */
+	private static final int[] CALIBRATED_MHZ = { 1, 8, 12, 16 };
+
+	private TargetClock targetClock = new TargetClock();
+	private PitchErrorReport lastPitchErrorReport = null;
+	private boolean compensateTiming = false;
+
+	@Override
+	public void link(Song song, Appendable out) throws IOException {
+		// Gather notes; rests are frequency 0
+		ArrayList<Integer> freqs = new ArrayList<Integer>();
+		ArrayList<Integer> durations = new ArrayList<Integer>();
+		HashMap<Integer, Double> freqsUsed = new HashMap<Integer, Double>();
+		double lowestPitch = Double.MAX_VALUE;
+		// ms the notes so far have run over the song, when compensating
+		double debt = 0;
+		LinkPlan plan = song.getLinkPlan();
+		for (int i = 0; i < plan.getCount(); i++) {
+			if (plan.isTone(i)) {
+				double pitch = plan.getPitch(i);
+				int freq = Math.max(0, plan.getFreq(i));
+				freqs.add(freq);
+				if (freq > 0 && !freqsUsed.containsKey(freq)) {
+					freqsUsed.put(freq, pitch);
+					lowestPitch = Math.min(lowestPitch, pitch);
+				}
+			} else {
+				freqs.add(0);
+			}
+			if (compensateTiming) {
+				// Take the gap after a note out of its length. The sequencer
+				// always waits at least one tick.
+				double ms = plan.getSeconds(i) * 1000.0;
+				int gap = plan.isTone(i) ? NOTE_GAP_MS : 0;
+				int compensated = (int) Math.max(1,
+						Math.round(ms - debt - gap));
+				debt += compensated + gap - ms;
+				durations.add(compensated);
+			} else {
+				durations.add(plan.getMs(i));
+			}
+		}
+		int count = freqs.size();
+
+		// The sequencer tick shares the timer, so one prescaler serves every
+		// note: the smallest that still fits the lowest note in 16 bits
+		int prescaler = freqsUsed.isEmpty() ? 1 : targetClock
+				.getPrescalerFor(lowestPitch);
+		int prescalerBits = Integer.numberOfTrailingZeros(prescaler);
+		if (Integer.bitCount(prescaler) != 1 || prescalerBits > 3) {
+			throw new IllegalArgumentException(
+					"Timer_A cannot divide SMCLK by " + prescaler);
+		}
+		long tickCycles = Math.round(targetClock.getClockHz()
+				/ (1000.0 * prescaler));
+
+		// Frequencies highest first, as in PreciseSongLinker's switch; each
+		// is counted from the exact pitch of its first note
+		ArrayList<Integer> freqTable = new ArrayList<Integer>(
+				freqsUsed.keySet());
+		Collections.sort(freqTable, Collections.reverseOrder());
+		HashMap<Integer, Integer> freqIndexes = new HashMap<Integer, Integer>();
+		TargetClock.Divisor[] divisors = new TargetClock.Divisor[freqTable
+				.size()];
+		for (int i = 0; i < freqTable.size(); i++) {
+			freqIndexes.put(freqTable.get(i), i);
+			divisors[i] = targetClock.getDivisor(
+					freqsUsed.get(freqTable.get(i)), prescaler);
+		}
+		PitchErrorReport report = new PitchErrorReport(
+				targetClock.getClockHz());
+		for (int freq : freqs) {
+			if (freq > 0) {
+				report.add(divisors[freqIndexes.get(freq)]);
+			}
+		}
+		boolean byteIndexes = freqTable.size() < 0xFF;
+		String indexType = byteIndexes ? "unsigned char" : "unsigned int";
+
+		out.append("// Code Generated by ToneScribe ")
+				.append(ToneScribe.CURRENT_VERSION)
+				.append(" ( http://tonescribe.weebly.com )").append(NEWLINE);
+		out.append("// Plays on P1.2 (TA0.1) using Timer_A; the CPU sleeps in LPM0")
+				.append(NEWLINE);
+		out.append("#include <msp430.h>").append(NEWLINE).append(NEWLINE);
+
+		out.append("#define NOTE_COUNT ");
+		appendInt(out, count).append(NEWLINE);
+		out.append("#define REST ").append(byteIndexes ? "0xFF" : "0xFFFF")
+				.append(NEWLINE);
+		out.append("// Timer ticks in the 1 ms sequencer tick").append(NEWLINE);
+		out.append("#define TICK_CYCLES ");
+		appendInt(out, tickCycles).append(NEWLINE);
+		out.append("#define NOTE_GAP_MS ");
+		appendInt(out, NOTE_GAP_MS).append(NEWLINE).append(NEWLINE);
+
+		// Reload values
+		out.append("// Half periods in timer ticks, to add to TACCR1 on each toggle")
+				.append(NEWLINE);
+		out.append("static const unsigned int halfPeriods[");
+		appendInt(out, Math.max(1, freqTable.size())).append("] = {");
+		if (freqTable.isEmpty()) {
+			out.append(NEWLINE).append("\t0");
+		}
+		for (int i = 0; i < freqTable.size(); i++) {
+			appendSeparator(out, i);
+			appendInt(out, divisors[i].getCount());
+		}
+		out.append(NEWLINE).append("};").append(NEWLINE);
+		out.append("// Frequencies, for reference:");
+		for (int i = 0; i < freqTable.size(); i++) {
+			out.append(' ');
+			appendInt(out, freqTable.get(i)).append("hz");
+		}
+		out.append(NEWLINE).append(NEWLINE);
+
+		// Notes
+		out.append("// Index into halfPeriods for each note, or REST").append(
+				NEWLINE);
+		out.append("static const ").append(indexType).append(" songNotes[");
+		appendInt(out, Math.max(1, count)).append("] = {");
+		if (count == 0) {
+			out.append(NEWLINE).append("\tREST");
+		}
+		for (int i = 0; i < count; i++) {
+			appendSeparator(out, i);
+			int freq = freqs.get(i);
+			if (freq > 0) {
+				appendInt(out, freqIndexes.get(freq));
+			} else {
+				out.append("REST");
+			}
+		}
+		out.append(NEWLINE).append("};").append(NEWLINE);
+		out.append("// Duration of each note in ms").append(NEWLINE);
+		out.append("static const unsigned int songDurations[");
+		appendInt(out, Math.max(1, count)).append("] = {");
+		if (count == 0) {
+			out.append(NEWLINE).append("\t0");
+		}
+		for (int i = 0; i < count; i++) {
+			appendSeparator(out, i);
+			appendInt(out, durations.get(i));
+		}
+		out.append(NEWLINE).append("};").append(NEWLINE).append(NEWLINE);
+
+		appendSequencer(out, indexType, prescalerBits);
+		lastPitchErrorReport = report;
+	}
+
+	/**
+	 * Sets whether note lengths are shortened by the gap after each note.
+	 */
+	@Override
+	public void setCompensateTiming(boolean compensateTiming) {
+		this.compensateTiming = compensateTiming;
+	}
+
+	@Override
+	public boolean isCompensateTiming() {
+		return compensateTiming;
+	}
+
+	@Override
+	public TargetClock getTargetClock() {
+		return targetClock;
+	}
+
+	/**
+	 * Sets the SMCLK rate and the timer's input dividers; the counter should
+	 * stay 16 bits wide.
+	 */
+	@Override
+	public void setTargetClock(TargetClock targetClock) {
+		this.targetClock = targetClock;
+	}
+
+	@Override
+	public PitchErrorReport getLastPitchErrorReport() {
+		return lastPitchErrorReport;
+	}
+
+	private void appendSequencer(Appendable out, String indexType,
+			int prescalerBits) throws IOException {
+		String clockSetup = "	// Set the DCO to "
+				+ targetClock.getClockHz() + " hz here";
+		for (int mhz : CALIBRATED_MHZ) {
+			if (targetClock.getClockHz() == mhz * 1000000L) {
+				clockSetup = "	BCSCTL1 = CALBC1_" + mhz + "MHZ;" + NEWLINE
+						+ "	DCOCTL = CALDCO_" + mhz + "MHZ;";
+			}
+		}
+		String[] lines = {
+				"static unsigned int noteIndex = 0;",
+				"static unsigned int msLeft = 0;",
+				"static unsigned int halfPeriod = 0;",
+				"static unsigned char gapNext = 0;",
+				"",
+				"// Starts the next note, or stops the timer after the last one",
+				"static void startNote(void) {",
+				"\t" + indexType + " note;",
+				"\tif (noteIndex == NOTE_COUNT) {",
+				"\t\tTACCTL1 = OUTMOD_0;",
+				"\t\tTACCTL0 = 0;",
+				"\t\tTACTL = MC_0;",
+				"\t\treturn;",
+				"\t}",
+				"",
+				"\tnote = songNotes[noteIndex];",
+				"\tmsLeft = songDurations[noteIndex];",
+				"\tnoteIndex++;",
+				"\tif (note == REST) {",
+				"\t\t// Output mode 0 holds the pin at OUT, which is low",
+				"\t\tTACCTL1 = OUTMOD_0;",
+				"\t\tgapNext = 0;",
+				"\t} else {",
+				"\t\thalfPeriod = halfPeriods[note];",
+				"\t\tTACCR1 = TAR + halfPeriod;",
+				"\t\tTACCTL1 = OUTMOD_4 | CCIE;",
+				"\t\tgapNext = 1;",
+				"\t}",
+				"}",
+				"",
+				"void main(void) {",
+				"\tWDTCTL = WDTPW | WDTHOLD;",
+				clockSetup,
+				"",
+				"\tP1OUT &= ~BIT2;",
+				"\tP1DIR |= BIT2;",
+				"\tP1SEL |= BIT2;",
+				"",
+				"\t// Continuous mode from SMCLK; CCR0 and CCR1 each schedule",
+				"\t// their next interrupt by adding to their compare register",
+				"\tTACTL = TASSEL_2 | ID_" + prescalerBits + " | MC_2 | TACLR;",
+				"\tstartNote();",
+				"\tTACCR0 = TAR + TICK_CYCLES;",
+				"\tTACCTL0 = CCIE;",
+				"",
+				"\t__bis_SR_register(LPM0_bits | GIE);",
+				"}",
+				"",
+				"// Sequencer tick, every 1 ms",
+				"#pragma vector=TIMER0_A0_VECTOR",
+				"__interrupt void sequencerTick(void) {",
+				"\tTACCR0 += TICK_CYCLES;",
+				"\tif (msLeft != 0 && --msLeft != 0) {",
+				"\t\treturn;",
+				"\t}",
+				"",
+				"\tif (gapNext) {",
+				"\t\tTACCTL1 = OUTMOD_0;",
+				"\t\tgapNext = 0;",
+				"\t\tmsLeft = NOTE_GAP_MS;",
+				"\t} else {",
+				"\t\tstartNote();",
+				"\t}",
+				"}",
+				"",
+				"// Tone toggle; the pin has already toggled in hardware",
+				"#pragma vector=TIMER0_A1_VECTOR",
+				"__interrupt void toneToggle(void) {",
+				"\tswitch (TAIV) {",
+				"\tcase 2: // TACCR1",
+				"\t\tTACCR1 += halfPeriod;",
+				"\t\tbreak;",
+				"\t}",
+				"}" };
+		for (String line : lines) {
+			out.append(line).append(NEWLINE);
+		}
+	}
+}
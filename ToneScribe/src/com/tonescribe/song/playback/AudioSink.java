@@ -0,0 +1,66 @@
+/**
+ * Part of ToneScribe
+ * Copyright (c) 2014, William Karnavas
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.tonescribe.song.playback;
+
+import java.io.IOException;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Somewhere PCM audio can be written to: the speakers, a file, or nowhere at
+ * all. Lets the playback engine and SongPlayer run on machines without a sound
+ * device.<br>
+ * <br>
+ * write() is called from the audio thread, and should not allocate.
+ * 
+ */
+public interface AudioSink {
+	/**
+	 * Prepares the sink for audio in the given format.
+	 * 
+	 * @param bufferBytes
+	 *            how much audio the sink should hold before write() blocks,
+	 *            for sinks that play in real time
+	 */
+	public void open(AudioFormat format, int bufferBytes) throws IOException;
+
+	/**
+	 * Writes whole frames of audio, blocking if the sink is full.
+	 */
+	public void write(byte[] data, int offset, int length) throws IOException;
+
+	/**
+	 * Throws away audio written but not yet played, if the sink can.
+	 */
+	public void flush();
+
+	public void close();
+}
@@ -0,0 +1,97 @@
+/**
+ * Part of ToneScribe
+ * Copyright (c) 2014, William Karnavas
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.tonescribe.song.playback;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Writes raw PCM, with no header, to a byte channel.
+ * 
+ */
+public class ChannelAudioSink implements AudioSink {
+	private WritableByteChannel channel;
+
+	// Wrapper around the array last written, reused so that writing the same
+	// block over and over does not allocate
+	private byte[] wrappedArray;
+	private ByteBuffer wrapper;
+
+	public ChannelAudioSink(WritableByteChannel channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * For subclasses that open their channel in open()
+	 */
+	protected ChannelAudioSink() {
+	}
+
+	protected void setChannel(WritableByteChannel channel) {
+		this.channel = channel;
+	}
+
+	@Override
+	public void open(AudioFormat format, int bufferBytes) throws IOException {
+	}
+
+	@Override
+	public void write(byte[] data, int offset, int length) throws IOException {
+		if (data != wrappedArray) {
+			wrappedArray = data;
+			wrapper = ByteBuffer.wrap(data);
+		}
+		wrapper.limit(offset + length);
+		wrapper.position(offset);
+		while (wrapper.hasRemaining()) {
+			channel.write(wrapper);
+		}
+	}
+
+	@Override
+	public void flush() {
+		// Can't take back what's been written
+	}
+
+	@Override
+	public void close() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		wrappedArray = null;
+		wrapper = null;
+	}
+}
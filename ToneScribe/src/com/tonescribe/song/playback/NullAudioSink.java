@@ -0,0 +1,127 @@
+/**
+ * Part of ToneScribe
+ * Copyright (c) 2014, William Karnavas
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.tonescribe.song.playback;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Throws audio away, counting how much was written and how fast. Can either
+ * take audio as fast as it comes, to measure throughput, or pace itself like a
+ * sound card, to stand in for one on headless machines.
+ * 
+ */
+public class NullAudioSink implements AudioSink {
+	private final boolean realTime;
+	private double bytesPerNano;
+
+	private volatile long bytesWritten = 0;
+	private long firstWriteNanos = 0;
+	private volatile long lastWriteNanos = 0;
+
+	/**
+	 * Creates a sink that takes audio as fast as it is written.
+	 */
+	public NullAudioSink() {
+		this(false);
+	}
+
+	/**
+	 * @param realTime
+	 *            if true, write() blocks so that audio is taken no faster than
+	 *            it would play
+	 */
+	public NullAudioSink(boolean realTime) {
+		this.realTime = realTime;
+	}
+
+	@Override
+	public void open(AudioFormat format, int bufferBytes) {
+		bytesPerNano = format.getFrameRate() * format.getFrameSize() / 1e9;
+		bytesWritten = 0;
+		firstWriteNanos = 0;
+		lastWriteNanos = 0;
+	}
+
+	@Override
+	public void write(byte[] data, int offset, int length) {
+		long now = System.nanoTime();
+		if (bytesWritten == 0) {
+			firstWriteNanos = now;
+		}
+		bytesWritten += length;
+
+		if (realTime) {
+			// Wait until the audio written so far would have played
+			long due = firstWriteNanos + (long) (bytesWritten / bytesPerNano);
+			while (now < due) {
+				try {
+					Thread.sleep((due - now) / 1000000,
+							(int) ((due - now) % 1000000));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+				now = System.nanoTime();
+			}
+		}
+		lastWriteNanos = now;
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public void close() {
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/**
+	 * @return bytes written per second between the first and last writes
+	 */
+	public double getBytesPerSecond() {
+		long elapsed = lastWriteNanos - firstWriteNanos;
+		if (elapsed <= 0) {
+			return 0;
+		}
+		return bytesWritten * 1e9 / elapsed;
+	}
+
+	/**
+	 * @return how many times faster than real time audio was written
+	 */
+	public double getSpeedFactor() {
+		return getBytesPerSecond() / (bytesPerNano * 1e9);
+	}
+}
@@ -0,0 +1,100 @@
+/**
+ * Part of ToneScribe
+ * Copyright (c) 2014, William Karnavas
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.tonescribe.song.playback;
+
+/**
+ * A single command sent to a PlaybackEngine's audio thread. Instances are
+ * reused by the engine so that reading a command never allocates; the meaning
+ * of the arguments depends on the command type.
+ * 
+ */
+public class PlaybackCommand {
+	/**
+	 * Starts playing the PCM buffer in payload. argA is the length of the
+	 * buffer in frames, argB the frame to start at.
+	 */
+	public static final int PLAY = 1;
+	/**
+	 * Stops playback and releases the current buffer.
+	 */
+	public static final int STOP = 2;
+	/**
+	 * Moves the play position to frame argA of the current buffer.
+	 */
+	public static final int SEEK = 3;
+	/**
+	 * Loops playback between frames argA (inclusive) and argB (exclusive) of
+	 * the current buffer. An empty region turns looping off.
+	 */
+	public static final int LOOP = 4;
+	/**
+	 * Sets the rate at which the current buffer is played to argD, where 1.0
+	 * is normal speed.
+	 */
+	public static final int TEMPO = 5;
+	/**
+	 * Replaces the current buffer with payload and loops all of it, carrying
+	 * on from frame argB without a gap. argA is the length of the buffer in
+	 * frames.
+	 */
+	public static final int PLAY_LOOP = 6;
+	/**
+	 * Throws away audio already handed to the sink, so that the next
+	 * command is heard at once.
+	 */
+	public static final int FLUSH = 7;
+
+	/**
+	 * Used instead of a frame number to apply a command as soon as the audio
+	 * thread sees it.
+	 */
+	public static final long IMMEDIATELY = -1;
+
+	public int type;
+	/**
+	 * Output frame (as counted by PlaybackEngine.getFramesRendered()) at which
+	 * this command takes effect.
+	 */
+	public long atFrame;
+	public long argA;
+	public long argB;
+	public double argD;
+	public Object payload;
+
+	public void clear() {
+		type = 0;
+		atFrame = IMMEDIATELY;
+		argA = 0;
+		argB = 0;
+		argD = 0;
+		payload = null;
+	}
+}
@@ -0,0 +1,142 @@
+/**
+ * Part of ToneScribe
+ * Copyright (c) 2014, William Karnavas
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.tonescribe.song.playback;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free single-producer/single-consumer ring buffer of playback commands.
+ * Commands are stored field by field in preallocated arrays, so neither
+ * offering nor polling a command allocates.<br>
+ * <br>
+ * Only one thread may call offer() and only one (the audio thread) may call
+ * poll() and peek().
+ * 
+ */
+public class PlaybackCommandQueue {
+	private final int mask;
+	private final int[] types;
+	private final long[] atFrames;
+	private final long[] argsA;
+	private final long[] argsB;
+	private final double[] argsD;
+	private final Object[] payloads;
+
+	/**
+	 * Index of the next slot to read; only written by the consumer.
+	 */
+	private final AtomicLong head = new AtomicLong();
+	/**
+	 * Index of the next slot to write; only written by the producer.
+	 */
+	private final AtomicLong tail = new AtomicLong();
+
+	/**
+	 * @param capacity
+	 *            rounded up to a power of two
+	 */
+	public PlaybackCommandQueue(int capacity) {
+		int size = 1;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		mask = size - 1;
+		types = new int[size];
+		atFrames = new long[size];
+		argsA = new long[size];
+		argsB = new long[size];
+		argsD = new double[size];
+		payloads = new Object[size];
+	}
+
+	/**
+	 * Adds a command to the queue.
+	 * 
+	 * @return false if the queue is full
+	 */
+	public boolean offer(int type, long atFrame, long argA, long argB,
+			double argD, Object payload) {
+		long t = tail.get();
+		if (t - head.get() > mask) {
+			return false;
+		}
+		int i = (int) (t & mask);
+		types[i] = type;
+		atFrames[i] = atFrame;
+		argsA[i] = argA;
+		argsB[i] = argB;
+		argsD[i] = argD;
+		payloads[i] = payload;
+		// Publish the slot only after it has been filled in
+		tail.lazySet(t + 1);
+		return true;
+	}
+
+	/**
+	 * Copies the oldest command into the given holder without removing it.
+	 * 
+	 * @return false if the queue is empty
+	 */
+	public boolean peek(PlaybackCommand into) {
+		long h = head.get();
+		if (h == tail.get()) {
+			return false;
+		}
+		int i = (int) (h & mask);
+		into.type = types[i];
+		into.atFrame = atFrames[i];
+		into.argA = argsA[i];
+		into.argB = argsB[i];
+		into.argD = argsD[i];
+		into.payload = payloads[i];
+		return true;
+	}
+
+	/**
+	 * Moves the oldest command into the given holder.
+	 * 
+	 * @return false if the queue is empty
+	 */
+	public boolean poll(PlaybackCommand into) {
+		if (!peek(into)) {
+			return false;
+		}
+		long h = head.get();
+		// Don't keep buffers alive from the ring
+		payloads[(int) (h & mask)] = null;
+		head.lazySet(h + 1);
+		return true;
+	}
+
+	public boolean isEmpty() {
+		return head.get() == tail.get();
+	}
+}
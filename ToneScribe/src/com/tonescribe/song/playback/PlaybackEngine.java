@@ -0,0 +1,428 @@
+/**
+ * Part of ToneScribe
+ * Copyright (c) 2014, William Karnavas
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ *  * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * 
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ * 
+ *  * Neither the name of the {organization} nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.tonescribe.song.playback;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * Owns a single audio thread that streams PCM buffers to an AudioSink, the
+ * speakers unless another sink is given. Other threads control playback only
+ * by posting commands (play, stop, seek, loop region, tempo scale) through a
+ * lock-free queue; the audio thread applies each command on the exact output
+ * frame it was scheduled for. Nothing is allocated on the audio thread once
+ * it is running.<br>
+ * <br>
+ * Buffers handed to play() belong to the engine afterwards and must not be
+ * modified. Audio must be signed PCM, so that zeroed bytes are silence.
+ * 
+ */
+public class PlaybackEngine {
+	/**
+	 * Frames rendered and written to the sink at a time
+	 */
+	private static final int BLOCK_FRAMES = 512;
+	/**
+	 * Blocks of audio the sink can hold before write() blocks
+	 */
+	private static final int LINE_BLOCKS = 4;
+
+	private final AudioFormat format;
+	private final AudioSink sink;
+	private final int frameSize;
+	private final long idleParkNanos;
+	private final PlaybackCommandQueue commands = new PlaybackCommandQueue(64);
+
+	private volatile boolean running = false;
+	private Thread audioThread;
+
+	// State below is only touched by the audio thread
+	private final byte[] block;
+	private final PlaybackCommand pending = new PlaybackCommand();
+	private boolean hasPending = false;
+	private boolean flushLine = false;
+	private boolean playing = false;
+	private byte[] buffer;
+	private long bufferFrames;
+	private double position;
+	private long loopStart, loopEnd;
+	private double tempoScale = 1.0;
+	private long framesRendered = 0;
+
+	// Published by the audio thread for other threads to read
+	private volatile long publishedFramesRendered = 0;
+	private volatile long publishedPosition = 0;
+	private volatile boolean publishedPlaying = false;
+
+	public PlaybackEngine(AudioFormat format) {
+		this(format, new JavaSoundAudioSink());
+	}
+
+	public PlaybackEngine(AudioFormat format, AudioSink sink) {
+		this.format = format;
+		this.sink = sink;
+		frameSize = format.getFrameSize();
+		block = new byte[BLOCK_FRAMES * frameSize];
+		idleParkNanos = (long) (1000000000.0 * BLOCK_FRAMES / format
+				.getFrameRate());
+	}
+
+	/**
+	 * Opens the sink and starts the audio thread, if not already running.
+	 * 
+	 * @throws IOException
+	 *             if the sink cannot be opened for the engine's format
+	 */
+	public synchronized void start() throws IOException {
+		if (running) {
+			return;
+		}
+		if (audioThread != null) {
+			// Stopped by a failed write; clean up before starting over
+			shutdown();
+		}
+		sink.open(format, block.length * LINE_BLOCKS);
+
+		running = true;
+		audioThread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				runAudio();
+			}
+		}, "ToneScribe Audio");
+		audioThread.setDaemon(true);
+		audioThread.setPriority(Thread.MAX_PRIORITY);
+		audioThread.start();
+	}
+
+	/**
+	 * Stops the audio thread and closes the sink.
+	 */
+	public synchronized void shutdown() {
+		if (audioThread == null) {
+			return;
+		}
+		running = false;
+		LockSupport.unpark(audioThread);
+		try {
+			audioThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		sink.close();
+		audioThread = null;
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Starts playing a buffer of PCM audio in the engine's format, replacing
+	 * whatever was playing.
+	 * 
+	 * @param pcm
+	 *            must not be modified after this call
+	 * @param frames
+	 *            number of frames of pcm to play
+	 * @param startFrame
+	 *            frame of pcm to start from
+	 * @return false if the engine is not running and the command could not
+	 *         be queued, as for post()
+	 */
+	public boolean play(byte[] pcm, long frames, long startFrame) {
+		return flush()
+				&& post(PlaybackCommand.PLAY, PlaybackCommand.IMMEDIATELY,
+						frames, startFrame, 0, pcm);
+	}
+
+	/**
+	 * Plays a buffer of PCM audio over and over. If a loop is already playing
+	 * the new buffer takes over without a gap.
+	 * 
+	 * @param pcm
+	 *            must not be modified after this call
+	 * @param frames
+	 *            number of frames of pcm to loop
+	 * @param startFrame
+	 *            frame of pcm to carry on from
+	 * @return false if the engine is not running and the command could not
+	 *         be queued, as for post()
+	 */
+	public boolean playLoop(byte[] pcm, long frames, long startFrame) {
+		return post(PlaybackCommand.PLAY_LOOP, PlaybackCommand.IMMEDIATELY,
+				frames, startFrame, 0, pcm);
+	}
+
+	/**
+	 * @return false if the engine is not running and the command could not
+	 *         be queued, as for post()
+	 */
+	public boolean stop() {
+		return post(PlaybackCommand.STOP, PlaybackCommand.IMMEDIATELY, 0, 0,
+				0, null) && flush();
+	}
+
+	/**
+	 * Drops audio that has been rendered but not yet heard, so that the
+	 * commands before and after this take effect audibly at once.
+	 * 
+	 * @return false if the engine is not running and the command could not
+	 *         be queued, as for post()
+	 */
+	public boolean flush() {
+		return post(PlaybackCommand.FLUSH, PlaybackCommand.IMMEDIATELY, 0, 0,
+				0, null);
+	}
+
+	/**
+	 * @return false if the engine is not running and the command could not
+	 *         be queued, as for post()
+	 */
+	public boolean seek(long frame) {
+		return flush()
+				&& post(PlaybackCommand.SEEK, PlaybackCommand.IMMEDIATELY,
+						frame, 0, 0, null);
+	}
+
+	/**
+	 * Loops playback of the current buffer between two frames. Pass an empty
+	 * region (end <= start) to stop looping.
+	 * 
+	 * @return false if the engine is not running and the command could not
+	 *         be queued, as for post()
+	 */
+	public boolean setLoopRegion(long startFrame, long endFrame) {
+		return post(PlaybackCommand.LOOP, PlaybackCommand.IMMEDIATELY,
+				startFrame, endFrame, 0, null);
+	}
+
+	/**
+	 * Sets the rate the current buffer is played at; 1.0 is normal. As with
+	 * tape, pitch follows the playback rate.
+	 * 
+	 * @return false if the engine is not running and the command could not
+	 *         be queued, as for post()
+	 */
+	public boolean setTempoScale(double scale) {
+		return post(PlaybackCommand.TEMPO, PlaybackCommand.IMMEDIATELY, 0, 0,
+				scale, null);
+	}
+
+	/**
+	 * Queues a command for the audio thread. Commands are applied in the order
+	 * they are posted.
+	 * 
+	 * @param atFrame
+	 *            output frame (see getFramesRendered()) to apply the command
+	 *            at, or PlaybackCommand.IMMEDIATELY
+	 * @return false if the engine is not running and its queue is full
+	 */
+	public synchronized boolean post(int type, long atFrame, long argA,
+			long argB, double argD, Object payload) {
+		while (!commands.offer(type, atFrame, argA, argB, argD, payload)) {
+			if (!running) {
+				return false;
+			}
+			Thread.yield();
+		}
+		if (audioThread != null) {
+			LockSupport.unpark(audioThread);
+		}
+		return true;
+	}
+
+	/**
+	 * @return number of frames the audio thread has output since it started;
+	 *         the clock used to schedule commands
+	 */
+	public long getFramesRendered() {
+		return publishedFramesRendered;
+	}
+
+	/**
+	 * @return frame of the current buffer being played
+	 */
+	public long getPosition() {
+		return publishedPosition;
+	}
+
+	public boolean isPlaying() {
+		return publishedPlaying;
+	}
+
+	private void runAudio() {
+		while (running) {
+			if (!playing && !hasPending && commands.isEmpty()) {
+				// Nothing to play; don't spin writing silence
+				LockSupport.parkNanos(this, idleParkNanos);
+				continue;
+			}
+
+			renderBlock();
+			if (flushLine) {
+				sink.flush();
+				flushLine = false;
+			}
+			try {
+				sink.write(block, 0, block.length);
+			} catch (IOException e) {
+				e.printStackTrace();
+				// Nowhere left to play to
+				running = false;
+			}
+		}
+	}
+
+	/**
+	 * Fills block with the next BLOCK_FRAMES frames of output, applying
+	 * commands on the frames they are scheduled for.
+	 */
+	private void renderBlock() {
+		int done = 0;
+		while (done < BLOCK_FRAMES) {
+			long now = framesRendered + done;
+			int end = BLOCK_FRAMES;
+			while (true) {
+				if (!hasPending) {
+					hasPending = commands.poll(pending);
+					if (!hasPending) {
+						break;
+					}
+				}
+				if (pending.atFrame <= now) {
+					apply(pending);
+					pending.payload = null;
+					hasPending = false;
+				} else {
+					// Render only up to the frame this command is due
+					end = (int) Math.min(end, done + (pending.atFrame - now));
+					break;
+				}
+			}
+			renderFrames(done, end);
+			done = end;
+		}
+		framesRendered += BLOCK_FRAMES;
+
+		publishedFramesRendered = framesRendered;
+		publishedPosition = (long) position;
+		publishedPlaying = playing;
+	}
+
+	private void apply(PlaybackCommand c) {
+		switch (c.type) {
+		case PlaybackCommand.PLAY:
+			buffer = (byte[]) c.payload;
+			bufferFrames = c.argA;
+			position = Math.max(0, c.argB);
+			loopStart = 0;
+			loopEnd = 0;
+			playing = buffer != null;
+			break;
+		case PlaybackCommand.PLAY_LOOP:
+			buffer = (byte[]) c.payload;
+			bufferFrames = c.argA;
+			position = Math.max(0, c.argB);
+			loopStart = 0;
+			loopEnd = bufferFrames;
+			playing = buffer != null;
+			break;
+		case PlaybackCommand.STOP:
+			buffer = null;
+			playing = false;
+			break;
+		case PlaybackCommand.SEEK:
+			position = Math.max(0, c.argA);
+			break;
+		case PlaybackCommand.LOOP:
+			loopStart = Math.max(0, c.argA);
+			loopEnd = Math.min(c.argB, bufferFrames);
+			break;
+		case PlaybackCommand.TEMPO:
+			if (c.argD > 0) {
+				tempoScale = c.argD;
+			}
+			break;
+		case PlaybackCommand.FLUSH:
+			flushLine = true;
+			break;
+		}
+	}
+
+	/**
+	 * Renders frames [from, to) of block from the current buffer.
+	 */
+	private void renderFrames(int from, int to) {
+		int i = from;
+		while (i < to) {
+			if (!playing) {
+				Arrays.fill(block, i * frameSize, to * frameSize, (byte) 0);
+				return;
+			}
+
+			boolean looping = loopEnd > loopStart;
+			if (looping) {
+				while (position >= loopEnd) {
+					position -= loopEnd - loopStart;
+				}
+			}
+
+			long frame = (long) position;
+			if (frame >= bufferFrames) {
+				buffer = null;
+				playing = false;
+				continue;
+			}
+
+			if (tempoScale == 1.0 && frame == position) {
+				// Normal speed: copy the whole run up to the next loop point
+				// or the end of the buffer at once
+				long runEnd = looping ? Math.min(loopEnd, bufferFrames)
+						: bufferFrames;
+				int run = (int) Math.min(to - i, runEnd - frame);
+				System.arraycopy(buffer, (int) frame * frameSize, block, i
+						* frameSize, run * frameSize);
+				position += run;
+				i += run;
+			} else {
+				System.arraycopy(buffer, (int) frame * frameSize, block, i
+						* frameSize, frameSize);
+				position += tempoScale;
+				i++;
+			}
+		}
+	}
+}